@@ -0,0 +1,127 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.batmgr.filesystem.DirInfo;
+import com.batmgr.filesystem.FileInfo;
+import com.batmgr.filesystem.InvalidIndexException;
+
+/**
+ * Builds the files and indexes used by the benchmarks, in a temporary folder
+ */
+@SuppressWarnings("nls")
+final class BenchmarkFiles {
+
+    private static final long BASE_TIME = 1_700_000_000_000L; // arbitrary, in ms
+
+    private BenchmarkFiles()
+    {
+    }
+
+    /**
+     * @return a new temporary folder, remove it with {@link #delete(Path)}
+     * @throws IOException
+     */
+    static Path createTempDir() throws IOException
+    {
+        return Files.createTempDirectory("batmgr-bench");
+    }
+
+    /**
+     * Write a file of random bytes, the same for a given size
+     * @param path the file
+     * @param size number of bytes
+     * @throws IOException
+     */
+    static void writeRandom(Path path, long size) throws IOException
+    {
+        Random random = new Random(size);
+        byte[] block = new byte[0x10000];
+        try (OutputStream out = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    /**
+     * A plausible entry, its hash is derived from the key
+     * @param name the file name
+     * @param key distinct keys give distinct hashes
+     * @return the entry
+     */
+    static FileInfo entry(String name, long key)
+    {
+        String hash = String.format("%064X", Long.valueOf(key * 0x9E3779B97F4A7C15L));
+        return new FileInfo(name, 1000 + key % 100000, FileTime.fromMillis(BASE_TIME + key * 1000), hash, 0);
+    }
+
+    /**
+     * Create the index of a folder with generated entries, the files themselves don't exist
+     * @param dir the folder
+     * @param entries number of entries
+     * @param distinct number of distinct hashes, e.g. lower than entries to have duplicates
+     * @param offset added to the keys of the hashes, to share hashes between folders
+     * @throws IOException
+     * @throws InvalidIndexException
+     */
+    static void writeIndex(Path dir, int entries, int distinct, long offset) throws IOException, InvalidIndexException
+    {
+        new DirInfo(dir); // writes the signature
+        try (Writer writer = Files.newBufferedWriter(dir.resolve(DirInfo.IDXFILE),
+            Charset.forName(DirInfo.IDXCHARSET), StandardOpenOption.APPEND)) {
+            for (int i = 0; i < entries; i++) {
+                writer.write(String.format("%s\r\n", entry(String.format("file%07d.dat", i), offset + i % distinct)));
+            }
+        }
+    }
+
+    /**
+     * Remove a folder and its contents
+     * @param dir the folder
+     * @throws IOException
+     */
+    static void delete(Path dir) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+}
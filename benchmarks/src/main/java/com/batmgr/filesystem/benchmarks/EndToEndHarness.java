@@ -0,0 +1,285 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem.benchmarks;
+
+import java.awt.Toolkit;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.batmgr.filesystem.DirChecker;
+import com.batmgr.filesystem.PullUnique;
+import com.batmgr.filesystem.Synchronize;
+
+/**
+ * Runs the tools on a generated tree and writes a JSON report.
+ * <p>
+ * Each operation gets a new tree from {@link TreeGenerator}, then runs twice:
+ * cold, after an attempt to drop the page cache (only possible as root), and
+ * warm, right after, with the indexes and the destination left by the cold run.
+ * Each run reports files/s, MB/s of the source tree, the counters of
+ * /proc/self/io (read and write calls, bytes), the garbage collections and
+ * the peak heap.
+ * <p>
+ * Usage: EndToEndHarness workdir [report=file] [ops=index,sync,pull,duplicates] [options of TreeGenerator]
+ */
+@SuppressWarnings("nls")
+public class EndToEndHarness {
+
+    private static final Logger LOG         = LoggerFactory.getLogger(EndToEndHarness.class);
+
+    private static final Path   PROC_IO     = Paths.get("/proc/self/io");
+    private static final Path   DROP_CACHES = Paths.get("/proc/sys/vm/drop_caches");
+
+    /**
+     * The measured operations, src is the generated tree, dst is empty before the cold run
+     */
+    enum Operation {
+        index {
+            @Override
+            void run(Path src, Path dst) throws Exception
+            {
+                new DirChecker().indexTree(src);
+            }
+        },
+        sync {
+            @Override
+            void run(Path src, Path dst) throws Exception
+            {
+                Synchronize.synchronize(src, dst, false);
+            }
+        },
+        pull {
+            @Override
+            void run(Path src, Path dst) throws Exception
+            {
+                PullUnique.pullUnique(src, dst);
+            }
+        },
+        duplicates {
+            @Override
+            void prepare(Path src) throws Exception
+            {
+                new DirChecker().indexTree(src);
+            }
+
+            @Override
+            void run(Path src, Path dst) throws Exception
+            {
+                new DirChecker().listDuplicates(src, 0);
+            }
+        };
+
+        /**
+         * Not measured, e.g. to index the tree
+         */
+        void prepare(Path src) throws Exception
+        {
+            // nothing by default
+        }
+
+        abstract void run(Path src, Path dst) throws Exception;
+    }
+
+    private final Path            workDir;
+    private final TreeGenerator   generator;
+    private final List<String>    runs = new ArrayList<>(); // JSON objects
+
+    public EndToEndHarness(Path workDir, TreeGenerator generator)
+    {
+        this.workDir = workDir;
+        this.generator = generator;
+    }
+
+    public static void main(String[] args)
+    {
+        try {
+            Path report = null;
+            List<Operation> operations = new ArrayList<>(List.of(Operation.values()));
+            List<String> generatorArgs = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].startsWith("report=")) {
+                    report = Paths.get(args[i].substring("report=".length()));
+                } else if (args[i].startsWith("ops=")) {
+                    operations.clear();
+                    for (String op : args[i].substring("ops=".length()).split(",")) {
+                        operations.add(Operation.valueOf(op));
+                    }
+                } else {
+                    generatorArgs.add(args[i]);
+                }
+            }
+            TreeGenerator generator = TreeGenerator.parse(generatorArgs.toArray(new String[0]), 0);
+            EndToEndHarness harness = new EndToEndHarness(Paths.get(args[0]), generator);
+            for (Operation operation : operations) {
+                harness.measure(operation);
+            }
+            String json = harness.toJson();
+            if (report != null) {
+                Files.write(report, json.getBytes(StandardCharsets.UTF_8));
+                LOG.info(String.format("report written to %s", report));
+            } else {
+                System.out.println(json);
+            }
+        } catch (Throwable t) {
+            LOG.error("program aborted", t);
+        }
+        Toolkit.getDefaultToolkit().beep();
+    }
+
+    /**
+     * Generate a tree, run the operation cold then warm, and record the results
+     * @param operation the operation
+     * @throws Exception
+     */
+    public void measure(Operation operation) throws Exception
+    {
+        Path src = workDir.resolve("src");
+        Path dst = workDir.resolve("dst");
+        for (Path p : new Path[] { src, dst }) {
+            if (Files.exists(p)) {
+                BenchmarkFiles.delete(p);
+            }
+        }
+        LOG.info(String.format("%s: generating %s", operation, generator));
+        generator.generate(src);
+        operation.prepare(src);
+        boolean dropped = dropCaches();
+        runs.add(run(operation, "cold", dropped, src, dst));
+        runs.add(run(operation, "warm", false, src, dst));
+    }
+
+    private String run(Operation operation, String phase, boolean dropped, Path src, Path dst) throws Exception
+    {
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long[] gcBefore = gcCounters();
+        Map<String, Long> ioBefore = readProcIo();
+        long start = System.nanoTime();
+        operation.run(src, dst);
+        long elapsed = System.nanoTime() - start;
+        Map<String, Long> ioAfter = readProcIo();
+        long[] gcAfter = gcCounters();
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        double seconds = elapsed / 1e9;
+        StringBuilder io = new StringBuilder();
+        for (Map.Entry<String, Long> e : ioAfter.entrySet()) {
+            Long before = ioBefore.get(e.getKey());
+            io.append(io.length() == 0 ? "" : ", ").append(String.format(Locale.ROOT, "\"%s\": %d", e.getKey(),
+                Long.valueOf(e.getValue().longValue() - (before == null ? 0 : before.longValue()))));
+        }
+        LOG.info(String.format("%s %s: %.3f s", operation, phase, Double.valueOf(seconds)));
+        // JSON numbers, whatever the default locale
+        return String.format(Locale.ROOT, "{\"operation\": \"%s\", \"phase\": \"%s\", \"cacheDropped\": %b, \"seconds\": %.6f, "
+            + "\"filesPerSecond\": %.1f, \"mbPerSecond\": %.3f, \"peakHeapBytes\": %d, \"gcCount\": %d, "
+            + "\"gcMillis\": %d, \"io\": {%s}}",
+            operation, phase, Boolean.valueOf(dropped), Double.valueOf(seconds),
+            Double.valueOf(generator.getFileCount() / seconds),
+            Double.valueOf(generator.getByteCount() / 1e6 / seconds), Long.valueOf(peakHeap),
+            Long.valueOf(gcAfter[0] - gcBefore[0]), Long.valueOf(gcAfter[1] - gcBefore[1]), io);
+    }
+
+    /**
+     * @return the report, with the options of the generator and the size of the tree
+     */
+    public String toJson()
+    {
+        return String.format(Locale.ROOT, "{\n  \"generator\": \"%s\",\n  \"dirs\": %d,\n  \"files\": %d,\n  \"bytes\": %d,\n"
+            + "  \"java\": \"%s\",\n  \"runs\": [\n    %s\n  ]\n}\n",
+            generator, Long.valueOf(generator.getDirCount()), Long.valueOf(generator.getFileCount()),
+            Long.valueOf(generator.getByteCount()), System.getProperty("java.version"), String.join(",\n    ", runs));
+    }
+
+    /**
+     * Flush the dirty pages then drop the page cache, dentries and inodes
+     * @return false if not possible, e.g. not root or not Linux
+     */
+    static boolean dropCaches()
+    {
+        try {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            Files.write(DROP_CACHES, "3\n".getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } catch (IOException e) {
+            LOG.warn(String.format("cannot drop the page cache (%s), the cold runs are only partly cold", e));
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return counters of the I/O of this process (rchar, wchar, syscr, syscw, read_bytes...), empty if unknown
+     */
+    static Map<String, Long> readProcIo()
+    {
+        Map<String, Long> result = new LinkedHashMap<>();
+        try {
+            for (String line : Files.readAllLines(PROC_IO)) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    result.put(line.substring(0, colon), Long.valueOf(line.substring(colon + 1).trim()));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOG.debug(String.format("%s: %s", PROC_IO, e));
+        }
+        return result;
+    }
+
+    private static long[] gcCounters()
+    {
+        long[] result = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result[0] += Math.max(0, gc.getCollectionCount());
+            result[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.batmgr.filesystem.DirInfo;
+import com.batmgr.filesystem.FileInfo;
+import com.batmgr.filesystem.InvalidIndexException;
+import com.batmgr.filesystem.LazyDirInfo;
+
+/**
+ * Loading an index of 1k to 1M entries, see {@link DirInfo#readIndex()}, and
+ * opening it on demand to look for one name, see {@link LazyDirInfo}
+ */
+@SuppressWarnings("nls")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-Dlogback.configurationFile=logback-benchmarks.xml" })
+public class ReadIndexBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int  entries;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InvalidIndexException
+    {
+        dir = BenchmarkFiles.createTempDir();
+        BenchmarkFiles.writeIndex(dir, entries, entries, 0);
+        new LazyDirInfo(dir); // sorts the index once
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public DirInfo readIndex() throws IOException, InvalidIndexException
+    {
+        return new DirInfo(dir);
+    }
+
+    @Benchmark
+    public FileInfo lazyLookup() throws IOException, InvalidIndexException
+    {
+        return new LazyDirInfo(dir).getFileInfo(String.format("file%07d.dat", entries / 2));
+    }
+
+}
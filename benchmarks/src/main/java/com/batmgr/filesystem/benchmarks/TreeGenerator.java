@@ -0,0 +1,334 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem.benchmarks;
+
+import java.awt.Toolkit;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.batmgr.filesystem.DirChecker;
+import com.batmgr.filesystem.InvalidIndexException;
+
+/**
+ * Builds a reproducible tree of files for end to end benchmarks, see {@link EndToEndHarness}.
+ * <p>
+ * The same seed and options always give the same tree: names, sizes and contents.
+ * Sizes follow a log-normal distribution around the median size. A ratio of the
+ * files are copies of files generated before, and a ratio of the folders are
+ * indexed when the tree is built.
+ */
+@SuppressWarnings("nls")
+public class TreeGenerator {
+
+    private static final Logger LOG    = LoggerFactory.getLogger(TreeGenerator.class);
+
+    private static final double SIGMA  = 1.5;  // spread of the log-normal sizes
+    private static final int    BLOCK  = 0x10000;
+
+    private long                seed   = 1;
+    private int                 depth  = 3;
+    private int                 fanOut = 4;
+    private int                 files  = 20;   // per folder
+    private long                medianSize = 0x10000;
+    private long                maxSize    = 0x4000000;
+    private double              duplicateRatio;
+    private double              indexedRatio;
+
+    private Random              random;
+    private List<long[]>        contents;      // seed and size of the unique contents
+    private long                fileCount;
+    private long                byteCount;
+    private long                dirCount;
+
+    public static void main(String[] args)
+    {
+        try {
+            TreeGenerator generator = parse(args, 1);
+            generator.generate(Paths.get(args[0]));
+            LOG.info(String.format("%s: %d folders, %d files, %d bytes", args[0], Long.valueOf(generator.getDirCount()),
+                Long.valueOf(generator.getFileCount()), Long.valueOf(generator.getByteCount())));
+        } catch (Throwable t) {
+            LOG.error("program aborted", t);
+        }
+        Toolkit.getDefaultToolkit().beep();
+    }
+
+    /**
+     * Read the options given after the target folder on the command line:
+     * seed=, depth=, fanout=, files=, size=, max-size=, duplicates=, indexed=
+     * @param args the command line
+     * @param first index of the first option
+     * @return a generator
+     * @throws IllegalArgumentException if an option is unknown
+     */
+    public static TreeGenerator parse(String[] args, int first)
+    {
+        TreeGenerator result = new TreeGenerator();
+        for (int i = first; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException(String.format("unknown option %s", args[i]));
+            }
+            String value = args[i].substring(eq + 1);
+            switch (args[i].substring(0, eq)) {
+                case "seed":
+                    result.setSeed(Long.parseLong(value));
+                    break;
+                case "depth":
+                    result.setDepth(Integer.parseInt(value));
+                    break;
+                case "fanout":
+                    result.setFanOut(Integer.parseInt(value));
+                    break;
+                case "files":
+                    result.setFiles(Integer.parseInt(value));
+                    break;
+                case "size":
+                    result.setMedianSize(Long.parseLong(value));
+                    break;
+                case "max-size":
+                    result.setMaxSize(Long.parseLong(value));
+                    break;
+                case "duplicates":
+                    result.setDuplicateRatio(Double.parseDouble(value));
+                    break;
+                case "indexed":
+                    result.setIndexedRatio(Double.parseDouble(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("unknown option %s", args[i]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Build the tree
+     * @param root the top folder, created if needed, must not contain a previous tree
+     * @throws IOException
+     * @throws InvalidIndexException
+     * @throws NoSuchAlgorithmException
+     */
+    public void generate(Path root) throws IOException, InvalidIndexException, NoSuchAlgorithmException
+    {
+        random = new Random(seed);
+        contents = new ArrayList<>();
+        fileCount = 0;
+        byteCount = 0;
+        dirCount = 0;
+        generate(root, depth, new DirChecker());
+    }
+
+    private void generate(Path dir, int level, DirChecker checker)
+        throws IOException, InvalidIndexException, NoSuchAlgorithmException
+    {
+        Files.createDirectories(dir);
+        dirCount++;
+        for (int i = 0; i < files; i++) {
+            long[] content;
+            if (!contents.isEmpty() && random.nextDouble() < duplicateRatio) {
+                content = contents.get(random.nextInt(contents.size()));
+            } else {
+                content = new long[] { random.nextLong(), nextSize() };
+                contents.add(content);
+            }
+            writeContent(dir.resolve(String.format("f%04d.dat", Integer.valueOf(i))), content[0], content[1]);
+            fileCount++;
+            byteCount += content[1];
+        }
+        if (random.nextDouble() < indexedRatio) {
+            checker.indexFolder(dir);
+        }
+        if (level > 0) {
+            for (int i = 0; i < fanOut; i++) {
+                generate(dir.resolve(String.format("d%03d", Integer.valueOf(i))), level - 1, checker);
+            }
+        }
+    }
+
+    private long nextSize()
+    {
+        double size = medianSize * Math.exp(SIGMA * random.nextGaussian());
+        return Math.min(maxSize, Math.round(size));
+    }
+
+    private static void writeContent(Path path, long contentSeed, long size) throws IOException
+    {
+        Random bytes = new Random(contentSeed);
+        byte[] block = new byte[BLOCK];
+        try (OutputStream out = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; written += block.length) {
+                bytes.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    public long getSeed()
+    {
+        return seed;
+    }
+
+    public TreeGenerator setSeed(long seed)
+    {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * @param depth levels of sub-folders below the root, 0 for a single folder
+     */
+    public TreeGenerator setDepth(int depth)
+    {
+        this.depth = depth;
+        return this;
+    }
+
+    public int getFanOut()
+    {
+        return fanOut;
+    }
+
+    /**
+     * @param fanOut sub-folders per folder
+     */
+    public TreeGenerator setFanOut(int fanOut)
+    {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    public int getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * @param files files per folder
+     */
+    public TreeGenerator setFiles(int files)
+    {
+        this.files = files;
+        return this;
+    }
+
+    public long getMedianSize()
+    {
+        return medianSize;
+    }
+
+    public TreeGenerator setMedianSize(long medianSize)
+    {
+        this.medianSize = medianSize;
+        return this;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public TreeGenerator setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public double getDuplicateRatio()
+    {
+        return duplicateRatio;
+    }
+
+    /**
+     * @param duplicateRatio probability that a file is a copy of a previous one
+     */
+    public TreeGenerator setDuplicateRatio(double duplicateRatio)
+    {
+        this.duplicateRatio = duplicateRatio;
+        return this;
+    }
+
+    public double getIndexedRatio()
+    {
+        return indexedRatio;
+    }
+
+    /**
+     * @param indexedRatio probability that a folder is indexed when the tree is built
+     */
+    public TreeGenerator setIndexedRatio(double indexedRatio)
+    {
+        this.indexedRatio = indexedRatio;
+        return this;
+    }
+
+    /**
+     * @return number of folders generated
+     */
+    public long getDirCount()
+    {
+        return dirCount;
+    }
+
+    /**
+     * @return number of files generated
+     */
+    public long getFileCount()
+    {
+        return fileCount;
+    }
+
+    /**
+     * @return total size of the files generated
+     */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("seed=%d depth=%d fanout=%d files=%d size=%d max-size=%d duplicates=%s indexed=%s",
+            Long.valueOf(seed), Integer.valueOf(depth), Integer.valueOf(fanOut), Integer.valueOf(files),
+            Long.valueOf(medianSize), Long.valueOf(maxSize), Double.toString(duplicateRatio),
+            Double.toString(indexedRatio));
+    }
+
+}
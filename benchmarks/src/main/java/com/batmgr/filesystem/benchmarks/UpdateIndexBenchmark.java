@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.batmgr.filesystem.DirInfo;
+import com.batmgr.filesystem.FileInfo;
+import com.batmgr.filesystem.InvalidIndexException;
+
+/**
+ * Updates of a loaded index: appending entries, and replacing them the way
+ * a modified file is reindexed (flag the old line, append a new one).
+ * <p>
+ * The index is rebuilt before each iteration, it grows during the iteration.
+ */
+@SuppressWarnings("nls")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmarks.xml")
+public class UpdateIndexBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int     entries;
+
+    private Path    dir;
+    private DirInfo index;
+    private long    counter;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, InvalidIndexException
+    {
+        dir = BenchmarkFiles.createTempDir();
+        BenchmarkFiles.writeIndex(dir, entries, entries, 0);
+        index = new DirInfo(dir);
+        counter = entries;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException
+    {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public DirInfo appendToIndex() throws IOException
+    {
+        long key = counter++;
+        index.appendToIndex(BenchmarkFiles.entry(String.format("new%09d.dat", Long.valueOf(key)), key));
+        return index;
+    }
+
+    @Benchmark
+    public DirInfo replaceEntry() throws IOException
+    {
+        long key = counter++;
+        String name = String.format("file%07d.dat", Long.valueOf(key % entries));
+        FileInfo old = index.getFileInfo(name);
+        index.removeFromIndex(old);
+        index.appendToIndex(BenchmarkFiles.entry(name, key));
+        return index;
+    }
+
+}
@@ -0,0 +1,283 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the number of concurrent hashes or copies from the observed throughput. <br>
+ * Workers report the bytes processed and the duration of each task. At the end
+ * of each window the controller compares the throughput and the latency with
+ * the previous window, taking into account the change of limit between them (AIMD):
+ * <ul>
+ * <li>after one more worker: throughput up by 5% or more, one more again
+ * (additive increase); otherwise the worker didn't help and the previous
+ * limit is restored</li>
+ * <li>after a decrease: the throughput is compared per worker, the limit is
+ * decreased again only if it is down by 10% or more</li>
+ * <li>with the same limit: throughput down by 10% or more, or latency doubled,
+ * limit multiplied by 0.75 (multiplicative decrease); throughput up by 5% or more, one more worker;
+ * otherwise the limit is kept, and one more worker is tried after 5 such
+ * windows, so that the limit follows the load of a shared device</li>
+ * </ul>
+ * Every decision is logged and counted in {@link Metrics}, which shows the last
+ * limit decided by any controller; the state of one controller is available
+ * through the getters. {@link DirChecker} hashes and {@link Synchronize} copies
+ * run under the controller of {@link SyncOptions#setAdaptive(boolean)}.
+ */
+@SuppressWarnings("nls")
+public class ConcurrencyController {
+    
+    private static final Logger LOG             = LoggerFactory.getLogger(ConcurrencyController.class);
+
+    public static final int     DEFAULT_MIN     = 1;
+    public static final int     DEFAULT_MAX     = 16;
+    public static final int     DEFAULT_INITIAL = 2;
+    public static final long    DEFAULT_WINDOW  = 1000; // ms
+    private static final double GAIN            = 1.05;
+    private static final double LOSS            = 0.90;
+    private static final double CONGESTION      = 2.0;
+    private static final double DECREASE        = 0.75;
+    private static final int    PROBE_WINDOWS   = 5;    // stable windows before trying one more worker
+
+    /**
+     * Work measured by the controller
+     */
+    public interface Task<T> {
+        T call() throws IOException, NoSuchAlgorithmException;
+    }
+
+    private final String          name;
+    private final int             min;
+    private final int             max;
+    private final long            windowNs;
+    private final ExecutorService pool;
+    private int                   limit;
+    private int                   active;
+    // current window
+    private long                  windowStart;
+    private long                  windowBytes;
+    private long                  windowTasks;
+    private long                  windowBusyNs;
+    // previous window
+    private int                   lastLimit;            // limit during the previous window
+    private double                lastThroughput;       // bytes/s
+    private double                lastLatency;          // ns per task
+    private int                   stableWindows;        // windows since the last change of limit
+    private long                  increases;
+    private long                  decreases;
+    
+    /**
+     * Controller with default bounds
+     * @param name used in the logs
+     */
+    public ConcurrencyController(String name)
+    {
+        this(name, DEFAULT_MIN, DEFAULT_MAX, DEFAULT_INITIAL, DEFAULT_WINDOW);
+    }
+    
+    /**
+     * @param name used in the logs
+     * @param min minimum number of concurrent tasks
+     * @param max maximum number of concurrent tasks, also the size of the pool of {@link #submit}
+     * @param initial starting limit
+     * @param window duration of a measure in ms
+     */
+    public ConcurrencyController(String name, int min, int max, int initial, long window)
+    {
+        if (min < 1 || max < min || initial < min || initial > max) {
+            throw new IllegalArgumentException(String.format("invalid bounds %d <= %d <= %d", min, initial, max));
+        }
+        this.name = name;
+        this.min = min;
+        this.max = max;
+        limit = initial;
+        windowNs = window * 1000000;
+        windowStart = System.nanoTime();
+        Metrics.getDefault().concurrencyAdjusted(initial, initial);
+        pool = Executors.newFixedThreadPool(max, r -> {
+            Thread t = new Thread(r, name + "-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    /**
+     * Run a task in the calling thread when the limit allows it
+     * @param bytes the amount of data the task reads or writes
+     * @param task the work
+     * @return the result of the task
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public <T> T run(long bytes, Task<T> task) throws IOException, NoSuchAlgorithmException
+    {
+        acquire();
+        long start = System.nanoTime();
+        boolean done = false;
+        try {
+            T result = task.call();
+            done = true;
+            return result;
+        } finally {
+            release(done ? bytes : 0, System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Run a task in the pool of the controller when the limit allows it
+     * @param bytes the amount of data the task reads or writes
+     * @param task the work
+     * @return the result of the task
+     */
+    public <T> Future<T> submit(long bytes, Task<T> task)
+    {
+        return pool.submit(() -> run(bytes, task));
+    }
+    
+    private synchronized void acquire() throws IOException
+    {
+        while (active >= limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("%s: waiting for a worker", name));
+            }
+        }
+        active++;
+    }
+    
+    private synchronized void release(long bytes, long ns)
+    {
+        active--;
+        windowBytes += bytes;
+        windowTasks++;
+        windowBusyNs += ns;
+        long now = System.nanoTime();
+        if (now - windowStart >= windowNs) {
+            adjust(now);
+        }
+        notifyAll();
+    }
+    
+    /**
+     * End of a window, decide the next limit
+     */
+    private void adjust(long now)
+    {
+        adjust(windowBytes * 1e9 / (now - windowStart), (double) windowBusyNs / windowTasks);
+        windowStart = now;
+        windowBytes = 0;
+        windowTasks = 0;
+        windowBusyNs = 0;
+    }
+    
+    /**
+     * Decide the next limit from the measures of the window run with the current limit
+     * @param throughput bytes/s
+     * @param latency ns per task
+     */
+    synchronized void adjust(double throughput, double latency)
+    {
+        int previous = limit;
+        boolean congested = throughput <= lastThroughput * LOSS || latency >= lastLatency * CONGESTION;
+        if (lastThroughput <= 0) {
+            limit = Math.min(max, limit + 1); // first window, probe upwards
+        } else if (previous > lastLimit) {
+            // one more worker again while it helps, otherwise undo the probe
+            limit = throughput >= lastThroughput * GAIN ? Math.min(max, limit + 1) : lastLimit;
+        } else if (previous < lastLimit) {
+            // fewer workers move less data, only a loss per worker means congestion
+            if (throughput / previous <= lastThroughput / lastLimit * LOSS) {
+                limit = Math.max(min, (int) (limit * DECREASE));
+            }
+        } else if (congested) {
+            limit = Math.max(min, (int) (limit * DECREASE));
+        } else if (throughput >= lastThroughput * GAIN || stableWindows + 1 >= PROBE_WINDOWS) {
+            limit = Math.min(max, limit + 1);
+        }
+        if (limit > previous) {
+            increases++;
+        } else if (limit < previous) {
+            decreases++;
+        }
+        stableWindows = limit == previous ? stableWindows + 1 : 0;
+        Metrics.getDefault().concurrencyAdjusted(previous, limit);
+        LOG.info(String.format("%s: %s/s, %.1f ms per task, concurrency %d -> %d", name,
+            FileInfo.getHumanReadableSize((long) throughput), latency / 1e6, previous, limit));
+        lastLimit = previous;
+        lastThroughput = throughput;
+        lastLatency = latency;
+    }
+    
+    public synchronized int getLimit()
+    {
+        return limit;
+    }
+    
+    public synchronized int getActive()
+    {
+        return active;
+    }
+    
+    /**
+     * @return the throughput of the last complete window in bytes/s
+     */
+    public synchronized double getThroughput()
+    {
+        return lastThroughput;
+    }
+    
+    /**
+     * @return the mean duration of a task in the last complete window in ns
+     */
+    public synchronized double getLatency()
+    {
+        return lastLatency;
+    }
+    
+    public synchronized long getIncreases()
+    {
+        return increases;
+    }
+    
+    public synchronized long getDecreases()
+    {
+        return decreases;
+    }
+    
+    public String getName()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Update an existing destination file so that it matches its source, writing
+ * only the blocks that changed. <br>
+ * Blocks of the old destination are found in the source with an rsync-style
+ * rolling weak checksum, then confirmed with a strong hash. <br>
+ * In place mode rewrites the destination where needed, temporary file mode
+ * builds the new content next to it and renames it at the end.
+ */
+@SuppressWarnings("nls")
+public class DeltaCopier {
+    
+    private static final Logger LOG          = LoggerFactory.getLogger(DeltaCopier.class);
+
+    public static final String  TMP_SUFFIX   = ".delta-tmp";
+    public static final int     MIN_BLOCK    = 0x1000;   // 4 KB
+    public static final int     MAX_BLOCK    = 0x100000; // 1 MB
+    private static final int    MOD          = 1 << 16;
+
+    private boolean             inPlace      = true;
+    private long                bytesWritten;             // bytes written in the destination by the last update
+    private long                bytesReused;              // bytes found in the old destination by the last update
+    
+    /**
+     * Choose a block size close to the square root of the file size
+     * @param size file size in bytes
+     * @return a power of 2 between MIN_BLOCK and MAX_BLOCK
+     */
+    public static int chooseBlockSize(long size)
+    {
+        int result = MIN_BLOCK;
+        while (result < MAX_BLOCK && (long) result * result < size) {
+            result <<= 1;
+        }
+        return result;
+    }
+    
+    /**
+     * @param inPlace true to patch the destination, false to rebuild it in a temporary file
+     * @return this
+     */
+    public DeltaCopier setInPlace(boolean inPlace)
+    {
+        this.inPlace = inPlace;
+        return this;
+    }
+    
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+    
+    public long getBytesReused()
+    {
+        return bytesReused;
+    }
+    
+    /**
+     * Make dst identical to src, then check the result.
+     * <p>
+     * The caller must remove dst from its index first: in place mode leaves an
+     * inconsistent file if it is interrupted.
+     * @param src the source file
+     * @param dst the old version of the file, updated
+     * @param expectedHash signature of the source (from its index)
+     * @return true if dst has the expected signature at the end
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public boolean update(Path src, Path dst, String expectedHash) throws IOException, NoSuchAlgorithmException
+    {
+        long srcSize = Files.size(src);
+        int blockSize = chooseBlockSize(srcSize);
+        Signature signature = computeSignature(dst, blockSize);
+        List<long[]> matches = findMatches(src, signature);
+        bytesWritten = 0;
+        bytesReused = 0;
+        if (inPlace) {
+            patchInPlace(src, dst, srcSize, matches, blockSize);
+        } else {
+            rebuild(src, dst, srcSize, matches, blockSize);
+        }
+        LOG.info(String.format("Delta %s: %s written, %s reused", dst.getFileName(),
+            FileInfo.getHumanReadableSize(bytesWritten), FileInfo.getHumanReadableSize(bytesReused)));
+        String hash = new FileChecker().computeSha256(dst);
+        if (!hash.equals(expectedHash)) {
+            LOG.warn(String.format("%s has different content after delta update", dst));
+            Metrics.getDefault().verificationFailed();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Weak and strong checksums of the complete blocks of a file
+     */
+    static class Signature {
+        int                         blockSize;
+        byte[][]                    strong;
+        Map<Integer, List<Integer>> weakIndex = new HashMap<>(); // weak checksum -> block numbers
+    }
+    
+    /**
+     * Read the destination and compute the checksums of each complete block
+     * @param dst the file to describe
+     * @param blockSize size of the blocks
+     * @return the signature
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    Signature computeSignature(Path dst, int blockSize) throws IOException, NoSuchAlgorithmException
+    {
+        Signature signature = new Signature();
+        signature.blockSize = blockSize;
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        int blocks = (int) (Files.size(dst) / blockSize);
+        signature.strong = new byte[blocks][];
+        byte[] block = new byte[blockSize];
+        ByteBuffer buf = ByteBuffer.wrap(block);
+        try (FileChannel fc = FileChannel.open(dst, StandardOpenOption.READ)) {
+            for (int i = 0; i < blocks; i++) {
+                buf.clear();
+                while (buf.hasRemaining() && fc.read(buf) > 0) {
+                    // fill the block
+                }
+                if (buf.hasRemaining()) {
+                    throw new IOException(String.format("%s was truncated while reading", dst));
+                }
+                signature.strong[i] = md.digest(block);
+                signature.weakIndex.computeIfAbsent(weakChecksum(block, 0, blockSize), k -> new ArrayList<>()).add(i);
+            }
+        }
+        return signature;
+    }
+    
+    /**
+     * rsync weak checksum: a is the sum of the bytes, b the sum of the partial sums
+     */
+    static int weakChecksum(byte[] data, int off, int len)
+    {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xff;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & (MOD - 1)) | ((b & (MOD - 1)) << 16); // b may overflow, the low bits are still right
+    }
+    
+    /**
+     * Scan the source with a rolling checksum and list the blocks of the old file found in it.
+     * @param src the new version of the file
+     * @param signature checksums of the old version
+     * @return pairs { offset in src, block number in the old file }, in increasing offset order
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    List<long[]> findMatches(Path src, Signature signature) throws IOException, NoSuchAlgorithmException
+    {
+        List<long[]> matches = new ArrayList<>();
+        int bs = signature.blockSize;
+        if (signature.strong.length == 0) {
+            return matches;
+        }
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] buf = new byte[Math.max(4 * bs, 0x400000)];
+        int len = 0;        // valid bytes in buf
+        long bufStart = 0;  // file offset of buf[0]
+        int pos = 0;        // start of the window in buf
+        boolean eof = false;
+        boolean haveSum = false;
+        int a = 0;
+        int b = 0;
+        try (FileChannel fc = FileChannel.open(src, StandardOpenOption.READ)) {
+            while (true) {
+                if (!eof && pos + bs + 1 > len) {
+                    // keep the window, drop what is before
+                    System.arraycopy(buf, pos, buf, 0, len - pos);
+                    bufStart += pos;
+                    len -= pos;
+                    pos = 0;
+                    int n = fc.read(ByteBuffer.wrap(buf, len, buf.length - len));
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        len += n;
+                    }
+                    continue;
+                }
+                if (pos + bs > len) {
+                    break; // less than one block left
+                }
+                if (!haveSum) {
+                    int weak = weakChecksum(buf, pos, bs);
+                    a = weak & 0xffff;
+                    b = weak >>> 16;
+                    haveSum = true;
+                }
+                List<Integer> candidates = signature.weakIndex.get(a | (b << 16));
+                if (candidates != null) {
+                    md.update(buf, pos, bs);
+                    byte[] strong = md.digest();
+                    int block = chooseBlock(candidates, signature, strong, bufStart + pos);
+                    if (block >= 0) {
+                        matches.add(new long[] { bufStart + pos, block });
+                        pos += bs;
+                        haveSum = false;
+                        continue;
+                    }
+                }
+                if (pos + bs < len) {
+                    int out = buf[pos] & 0xff;
+                    int in = buf[pos + bs] & 0xff;
+                    a = Math.floorMod(a - out + in, MOD);
+                    b = Math.floorMod(b - bs * out + a, MOD);
+                }
+                pos++;
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Among blocks with the same weak checksum, find one with the same strong hash,
+     * preferably the one already located at the right offset
+     * @return the block number, -1 if none
+     */
+    private int chooseBlock(List<Integer> candidates, Signature signature, byte[] strong, long offset)
+    {
+        int result = -1;
+        for (Integer block : candidates) {
+            if (!MessageDigest.isEqual(signature.strong[block], strong)) {
+                continue;
+            }
+            if ((long) block * signature.blockSize == offset) {
+                return block;
+            }
+            if (result < 0) {
+                result = block;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Patch dst: blocks found at the same offset are left untouched, blocks moved
+     * towards the beginning are copied inside the file, the rest is read from src.
+     * A block moved towards the end would be overwritten before being read, it is
+     * read from src instead.
+     */
+    private void patchInPlace(Path src, Path dst, long srcSize, List<long[]> matches, int bs) throws IOException
+    {
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(dst, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long cursor = 0; // everything before cursor is up to date
+            for (long[] match : matches) {
+                long offset = match[0];
+                long from = match[1] * bs;
+                if (from < offset) {
+                    continue; // will be copied from src with the next literal
+                }
+                writeRange(in, cursor, out, cursor, offset - cursor);
+                if (from != offset) {
+                    writeRange(out, from, out, offset, bs);
+                }
+                bytesReused += bs;
+                cursor = offset + bs;
+            }
+            writeRange(in, cursor, out, cursor, srcSize - cursor);
+            out.truncate(srcSize);
+        }
+    }
+    
+    /**
+     * Build the new content in a temporary file, then replace dst. The temporary
+     * file is deleted if anything fails.
+     */
+    private void rebuild(Path src, Path dst, long srcSize, List<long[]> matches, int bs) throws IOException
+    {
+        Path tmp = dst.resolveSibling(dst.getFileName().toString() + TMP_SUFFIX);
+        try {
+            try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel old = FileChannel.open(dst, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                long cursor = 0;
+                for (long[] match : matches) {
+                    long offset = match[0];
+                    writeRange(in, cursor, out, cursor, offset - cursor);
+                    writeRange(old, match[1] * bs, out, offset, bs);
+                    bytesReused += bs;
+                    cursor = offset + bs;
+                }
+                writeRange(in, cursor, out, cursor, srcSize - cursor);
+            }
+            Files.move(tmp, dst, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp); // nothing left after the move
+        }
+        bytesWritten = srcSize;
+    }
+    
+    /**
+     * Copy count bytes from in at inPos to out at outPos
+     */
+    private void writeRange(FileChannel in, long inPos, FileChannel out, long outPos, long count) throws IOException
+    {
+        if (count <= 0) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, 0x200000)); // 2 MB
+        long done = 0;
+        while (done < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - done));
+            int n = in.read(buf, inPos + done);
+            if (n <= 0) {
+                throw new IOException("unexpected end of file");
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf, outPos + done + buf.position());
+            }
+            done += n;
+        }
+        bytesWritten += count;
+        Metrics.getDefault().bytesCopied(count);
+    }
+}
@@ -24,15 +24,21 @@
 package com.batmgr.filesystem;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -42,6 +48,142 @@ public class DirChecker {
     
     private static final Logger LOG = LoggerFactory.getLogger(DirChecker.class);
     
+    private final Path          shadowRoot; // null if indexes are stored in the directories
+    private HashCache           hashCache;  // null if none
+    private boolean             xattrIndex; // indexes in extended attributes when supported
+    private boolean             lazyIndex;  // indexes read on demand
+    private ConcurrencyController controller; // null to hash one file at a time
+    private boolean             diskOrder;  // process the entries by inode
+    private ProgressListener    progressListener = ProgressTracker.LOGGING; // null for no progress
+    
+    /**
+     * Indexes are stored in the indexed directories
+     */
+    public DirChecker()
+    {
+        this(null);
+    }
+    
+    /**
+     * Indexes are stored in a separate tree, e.g. for read-only directories
+     * @param shadowRoot root of the tree, null to store indexes in the indexed directories
+     */
+    public DirChecker(Path shadowRoot)
+    {
+        this.shadowRoot = shadowRoot;
+    }
+    
+    /**
+     * Consult a cache of hashes when indexing, see {@link DirInfo#setHashCache(HashCache)}
+     * @param hashCache the cache, null to always compute the hashes
+     */
+    public void setHashCache(HashCache hashCache)
+    {
+        this.hashCache = hashCache;
+    }
+    
+    /**
+     * Hash the files of a directory in parallel, the number of concurrent hashes
+     * is adjusted by the controller
+     * @param controller the controller, null to hash one file at a time
+     */
+    public void setConcurrencyController(ConcurrencyController controller)
+    {
+        this.controller = controller;
+    }
+    
+    /**
+     * Index the files and the sub-directories in inode order, see {@link DiskOrder}
+     * @param diskOrder true to sort by inode, false for the order of the directory stream
+     */
+    public void setDiskOrder(boolean diskOrder)
+    {
+        this.diskOrder = diskOrder;
+    }
+    
+    /**
+     * Receive the progress of indexTree and listDuplicates, see {@link ProgressTracker}
+     * @param progressListener the listener, null for no progress; logs by default
+     */
+    public void setProgressListener(ProgressListener progressListener)
+    {
+        this.progressListener = progressListener;
+    }
+    
+    public ProgressListener getProgressListener()
+    {
+        return progressListener;
+    }
+    
+    /**
+     * Store the indexes in extended attributes, see {@link XattrIndexStore}. <br>
+     * Directories on file systems without extended attributes, and all directories
+     * in shadow mode, keep an .index file.
+     * @param xattrIndex true to use extended attributes when supported
+     */
+    public void setXattrIndex(boolean xattrIndex)
+    {
+        this.xattrIndex = xattrIndex;
+    }
+    
+    /**
+     * Read the .index files on demand, for huge directories, see {@link LazyDirInfo}
+     * @param lazyIndex true to keep a sorted copy of each index and map it in memory
+     */
+    public void setLazyIndex(boolean lazyIndex)
+    {
+        this.lazyIndex = lazyIndex;
+    }
+    
+    /**
+     * Compute the location of the index of a directory. <br>
+     * In the shadow tree, the index of /a/b (or C:\a\b) is shadowRoot/a/b/.index
+     * (or shadowRoot/C/a/b/.index). A source directory named .index cannot be shadowed.
+     * @param path the indexed directory
+     * @return the index file
+     */
+    public Path getIndexFile(Path path)
+    {
+        if (shadowRoot == null) {
+            return path.resolve(DirInfo.IDXFILE);
+        }
+        Path absolute = path.toAbsolutePath().normalize();
+        Path result = shadowRoot;
+        if (absolute.getRoot() != null) {
+            String root = absolute.getRoot().toString().replaceAll("[\\\\/:]+", "_").replaceAll("^_|_$", "");
+            if (!root.isEmpty()) {
+                result = result.resolve(root);
+            }
+        }
+        for (Path element : absolute) {
+            result = result.resolve(element.toString());
+        }
+        return result.resolve(DirInfo.IDXFILE);
+    }
+    
+    /**
+     * Load the index of a directory, in extended attributes, in the directory or in the shadow tree
+     * @param path the indexed directory
+     * @return the index
+     * @throws IOException
+     * @throws InvalidIndexException
+     */
+    public IndexStore openIndex(Path path) throws IOException, InvalidIndexException
+    {
+        long start = HotSpotProfiler.getDefault().start();
+        IndexStore result;
+        if (xattrIndex && shadowRoot == null && XattrIndexStore.isSupported(path)) {
+            result = new XattrIndexStore(path);
+        } else if (lazyIndex) {
+            result = new LazyDirInfo(path, getIndexFile(path));
+        } else {
+            result = new DirInfo(path, getIndexFile(path));
+        }
+        result.setHashCache(hashCache);
+        HotSpotProfiler.getDefault().record(path, HotSpotProfiler.Phase.LOAD_INDEX, start);
+        return result;
+    }
+    
     /**
      * Index a directory : for each file, ask DirInfo object to check
      * registration
@@ -52,16 +194,101 @@ public class DirChecker {
      */
     public void indexFolder(Path path) throws IOException, InvalidIndexException, NoSuchAlgorithmException
     {
-        DirInfo index = new DirInfo(path);
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
-            for (Path p : stream) { // cannot use stream.forEach because of IOException
-                if (Files.isRegularFile(p)) {
-                    index.addIfNeeded(p);
-                }
+        indexFolder(path, new ProgressTracker("index", null));
+    }
+    
+    private void indexFolder(Path path, ProgressTracker tracker) throws IOException, InvalidIndexException, NoSuchAlgorithmException
+    {
+        IndexStore index = openIndex(path);
+        if (controller != null) {
+            indexFolderParallel(path, index, tracker);
+            return;
+        }
+        FsEvents.FolderIndexEvent event = new FsEvents.FolderIndexEvent();
+        event.begin();
+        int files = 0;
+        int hashed = 0;
+        for (Path p : DiskOrder.list(path, diskOrder)) {
+            String name = p.getFileName().toString();
+            if (!Files.isRegularFile(p) || DirInfo.isReservedName(name)) {
+                continue;
+            }
+            files++;
+            // same as addIfNeeded, counting the files hashed
+            long start = HotSpotProfiler.getDefault().start();
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            boolean upToDate = index.isUpToDate(name, attrs);
+            HotSpotProfiler.getDefault().record(path, HotSpotProfiler.Phase.STAT, start);
+            if (!upToDate) {
+                index.update(name, attrs, HashCache.computeSha256(hashCache, p, attrs));
+                hashed++;
             }
+            tracker.fileDone(attrs.size());
         }
+        commit(event, path, files, hashed);
         LOG.debug(String.format("Folder %s indexed", path));
     }
+    
+    private static void commit(FsEvents.FolderIndexEvent event, Path path, int files, int hashed)
+    {
+        event.end();
+        if (event.shouldCommit()) {
+            event.directory = path.toString();
+            event.files = files;
+            event.hashed = hashed;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Find the files to hash, hash them in the pool of the controller and
+     * update the index from this thread
+     */
+    private void indexFolderParallel(Path path, IndexStore index, ProgressTracker tracker)
+        throws IOException, NoSuchAlgorithmException
+    {
+        Map<String, BasicFileAttributes> stale = new HashMap<>();
+        Map<String, Future<String>> hashes = new LinkedHashMap<>(); // submission order
+        FsEvents.FolderIndexEvent event = new FsEvents.FolderIndexEvent();
+        event.begin();
+        int files = 0;
+        for (Path p : DiskOrder.list(path, diskOrder)) {
+            String name = p.getFileName().toString();
+            if (!Files.isRegularFile(p) || DirInfo.isReservedName(name)) {
+                continue;
+            }
+            files++;
+            long start = HotSpotProfiler.getDefault().start();
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            boolean upToDate = index.isUpToDate(name, attrs);
+            HotSpotProfiler.getDefault().record(path, HotSpotProfiler.Phase.STAT, start);
+            if (!upToDate) {
+                stale.put(name, attrs);
+                hashes.put(name, controller.submit(attrs.size(), () -> HashCache.computeSha256(hashCache, p, attrs)));
+            } else {
+                tracker.fileDone(attrs.size());
+            }
+        }
+        for (Map.Entry<String, Future<String>> entry : hashes.entrySet()) {
+            try {
+                index.update(entry.getKey(), stale.get(entry.getKey()), entry.getValue().get());
+                tracker.fileDone(stale.get(entry.getKey()).size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("indexing %s", path));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof NoSuchAlgorithmException) {
+                    throw (NoSuchAlgorithmException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        commit(event, path, files, hashes.size());
+        LOG.debug(String.format("Folder %s indexed, %d files hashed", path, hashes.size()));
+    }
 
     /**
      * Index a directory and all its subdirectories
@@ -72,16 +299,37 @@ public class DirChecker {
      */
     public void indexTree(Path path) throws NoSuchAlgorithmException, IOException, InvalidIndexException
     {
-        indexFolder(path);
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
-            for (Path p : stream) { // cannot use stream.forEach because of IOException
-                if (Files.isDirectory(p)
-                    && !isSpecialDir(p))
-                {
-                    indexTree(p);
-                }
+        ProgressTracker tracker = new ProgressTracker("index", progressListener);
+        tracker.directoriesFound(1);
+        indexTree(path, tracker);
+        tracker.finish();
+    }
+    
+    private void indexTree(Path path, ProgressTracker tracker) throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        indexFolder(path, tracker);
+        List<Path> subDirs = listSubDirs(path);
+        tracker.directoriesFound(subDirs.size());
+        tracker.directoryDone();
+        for (Path p : subDirs) {
+            indexTree(p, tracker);
+        }
+    }
+    
+    /**
+     * @return the sub-directories to walk, in disk order if selected
+     */
+    private List<Path> listSubDirs(Path path) throws IOException
+    {
+        List<Path> result = new ArrayList<>();
+        for (Path p : DiskOrder.list(path, diskOrder)) {
+            if (Files.isDirectory(p)
+                && !isSpecialDir(p))
+            {
+                result.add(p);
             }
         }
+        return result;
     }
     
     /**
@@ -95,77 +343,97 @@ public class DirChecker {
     public void listDuplicates(Path path, long threshold) throws IOException, InvalidIndexException
     {
         HashMap<String, ArrayList<Object>> everything = new HashMap<>();
-        LOG.info("counting folders");
-        int n = countFolders(path, 0);
-        LOG.info(String.format("%d folders found", n));
-        findEverything(path, everything, n, 0, threshold);
+        findEverything(path, everything, threshold);
         logDuplicates(everything);
         // sortLogDuplicates(everything);
     }
-    
+
     /**
-     * Recursively count the folders in a location.
+     * Record a whole hierarchy in a map, using their hash, e.g. to find duplicates.
+     * <p>
+     * Uses recursion. The progress goes to the listener, see {@link #setProgressListener(ProgressListener)}.
      *
-     * @param path folder to search
-     * @param current used to track progress
-     * @return number of folders and sub-folders (at least 1)
+     * @param path : directory to search
+     * @param everything : map where files are recorded by their hashes
+     * @param threshold : can be used to skip small files
+     * @return number of directories processed
      * @throws IOException
+     * @throws InvalidIndexException
      */
-    public int countFolders(Path path, int current) throws IOException
+    public long findEverything(Path path, HashMap<String, ArrayList<Object>> everything, long threshold)
+        throws IOException, InvalidIndexException
     {
-        int result = 1;
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
-            for (Path p : stream) { // cannot use stream.forEach because of IOException
-                if (Files.isDirectory(p)
-                    && !isSpecialDir(p))
-                {
-                    int progress = current + result;
-                    if (progress % 10 == 0) {
-                        LOG.info(String.format("%d folders", progress));
-                    }
-                    result += countFolders(p, progress);
-                }
-            }
-        }
-        return result;
+        ProgressTracker tracker = new ProgressTracker("duplicates", progressListener);
+        tracker.directoriesFound(1);
+        findEverything(path, everything, threshold, tracker);
+        tracker.finish();
+        return tracker.snapshot().getDirsDone();
     }
-
+    
     /**
      * Record a whole hierarchy in a map, using their hash, e.g. to find duplicates.
-     * <p>
-     * Uses recursion.
      *
      * @param path : directory to search
      * @param everything : map where files are recorded by their hashes
-     * @param total : number of directories in hierarchy
-     * @param current : number of directories processed (tracks progress)
+     * @param total : ignored, the progress goes to the listener
+     * @param current : ignored
      * @param threshold : can be used to skip small files
-     * @return number of directories processed (tracks progress)
+     * @return number of directories processed
      * @throws IOException
      * @throws InvalidIndexException
+     * @deprecated the progress is tracked without a count of the directories,
+     * use {@link #findEverything(Path, HashMap, long)}
      */
+    @Deprecated
     public int findEverything(Path path, HashMap<String, ArrayList<Object>> everything, int total,
         int current, long threshold) throws IOException, InvalidIndexException
+    {
+        return (int) findEverything(path, everything, threshold);
+    }
+    
+    /**
+     * Recursively count the folders in a location.
+     *
+     * @param path folder to search
+     * @param current used to track progress
+     * @return number of folders and sub-folders (at least 1)
+     * @throws IOException
+     * @deprecated listDuplicates no longer counts the folders beforehand, the
+     * progress is reported by a {@link ProgressTracker}
+     */
+    @Deprecated
+    public int countFolders(Path path, int current) throws IOException
     {
         int result = 1;
-        DirInfo index = new DirInfo(path);
-        recordDir(path, index, everything, threshold);
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
             for (Path p : stream) { // cannot use stream.forEach because of IOException
                 if (Files.isDirectory(p)
                     && !isSpecialDir(p))
                 {
                     int progress = current + result;
-                    if (progress % 100 == 0) {
-                        LOG.info(String.format("progress %d/%d", progress, total));
+                    if (progress % 10 == 0) {
+                        LOG.info(String.format("%d folders", progress));
                     }
-                    result += findEverything(p, everything, total, progress, threshold);
+                    result += countFolders(p, progress);
                 }
             }
         }
         return result;
     }
     
+    private void findEverything(Path path, HashMap<String, ArrayList<Object>> everything, long threshold,
+        ProgressTracker tracker) throws IOException, InvalidIndexException
+    {
+        IndexStore index = openIndex(path);
+        recordDir(path, index, everything, threshold, tracker);
+        List<Path> subDirs = listSubDirs(path);
+        tracker.directoriesFound(subDirs.size());
+        tracker.directoryDone();
+        for (Path p : subDirs) {
+            findEverything(p, everything, threshold, tracker);
+        }
+    }
+    
     public boolean isSpecialDir(Path p)
     {
         String name = p.getFileName().toString();
@@ -184,11 +452,13 @@ public class DirChecker {
      * @param index : list of files
      * @param everything : map where files are recorded by their hashes
      * @param threshold : can be used to skip small files
+     * @param tracker : counts the files
      */
-    private void recordDir(Path path, DirInfo index, HashMap<String, ArrayList<Object>> everything,
-        long threshold)
+    private void recordDir(Path path, IndexStore index, HashMap<String, ArrayList<Object>> everything,
+        long threshold, ProgressTracker tracker) throws IOException
     {
-        for (FileInfo current : index.getFiles()) {
+        for (FileInfo current : index.nameView().values()) {
+            tracker.fileDone(current.getSize());
             if (current.getSize() < threshold) {
                 continue;
             }
@@ -268,7 +538,8 @@ public class DirChecker {
      */
     public void sweepFolder(Path path) throws IOException, InvalidIndexException, NoSuchAlgorithmException
     {
-        DirInfo index = new DirInfo(path);
+        IndexStore index = openIndex(path);
+        long start = HotSpotProfiler.getDefault().start(); // the removals are in the append phase
         Map<String, FileInfo> nameIndex = index.getNameIndex();
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
             for (Path p : stream) { // cannot use stream.forEach because of IOException
@@ -277,12 +548,17 @@ public class DirChecker {
                 }
             }
         }
+        HotSpotProfiler.getDefault().record(path, HotSpotProfiler.Phase.SWEEP, start);
         for (FileInfo fileInfo : nameIndex.values()) {
             LOG.debug(String.format("File %s removed from index", fileInfo.getName()));
-            index.removeFromIndex(fileInfo);
+        }
+        if (!nameIndex.isEmpty()) {
+            // one lock and one pass over the index for all the entries
+            index.removeFromIndex(new ArrayList<>(nameIndex.values()));
             // TODO ensure consistency if we try to remove something
             // just before adding it !(?)
         }
+        index.compactIfNeeded();
         LOG.debug(String.format("Folder %s swept", path));
     }
 
@@ -23,41 +23,78 @@
  */
 package com.batmgr.filesystem;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Manage the indexation of one directory
+ * Manage the indexation of one directory, in an .index file
+ * <p>
+ * Thread-safe, and several processes may share the index. Appends and
+ * removals take an {@link IndexLock} on the index, then read the lines
+ * written since by other instances, so that the offsets of new lines and
+ * flags are always right. Readers take no lock: they see the entries as of
+ * the last write or load of this instance, and the views are weakly
+ * consistent. Removals made by other processes are seen at the next load.
  */
-public class DirInfo {
+public class DirInfo implements IndexStore {
+
+    private static final Logger    LOG          = LoggerFactory.getLogger(DirInfo.class);
 
     public static final String     IDXFILE      = ".index";
     public static final String     IDXCHARSET   = "UTF-8";
-    private static final String    IDXSIGNATURE = "DIRECTORY INDEX - NO REAL DATA IN THIS FILE - VERSION 1";
+    public static final String     TMP_FILE     = IDXFILE + ".tmp";
+    static final String            NEW_SUFFIX   = ".new";                                                   // index being created
+    private static final int       COMPACT_MIN  = 1000;                                                     // removed entries kept in any case
+    private static final int       BUFFER_SIZE  = 64 * 1024;
+    static final String            IDXSIGNATURE = "DIRECTORY INDEX - NO REAL DATA IN THIS FILE - VERSION 1";
 
-    private Map<String, FileInfo>  nameIndex;                                                               // key is file name (unique)
-    private Map<String, FileInfo>  hashIndex;                                                               // key is content hash (not unique)
-    private Map<FileInfo, Integer> locations;                                                               // locations in index file
+    private final Map<String, FileInfo> nameIndex = new ConcurrentHashMap<>();                              // key is file name (unique)
+    private final Map<String, List<FileInfo>> hashIndex = new ConcurrentHashMap<>();                        // key is content hash (not unique), read-only lists
+    private final Map<FileInfo, Integer> locations = new ConcurrentHashMap<>();                             // locations in index file
+    private volatile int           removed;                                                                 // removed entries in index file
+    private volatile long          size;                                                                    // bytes of index file read, complete lines only
+    private volatile long          generation;                                                              // generation of index file read, see IndexLock
                                                                                                              
     private Path                   path;
     private Path                   indexFile;
+    private HashCache              hashCache;                                                               // null if none
+
+    /**
+     * Receives the entries of the index, removed ones included
+     */
+    interface LineHandler {
+        void accept(FileInfo fileInfo, int location) throws IOException, InvalidIndexException;
+    }
     
     /**
      * Load the index in this directory
@@ -66,60 +103,248 @@ public class DirInfo {
      * @throws InvalidIndexException
      */
     public DirInfo(Path path) throws IOException, InvalidIndexException {
+        this(path, path.resolve(IDXFILE));
+    }
+
+    /**
+     * Load the index of this directory, stored in another location
+     * @param path the indexed directory
+     * @param indexFile the index, e.g. in a shadow tree for a read-only directory
+     * @throws IOException
+     * @throws InvalidIndexException
+     */
+    public DirInfo(Path path, Path indexFile) throws IOException, InvalidIndexException {
         this.path = path;
-        indexFile = path.resolve(IDXFILE);
-        nameIndex = new HashMap<>();
-        hashIndex = new HashMap<>();
-        locations = new HashMap<>();
+        this.indexFile = indexFile;
         createIndexIfNeeded();
         readIndex();
     }
 
+    /**
+     * Files used by the tools themselves are never indexed
+     * @param name a file name
+     * @return true for the index and temporary files
+     */
+    public static boolean isReservedName(String name)
+    {
+        return name.equals(IDXFILE)
+            || name.equals(TMP_FILE)
+            || name.equals(IDXFILE + IndexLock.LOCK_SUFFIX)
+            || name.startsWith(IDXFILE) && name.endsWith(NEW_SUFFIX)
+            || name.equals(SyncJournal.JOURNAL_FILE)
+            || name.equals(SyncJournal.TMP_FILE)
+            || name.equals(Scrubber.CURSOR_FILE)
+            || name.equals(Scrubber.TMP_FILE)
+            || name.equals(LazyDirInfo.SORTED_FILE)
+            || name.equals(LazyDirInfo.TMP_FILE)
+            || name.equals(LazyDirInfo.FILTER_FILE)
+            || name.equals(LazyDirInfo.FILTER_TMP_FILE)
+            || name.endsWith(SyncJournal.PART_SUFFIX)
+            || name.endsWith(DeltaCopier.TMP_SUFFIX);
+    }
+
+    /**
+     * Consult a cache of hashes before reading new or modified files
+     * @param hashCache the cache, null to always compute the hashes
+     */
+    public void setHashCache(HashCache hashCache)
+    {
+        this.hashCache = hashCache;
+    }
+
     public void createIndexIfNeeded() throws IOException
+    {
+        createIndexIfNeeded(path, indexFile);
+    }
+
+    /**
+     * Write an empty index, with its signature. <br>
+     * The index is written aside then linked, so that other processes never
+     * see it empty, and the first one to link it wins.
+     * @param path the indexed directory
+     * @param indexFile the index
+     * @throws IOException
+     */
+    static void createIndexIfNeeded(Path path, Path indexFile) throws IOException
     {
         if (Files.exists(indexFile)) {
             return;
         }
-        try (BufferedWriter writer = Files.newBufferedWriter(indexFile, Charset.forName(IDXCHARSET))) {
-            writer.write(String.format("%s\r\n", IDXSIGNATURE));
+        if (!indexFile.getParent().equals(path)) {
+            Files.createDirectories(indexFile.getParent());
+        }
+        Path tmp = Files.createTempFile(indexFile.getParent(), IDXFILE, NEW_SUFFIX);
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, Charset.forName(IDXCHARSET))) {
+                writer.write(String.format("%s\r\n", IDXSIGNATURE));
+            }
+            try {
+                Files.createLink(indexFile, tmp);
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (IOException | UnsupportedOperationException e) {
+                // no hard links, e.g. vfat, exFAT or SMB: fails too if the index exists
+                Files.move(tmp, indexFile);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // created meanwhile by another process
+        } finally {
+            Files.deleteIfExists(tmp);
         }
     }
 
     /**
-     * Read the index, one line per file
+     * Read the index, one line per file. <br>
+     * A line being appended by another process is left for the next write.
      * @throws IOException if the index doesn't exist or cannot be read
      * @throws InvalidIndexException if the index is corrupted
      */
     public void readIndex() throws IOException, InvalidIndexException {
-        try (InputStream in = Files.newInputStream(indexFile);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in, IDXCHARSET))) {
-            String line;
-            int start = 0; // position in file (bytes)
-            while ((line = reader.readLine()) != null) {
+        // read first: an index replaced meanwhile is read again at the next write
+        long gen = IndexLock.generation(indexFile);
+        try (FileChannel fc = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            load(fc, gen);
+        }
+    }
+
+    /**
+     * Read the whole index and replace the entries, in place for the views
+     * @param fc the index
+     * @param gen the generation of the index, read before it
+     * @throws IOException
+     * @throws InvalidIndexException
+     */
+    private void load(FileChannel fc, long gen) throws IOException, InvalidIndexException
+    {
+        FsEvents.IndexReadEvent event = new FsEvents.IndexReadEvent();
+        event.begin();
+        Map<String, FileInfo> names = new HashMap<>();
+        Map<FileInfo, Integer> locs = new HashMap<>();
+        int[] dead = new int[1];
+        long end = parse(fc, 0, indexFile, (fi, location) -> {
+            if (fi.isRemovedFlagSet()) {
+                dead[0]++;
+                return;
+            }
+            FileInfo previous = names.get(fi.getName());
+            if (previous != null) {
+                // the flag of the previous entry may have been written after it was read
+                if (!isRemovedOnDisk(fc, locs.get(previous).intValue(), indexFile)) {
+                    throw new InvalidIndexException(String.format("multiple occurrences of name %s in index", fi.getName()));
+                }
+                previous.setRemovedFlag();
+                locs.remove(previous);
+                dead[0]++;
+            }
+            names.put(fi.getName(), fi);
+            locs.put(fi, Integer.valueOf(location));
+        });
+        Set<FileInfo> old = new HashSet<>(locations.keySet());
+        for (Map.Entry<FileInfo, Integer> entry : locs.entrySet()) {
+            put(entry.getKey(), entry.getValue().intValue());
+        }
+        for (FileInfo fileInfo : old) {
+            discard(fileInfo);
+        }
+        removed = dead[0];
+        size = end;
+        generation = gen;
+        event.end();
+        if (event.shouldCommit()) {
+            event.indexFile = indexFile.toString();
+            event.entries = nameIndex.size();
+            event.bytes = end;
+            event.commit();
+        }
+    }
+
+    /**
+     * Read the complete lines of an index from a position, a line being
+     * appended is left out
+     * @param fc the index
+     * @param from the start of a line, 0 to check the signature
+     * @param indexFile the index, for the messages
+     * @param handler receives the entries
+     * @return the position after the last complete line
+     * @throws IOException
+     * @throws InvalidIndexException
+     */
+    static long parse(FileChannel fc, long from, Path indexFile, LineHandler handler) throws IOException, InvalidIndexException
+    {
+        byte[] data = new byte[BUFFER_SIZE];
+        int filled = 0;
+        int scanned = 0;
+        long position = from; // start of the next line in file (bytes)
+        while (true) {
+            if (filled == data.length) {
+                data = Arrays.copyOf(data, data.length * 2); // line longer than the buffer
+            }
+            int n = fc.read(ByteBuffer.wrap(data, filled, data.length - filled), position + filled);
+            if (n <= 0) {
+                break;
+            }
+            filled += n;
+            int lineStart = 0;
+            for (; scanned < filled; scanned++) {
+                if (data[scanned] != '\n') {
+                    continue;
+                }
+                int length = scanned - lineStart;
+                if (length > 0 && data[scanned - 1] == '\r') {
+                    length--;
+                }
+                String line = new String(data, lineStart, length, IDXCHARSET);
                 // require signature on 1st line
-                if (start == 0) {
+                if (position == 0) {
                     if (!line.equals(IDXSIGNATURE)) {
                         throw new InvalidIndexException(indexFile + ": has an invalid signature");
                     }
-                    start += IDXSIGNATURE.length() + 2;
-                    continue;
+                } else {
+                    handler.accept(parseLine(line, indexFile), (int) position);
                 }
-                indexLine(line, indexFile, start);
-                start += line.getBytes(IDXCHARSET).length + 2;
-            }
-            if (start == 0) {
-                throw new InvalidIndexException(indexFile + ": is empty");
+                position += scanned + 1 - lineStart;
+                lineStart = scanned + 1;
             }
+            System.arraycopy(data, lineStart, data, 0, filled - lineStart);
+            filled -= lineStart;
+            scanned -= lineStart;
         }
+        if (position == 0) {
+            throw new InvalidIndexException(indexFile + (filled == 0 ? ": is empty" : ": has an invalid signature"));
+        }
+        return position;
     }
 
     /**
      * Parse one line and add it to the index (unless it has flag removed).
      * @param line the input
      * @param indexFile the file for logging
+     * @param start the location of the line in the index
      * @throws InvalidIndexException
+     * @deprecated the index is read with {@link #readIndex()} and written with
+     * {@link #appendToIndex(FileInfo)}, which keep the other instances in sync
      */
+    @Deprecated
     public void indexLine(String line, Path indexFile, int start) throws InvalidIndexException
+    {
+        FileInfo fi = parseLine(line, indexFile);
+        if (fi.isRemovedFlagSet()) {
+            return;
+        }
+        if (nameIndex.containsKey(fi.getName())) {
+            throw new InvalidIndexException(String.format("multiple occurrences of name %s in index", fi.getName()));
+        }
+        put(fi, start);
+    }
+
+    /**
+     * Parse one line of an index
+     * @param line the input
+     * @param indexFile the index, for the messages
+     * @return the entry, possibly with flag removed
+     * @throws InvalidIndexException
+     */
+    private static FileInfo parseLine(String line, Path indexFile) throws InvalidIndexException
     {
         FileInfo fi;
         try {
@@ -127,16 +352,91 @@ public class DirInfo {
         } catch (IllegalArgumentException e) {
             throw new InvalidIndexException(String.format("%s: %s", indexFile, e.getMessage()));
         }
-        if (fi.isRemovedFlagSet()) {
-            return;
+        Metrics.getDefault().indexLineParsed();
+        return fi;
+    }
+
+    /**
+     * @return true if the entry at this location is flagged removed in the file
+     */
+    static boolean isRemovedOnDisk(FileChannel fc, int location, Path indexFile) throws IOException, InvalidIndexException
+    {
+        long offset = FileInfo.flagsLocation(location);
+        ByteBuffer flags = ByteBuffer.allocate(4);
+        while (flags.hasRemaining() && fc.read(flags, offset + flags.position()) > 0) {
+            // read the 4 hex digits
         }
-        if (nameIndex.containsKey(fi.getName())) {
-            throw new InvalidIndexException(String.format("multiple occurrences of name %s in index", fi.getName()));
+        try {
+            return (Integer.parseInt(new String(flags.array(), IDXCHARSET), 16) & FileInfo.FLAG_REMOVED) != 0;
+        } catch (NumberFormatException e) {
+            throw new InvalidIndexException(String.format("%s: invalid flags at %d", indexFile, Long.valueOf(offset)));
+        }
+    }
+
+    /**
+     * Read the lines written by other instances since the last load or write. <br>
+     * The whole index is read again if it was replaced, e.g. by a compaction, or truncated.
+     * @param lock the lock of the index
+     * @throws IOException
+     */
+    private void catchUp(IndexLock lock) throws IOException
+    {
+        FileChannel fc = lock.channel();
+        try {
+            if (lock.generation() != generation || fc.size() < size) {
+                LOG.debug(String.format("%s: replaced, read again", indexFile));
+                load(fc, lock.generation());
+            } else if (fc.size() > size) {
+                size = parse(fc, size, indexFile, (fi, location) -> {
+                    // a writer flags the previous entry of a name before appending the new one
+                    if (fi.isRemovedFlagSet() || nameIndex.containsKey(fi.getName())) {
+                        removed++;
+                    }
+                    if (!fi.isRemovedFlagSet()) {
+                        put(fi, location);
+                    }
+                });
+            }
+        } catch (InvalidIndexException e) {
+            throw new IOException(e.getMessage(), e);
         }
-        // several files can have the same hash
-        nameIndex.put(fi.getName(), fi);
-        hashIndex.put(fi.getHash(), fi); // TODO use list
-        locations.put(fi, start);
+    }
+
+    /**
+     * Add an entry, replacing the previous one of the same name in memory. <br>
+     * The location is recorded first, so that readers finding the entry find its location.
+     */
+    private void put(FileInfo fileInfo, int location)
+    {
+        locations.put(fileInfo, Integer.valueOf(location));
+        // several files can have the same hash, usually one
+        hashIndex.merge(fileInfo.getHash(), Collections.singletonList(fileInfo), DirInfo::concat);
+        FileInfo previous = nameIndex.put(fileInfo.getName(), fileInfo);
+        if (previous != null && previous != fileInfo) {
+            discard(previous);
+        }
+    }
+
+    private static List<FileInfo> concat(List<FileInfo> a, List<FileInfo> b)
+    {
+        List<FileInfo> result = new ArrayList<>(a.size() + b.size());
+        result.addAll(a);
+        result.addAll(b);
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Drop an entry from memory, unless it was already replaced
+     */
+    private void discard(FileInfo fileInfo)
+    {
+        nameIndex.remove(fileInfo.getName(), fileInfo);
+        hashIndex.computeIfPresent(fileInfo.getHash(), (h, sameHash) -> {
+            List<FileInfo> result = new ArrayList<>(sameHash);
+            result.remove(fileInfo);
+            return result.isEmpty() ? null : Collections.unmodifiableList(result);
+        });
+        locations.remove(fileInfo);
     }
     
     /**
@@ -150,14 +450,28 @@ public class DirInfo {
      */
     public void addIfNeeded(Path p) throws IOException, NoSuchAlgorithmException
     {
-        // always skip IDXFILE
-        if (p.getFileName().toString().equals(IDXFILE)) {
+        // always skip IDXFILE and work files
+        if (isReservedName(p.getFileName().toString())) {
             return;
         }
         // compute properties
         String name = p.getFileName().toString();
-        long size = Files.size(p);
-        FileTime lastModif = Files.getLastModifiedTime(p);
+        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        if (isUpToDate(name, attrs)) {
+            return; // same file
+        }
+        // reindex, a file renamed or moved can be found in the cache
+        update(name, attrs, HashCache.computeSha256(hashCache, p, attrs));
+    }
+    
+    /**
+     * Compare size and last update with the entry of a file
+     * @param name the file name
+     * @param attrs the current attributes of the file
+     * @return true if the entry is up to date, false if the file must be hashed
+     */
+    public boolean isUpToDate(String name, BasicFileAttributes attrs)
+    {
         // search by filename
         FileInfo fileInfo = nameIndex.get(name);
         // the next statement makes the index system efficient
@@ -165,20 +479,24 @@ public class DirInfo {
         // or writes could happen in the file during the second
         // elapsed after the fileTime was stored in the index,
         // or the index could be hacked
-        if (fileInfo != null
-            && fileInfo.getSize() == size
-            && fileInfo.getLastModif().compareTo(fileInfo.secondFileTime(lastModif)) == 0)
-        {
-            return; // same file
-        }
-        // remove obsolete entry
-        if (fileInfo != null) {
-            removeFromIndex(fileInfo);
-        }
-        // reindex
-        String hash = new FileChecker().computeSha256(p);
-        fileInfo = new FileInfo(name, size, lastModif, hash, 0);
-        appendToIndex(fileInfo);
+        boolean upToDate = fileInfo != null
+            && fileInfo.getSize() == attrs.size()
+            && fileInfo.getLastModif().compareTo(fileInfo.secondFileTime(attrs.lastModifiedTime())) == 0;
+        Metrics.getDefault().fileSeen(upToDate);
+        return upToDate;
+    }
+    
+    /**
+     * Replace the entry of a file, e.g. after hashing it outside of the index
+     * @param name the file name
+     * @param attrs the attributes read before hashing
+     * @param hash the new hash
+     * @throws IOException
+     */
+    public void update(String name, BasicFileAttributes attrs, String hash) throws IOException
+    {
+        // the obsolete entry is removed with the same lock
+        appendToIndex(new FileInfo(name, attrs.size(), attrs.lastModifiedTime(), hash, 0));
     }
     
     /**
@@ -190,12 +508,64 @@ public class DirInfo {
      */
     public void appendToIndex(FileInfo fileInfo) throws UnsupportedEncodingException, IOException
     {
-        int location = (int) Files.size(indexFile);
-        Files.write(indexFile, String.format("%s\r\n", fileInfo).getBytes(IDXCHARSET), StandardOpenOption.APPEND);
-        // update indexes if write is successful
-        nameIndex.put(fileInfo.getName(), fileInfo);
-        hashIndex.put(fileInfo.getHash(), fileInfo);
-        locations.put(fileInfo, location);
+        FsEvents.IndexWriteEvent event = new FsEvents.IndexWriteEvent();
+        event.begin();
+        long start = HotSpotProfiler.getDefault().start();
+        byte[] line = String.format("%s\r\n", fileInfo).getBytes(IDXCHARSET);
+        try (IndexLock lock = IndexLock.acquire(indexFile)) {
+            catchUp(lock);
+            FileChannel fc = lock.channel();
+            FileInfo previous = nameIndex.get(fileInfo.getName());
+            if (previous != null && previous != fileInfo) {
+                tombstone(fc, previous);
+            }
+            // the end of the file cannot move while the lock is held
+            int location = (int) fc.size();
+            write(fc, line, location);
+            size = location + line.length;
+            // update indexes if write is successful
+            put(fileInfo, location);
+        }
+        Metrics.getDefault().indexLineWritten();
+        HotSpotProfiler.getDefault().record(path, HotSpotProfiler.Phase.APPEND, start);
+        commit(event, "append", 1, line.length);
+    }
+
+    private static void write(FileChannel fc, byte[] bytes, long position) throws IOException
+    {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        while (byteBuffer.hasRemaining()) {
+            fc.write(byteBuffer, position + byteBuffer.position());
+        }
+    }
+
+    /**
+     * Flag an entry removed in the file and drop it from memory. <br>
+     * An entry replaced since by a reload is looked for by name and hash; if
+     * none is found it was removed by another instance.
+     * @return the bytes written
+     */
+    private int tombstone(FileChannel fc, FileInfo fileInfo) throws IOException
+    {
+        FileInfo current = fileInfo;
+        Integer loc = locations.get(current);
+        if (loc == null) {
+            current = nameIndex.get(fileInfo.getName());
+            loc = current == null ? null : locations.get(current);
+            if (loc == null || !current.getHash().equals(fileInfo.getHash())) {
+                LOG.debug(String.format("%s: %s already removed", indexFile, fileInfo.getName()));
+                fileInfo.setRemovedFlag();
+                return 0;
+            }
+        }
+        fileInfo.setRemovedFlag();
+        current.setRemovedFlag();
+        byte[] flags = current.getFlagsString().getBytes(IDXCHARSET);
+        write(fc, flags, current.getFlagsLocation(loc));
+        Metrics.getDefault().tombstoneWritten();
+        discard(current);
+        removed++;
+        return flags.length;
     }
 
     /**
@@ -205,21 +575,104 @@ public class DirInfo {
      */
     public void removeFromIndex(FileInfo fileInfo) throws IOException
     {
-        Integer loc = locations.get(fileInfo);
-        if (loc == null) {
-            throw new IllegalArgumentException("file location is unknown");
+        removeFromIndex(Collections.singletonList(fileInfo));
+    }
+    
+    private void commit(FsEvents.IndexWriteEvent event, String operation, int entries, long bytes)
+    {
+        event.end();
+        if (event.shouldCommit()) {
+            event.indexFile = indexFile.toString();
+            event.operation = operation;
+            event.entries = entries;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Several entries are obsolete, update their flags with a single lock of the index.
+     * @param fileInfos entries to remove
+     * @throws IOException
+     */
+    public void removeFromIndex(Collection<FileInfo> fileInfos) throws IOException
+    {
+        if (fileInfos.isEmpty()) {
+            return;
         }
-        try (FileChannel fc = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
-            fc.position(fileInfo.getFlagsLocation(loc));
-            fileInfo.setRemovedFlag();
-            ByteBuffer byteBuffer = ByteBuffer.wrap(fileInfo.getFlagsString().getBytes(IDXCHARSET));
-            fc.write(byteBuffer);
+        FsEvents.IndexWriteEvent event = new FsEvents.IndexWriteEvent();
+        event.begin();
+        long start = HotSpotProfiler.getDefault().start();
+        long bytes = 0;
+        try (IndexLock lock = IndexLock.acquire(indexFile)) {
+            catchUp(lock);
+            for (FileInfo fileInfo : fileInfos) {
+                bytes += tombstone(lock.channel(), fileInfo);
+            }
         }
-        nameIndex.remove(fileInfo.getName());
-        hashIndex.remove(fileInfo.getHash());
-        locations.remove(fileInfo);
+        HotSpotProfiler.getDefault().record(path, HotSpotProfiler.Phase.APPEND, start);
+        commit(event, "remove", fileInfos.size(), bytes);
     }
     
+    /**
+     * Rewrite the index without its removed entries, when they outnumber the
+     * live ones. <br>
+     * The sorted index and the filter of {@link LazyDirInfo} are deleted, they
+     * are built again when needed. Other instances read the new index at
+     * their next write. On Windows, the index cannot be replaced while a
+     * {@link LazyDirInfo} maps it: the compaction waits for a later call.
+     * @return true if the index was rewritten
+     * @throws IOException
+     */
+    public boolean compactIfNeeded() throws IOException
+    {
+        if (removed < COMPACT_MIN || removed <= locations.size()) {
+            return false;
+        }
+        try (IndexLock lock = IndexLock.acquire(indexFile)) {
+            catchUp(lock);
+            if (removed < COMPACT_MIN || removed <= locations.size()) {
+                return false;
+            }
+            LOG.info(String.format("%s: %d removed entries, compact", indexFile, Integer.valueOf(removed)));
+            List<Map.Entry<FileInfo, Integer>> live = new ArrayList<>(locations.entrySet());
+            live.sort(Map.Entry.comparingByValue()); // keep the order of the lines
+            Map<FileInfo, Integer> newLocations = new HashMap<>();
+            Path tmp = indexFile.resolveSibling(TMP_FILE);
+            int location;
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(fc), BUFFER_SIZE);
+                byte[] signature = String.format("%s\r\n", IDXSIGNATURE).getBytes(IDXCHARSET);
+                out.write(signature);
+                location = signature.length;
+                for (Map.Entry<FileInfo, Integer> entry : live) {
+                    byte[] line = String.format("%s\r\n", entry.getKey()).getBytes(IDXCHARSET);
+                    out.write(line);
+                    newLocations.put(entry.getKey(), Integer.valueOf(location));
+                    location += line.length;
+                }
+                out.flush();
+                // the only copy of the index is replaced, it must be on disk first
+                fc.force(true);
+            }
+            try {
+                Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileSystemException e) {
+                LOG.info(String.format("%s: cannot be replaced now, compact later (%s)", indexFile, e.getMessage()));
+                Files.deleteIfExists(tmp);
+                return false;
+            }
+            generation = lock.replaced();
+            Files.deleteIfExists(indexFile.resolveSibling(LazyDirInfo.SORTED_FILE));
+            Files.deleteIfExists(indexFile.resolveSibling(LazyDirInfo.FILTER_FILE));
+            locations.putAll(newLocations);
+            removed = 0;
+            size = location;
+        }
+        return true;
+    }
+
     /**
      * Return the location of the file, -1 if unknown
      * @param fileName the target file name
@@ -227,12 +680,19 @@ public class DirInfo {
      */
     public int getLocation(String fileName)
     {
-        int result = -1;
         FileInfo fi = nameIndex.get(fileName);
-        if (fi == null) {
-            return result;
-        }
-        return locations.get(fi).intValue();
+        Integer loc = fi == null ? null : locations.get(fi);
+        return loc == null ? -1 : loc.intValue();
+    }
+
+    /**
+     * Look for file by name, without copying the index
+     * @param fileName the target file name
+     * @return the entry or null if the file is not indexed
+     */
+    public FileInfo getFileInfo(String fileName)
+    {
+        return nameIndex.get(fileName);
     }
 
     /**
@@ -245,6 +705,17 @@ public class DirInfo {
         return hashIndex.containsKey(hash);
     }
 
+    /**
+     * Look for files by signature, without copying the index
+     * @param hash the target signature
+     * @return the entries with this signature, read-only, empty if none
+     */
+    public Collection<FileInfo> getByHash(String hash)
+    {
+        List<FileInfo> result = hashIndex.get(hash);
+        return result == null ? Collections.emptyList() : result;
+    }
+
     /**
      * Return a Set with FileInfo
      * @return a shallow copy of the index, sharing the same FileInfo objects
@@ -263,4 +734,25 @@ public class DirInfo {
         return new HashMap<String, FileInfo>(nameIndex);
     }
 
+    /**
+     * Return the entries with file names as keys, without copying them. <br>
+     * The view follows the later changes of the index, its iterators are
+     * weakly consistent and may run while the index is changed.
+     * @return a read-only live view of the index
+     */
+    public Map<String, FileInfo> nameView()
+    {
+        return Collections.unmodifiableMap(nameIndex);
+    }
+
+    /**
+     * Stream the entries without copying them, weakly consistent like
+     * {@link #nameView()}.
+     * @return a sequential stream, split by the map when made parallel
+     */
+    public Stream<FileInfo> stream()
+    {
+        return StreamSupport.stream(nameIndex.values().spliterator(), false);
+    }
+
 }
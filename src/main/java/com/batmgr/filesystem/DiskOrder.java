@@ -0,0 +1,116 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists a directory in inode order. <br>
+ * File systems allocate inodes and data close to each other, so processing the
+ * entries by inode number makes a spinning disk read forward instead of seeking
+ * back and forth as in the order of {@link DirectoryStream}. On file systems
+ * without inode numbers (e.g. NTFS) the order of the stream is kept.
+ */
+@SuppressWarnings("nls")
+public class DiskOrder {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(DiskOrder.class);
+
+    private DiskOrder()
+    {
+    }
+    
+    /**
+     * List the entries of a directory
+     * @param dir the directory
+     * @param ordered true to sort the entries by inode, false for the order of the stream
+     * @return the entries
+     * @throws IOException
+     */
+    public static List<Path> list(Path dir, boolean ordered) throws IOException
+    {
+        FsEvents.DirectoryListEvent event = new FsEvents.DirectoryListEvent();
+        event.begin();
+        long start = HotSpotProfiler.getDefault().start();
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) { // cannot use stream.forEach because of IOException
+                result.add(p);
+            }
+        }
+        if (ordered) {
+            sort(result);
+        }
+        HotSpotProfiler.getDefault().record(dir, HotSpotProfiler.Phase.LIST, start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.directory = dir.toString();
+            event.entries = result.size();
+            event.ordered = ordered;
+            event.commit();
+        }
+        return result;
+    }
+    
+    /**
+     * Sort paths by inode, those without inode at the end in their original order
+     * @param paths the paths to sort
+     */
+    public static void sort(List<Path> paths)
+    {
+        Map<Path, Long> inodes = new HashMap<>();
+        for (Path p : paths) {
+            inodes.put(p, inode(p));
+        }
+        paths.sort(Comparator.comparingLong(inodes::get)); // stable
+    }
+    
+    /**
+     * @return the inode number, Long.MAX_VALUE if unknown
+     */
+    private static long inode(Path p)
+    {
+        try {
+            Object ino = Files.getAttribute(p, "unix:ino", LinkOption.NOFOLLOW_LINKS);
+            return ((Number) ino).longValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return Long.MAX_VALUE;
+        } catch (IOException e) {
+            LOG.debug(String.format("%s: no inode (%s)", p, e.getMessage()));
+            return Long.MAX_VALUE;
+        }
+    }
+}
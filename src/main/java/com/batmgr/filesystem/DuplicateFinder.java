@@ -30,7 +30,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Lists duplicate files
+ * Lists duplicate files <br>
+ * Usage: DuplicateFinder dir [profile[=N]], see {@link HotSpotProfiler}
  */
 public class DuplicateFinder {
     
@@ -40,10 +41,19 @@ public class DuplicateFinder {
     {
         DirChecker checker = new DirChecker();
         try {
+            if (args.length > 1) {
+                int top = HotSpotProfiler.parseOption(args[1]);
+                if (top <= 0) {
+                    throw new IllegalArgumentException(String.format("unknown option %s", args[1]));
+                }
+                HotSpotProfiler.getDefault().setTop(top);
+            }
             checker.listDuplicates(Paths.get(args[0]), 1 << 10);
         } catch (Throwable t) {
             LOG.error("program aborted", t);
         }
+        Metrics.getDefault().logSummary();
+        HotSpotProfiler.getDefault().logReport();
         Toolkit.getDefaultToolkit().beep();
     }
 }
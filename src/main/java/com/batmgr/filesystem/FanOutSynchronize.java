@@ -0,0 +1,469 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.awt.Toolkit;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.xml.bind.DatatypeConverter;
+
+/**
+ * Synchronize a source directory to several target directories. <br>
+ * The source is listed and indexed once. Each file is read once, its signature
+ * is computed while reading and the data is streamed to all the targets that
+ * need it, each target being written by its own thread.
+ * <p>
+ * A target that is slower than the others gets backpressure: the reader waits
+ * for it when its queue is full. When the queue stays more than half full for
+ * a few seconds while another target has nothing left to write, the slow target
+ * is detached and reads the rest of the file by itself. Disks of close speeds
+ * and short stalls don't cost a second read of the source.
+ * <p>
+ * Each target hashes what it writes, the tail read by a detached target
+ * included. Unless disabled by {@link SyncOptions#setVerify(boolean)}, the
+ * copies are also read again, as {@link Synchronize} does. Reads and writes
+ * take a permit of {@link IoScheduler} for each chunk, so that a reader
+ * waiting for a slow target never holds the permit that target needs.
+ */
+@SuppressWarnings("nls")
+public class FanOutSynchronize {
+    
+    private static final Logger     LOG         = LoggerFactory.getLogger(FanOutSynchronize.class);
+
+    private static final int        CHUNK       = 0x100000; // 1 MB
+    private static final int        QUEUE_DEPTH = 16;       // chunks waiting for each target
+    private static final long       DETACH_DELAY = 5000;    // ms a lagging target waits before it is detached
+    private static final ByteBuffer EOF         = ByteBuffer.allocate(0);
+
+    private final SyncOptions       options;
+    private final List<RateLimiter> limiters;
+    private final long              detachDelay;
+    private final ExecutorService   writers;
+    private final ProgressTracker   tracker;
+    private int                     failures;
+    
+    public static void main(String[] args) {
+        try {
+            List<Path> dsts = new ArrayList<>();
+            for (String dst : args[1].split(File.pathSeparator)) {
+                dsts.add(Paths.get(dst));
+            }
+            SyncOptions options = SyncOptions.parse(args, 2);
+            LOG.info("options : " + options);
+            synchronize(Paths.get(args[0]), dsts, options);
+        } catch (Throwable t) {
+            LOG.error("program aborted", t);
+        }
+        Metrics.getDefault().logSummary();
+        Toolkit.getDefaultToolkit().beep();
+    }
+    
+    private FanOutSynchronize(SyncOptions options, List<RateLimiter> limiters, long detachDelay)
+    {
+        this.options = options;
+        this.limiters = limiters;
+        this.detachDelay = detachDelay;
+        writers = Executors.newFixedThreadPool(limiters.size());
+        tracker = new ProgressTracker("fan-out", options.getProgressListener());
+    }
+    
+    /**
+     * Recursively copy the contents of src to each directory of dsts. <br>
+     * Like {@link Synchronize}, copies are checked and existing files are not copied.
+     * The copies are read again unless option verify is off, the signature computed
+     * while writing is then trusted. The indexes of the targets are stored as
+     * those of the source, see options xattr and lazy. Options delta and resume are ignored.
+     * @param src the source directory
+     * @param dsts the target directories
+     * @param options scrape...
+     * @throws IOException if some copies failed, after trying all the others
+     */
+    public static void synchronize(Path src, List<Path> dsts, SyncOptions options)
+        throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        synchronize(src, dsts, options, Collections.nCopies(dsts.size(), null), DETACH_DELAY);
+    }
+    
+    /**
+     * @param limiters throttle the writes of each target, null for none
+     * @param detachDelay ms the queue of a target stays more than half full before it can be detached
+     */
+    static void synchronize(Path src, List<Path> dsts, SyncOptions options, List<RateLimiter> limiters, long detachDelay)
+        throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        FanOutSynchronize fanOut = new FanOutSynchronize(options, limiters, detachDelay);
+        try {
+            fanOut.tracker.directoriesFound(1);
+            fanOut.synchronizeDir(src, dsts);
+            fanOut.tracker.finish();
+        } finally {
+            fanOut.writers.shutdownNow();
+        }
+        if (fanOut.failures > 0) {
+            throw new IOException(String.format("%d copies failed", fanOut.failures));
+        }
+    }
+    
+    private void synchronizeDir(Path src, List<Path> dsts) throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        LOG.info(String.format("Synchronize %s to %d targets", src, dsts.size()));
+        DirChecker srcChecker = options.getSourceChecker();
+        srcChecker.indexFolder(src);
+        srcChecker.sweepFolder(src);
+        IndexStore srcInfo = srcChecker.openIndex(src);
+        DirChecker checker = options.getDestinationChecker();
+        Map<String, FileInfo> srcNames = srcInfo.nameView();
+        List<IndexStore> dstInfos = new ArrayList<>();
+        List<Map<String, FileInfo>> dstNames = new ArrayList<>();
+        for (Path dst : dsts) {
+            Files.createDirectories(dst);
+            checker.indexFolder(dst);
+            checker.sweepFolder(dst);
+            IndexStore dstInfo = checker.openIndex(dst);
+            dstInfos.add(dstInfo);
+            dstNames.add(dstInfo.nameView());
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(src)) {
+            for (Path p : stream) { // cannot use stream.forEach because of IOException
+                String name = p.getFileName().toString();
+                if (Files.isDirectory(p)) {
+                    if (checker.isSpecialDir(p)) {
+                        continue;
+                    }
+                    List<Path> subDirs = new ArrayList<>();
+                    for (Path dst : dsts) {
+                        subDirs.add(dst.resolve(name));
+                    }
+                    tracker.directoriesFound(1);
+                    synchronizeDir(p, subDirs);
+                    continue;
+                }
+                if (!Files.isRegularFile(p)) {
+                    continue;
+                }
+                FileInfo srcFileInfo = srcNames.get(name);
+                if (srcFileInfo == null) { // file not indexed (special file, index file...)
+                    continue;
+                }
+                tracker.fileDone(srcFileInfo.getSize()); // copied or not
+                List<Target> targets = new ArrayList<>();
+                for (int i = 0; i < dsts.size(); i++) {
+                    Path dstPath = dsts.get(i).resolve(name);
+                    FileInfo dstFileInfo = dstNames.get(i).get(name);
+                    if (dstFileInfo != null && srcFileInfo.getHash().equals(dstFileInfo.getHash())) {
+                        continue; // file is present and has same contents
+                    }
+                    if (dstFileInfo != null) { // file is present but different, remove it
+                        dstInfos.get(i).removeFromIndex(dstFileInfo);
+                        Files.delete(dstPath);
+                    }
+                    targets.add(new Target(dstPath, dstInfos.get(i), limiters.get(i)));
+                }
+                if (!targets.isEmpty()) {
+                    copy(p, srcFileInfo, targets);
+                }
+            }
+        }
+        if (options.isScrape()) {
+            for (int i = 0; i < dsts.size(); i++) {
+                Synchronize.scrape(src, dsts.get(i), dstInfos.get(i), srcNames, dstNames.get(i), options);
+            }
+        }
+        tracker.directoryDone();
+    }
+    
+    /**
+     * One destination of a file, written by its own thread
+     */
+    private static class Target {
+        final Path                      dstPath;
+        final Path                      part;
+        final IndexStore                dstInfo;
+        final RateLimiter               limiter;       // null if the writes are not throttled
+        final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        long                            lastRoom = System.nanoTime(); // last time the queue was half empty, used by the reader only
+        volatile boolean                detached;      // reads the rest of the source by itself
+        volatile boolean                failed;
+        long                            written;       // bytes written, used by the writer thread only
+        String                          writtenHash;   // signature of the bytes written
+        String                          readHash;      // signature of the copy read again, null if not verified
+        Future<?>                       future;
+
+        Target(Path dstPath, IndexStore dstInfo, RateLimiter limiter)
+        {
+            this.dstPath = dstPath;
+            this.dstInfo = dstInfo;
+            this.limiter = limiter;
+            part = SyncJournal.partPath(dstPath);
+        }
+        
+        boolean isActive()
+        {
+            return !detached && !failed;
+        }
+    }
+    
+    /**
+     * Read a file once and write it to all the targets
+     * @param p the source file
+     * @param srcFileInfo its entry in the source index
+     * @param targets the destinations where it is missing
+     */
+    @SuppressWarnings("try") // the permits are held, not used
+    private void copy(Path p, FileInfo srcFileInfo, List<Target> targets) throws NoSuchAlgorithmException, IOException
+    {
+        LOG.info(String.format("Copy %s to %d targets", srcFileInfo.getName(), targets.size()));
+        FileTime srcModif = Files.getLastModifiedTime(p);
+        for (Target target : targets) {
+            target.future = writers.submit(() -> {
+                write(p, target);
+                return null;
+            });
+        }
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        long size = 0;
+        try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ)) {
+            while (true) {
+                ByteBuffer buf = ByteBuffer.allocate(CHUNK); // shared by the targets, never reused
+                int n;
+                try (IoScheduler.Permit permit = IoScheduler.getDefault().acquire(p)) {
+                    n = in.read(buf);
+                }
+                if (n < 0) {
+                    break;
+                }
+                size += n;
+                buf.flip();
+                md.update(buf.duplicate());
+                for (Target target : targets) {
+                    dispatch(buf.asReadOnlyBuffer(), target, targets);
+                }
+            }
+        } catch (IOException e) {
+            abort(targets);
+            throw e;
+        } finally {
+            for (Target target : targets) {
+                if (target.isActive()) {
+                    putQuietly(target, EOF);
+                }
+            }
+        }
+        String hash = DatatypeConverter.printHexBinary(md.digest());
+        for (Target target : targets) {
+            try {
+                target.future.get();
+            } catch (ExecutionException e) {
+                LOG.error(String.format("cannot copy %s", target.dstPath), e.getCause());
+                target.failed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("copy interrupted", e);
+            }
+        }
+        if (!hash.equals(srcFileInfo.getHash())
+            || Files.size(p) != size
+            || !Files.getLastModifiedTime(p).equals(srcModif))
+        {
+            for (Target target : targets) {
+                Files.deleteIfExists(target.part);
+            }
+            throw new RuntimeException(String.format("%s has changed during the copy", p));
+        }
+        for (Target target : targets) {
+            if (!target.failed && (!hash.equals(target.writtenHash) || target.readHash != null && !hash.equals(target.readHash))) {
+                Metrics.getDefault().verificationFailed();
+                LOG.error(String.format("%s has different content", target.dstPath));
+                target.failed = true;
+            }
+            if (target.failed) {
+                failures++;
+                Files.deleteIfExists(target.part);
+                continue;
+            }
+            Files.move(target.part, target.dstPath, StandardCopyOption.ATOMIC_MOVE);
+            Metrics.getDefault().bytesCopied(size);
+            // the copy was checked against the signature of the source
+            target.dstInfo.appendToIndex(new FileInfo(srcFileInfo.getName(), size,
+                Files.getLastModifiedTime(target.dstPath), hash, 0));
+        }
+    }
+    
+    /**
+     * The source cannot be read: stop the writers, wait for them, then delete what they wrote
+     */
+    private static void abort(List<Target> targets) throws IOException
+    {
+        for (Target target : targets) {
+            target.failed = true;
+        }
+        for (Target target : targets) {
+            try {
+                target.future.get();
+            } catch (ExecutionException e) {
+                LOG.debug(String.format("%s: %s", target.dstPath, e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("copy interrupted", e);
+            }
+            Files.deleteIfExists(target.part);
+        }
+    }
+    
+    /**
+     * Give a chunk to a target, wait while its queue is full. A target whose
+     * queue stayed more than half full for the detach delay, while another
+     * target has nothing left to write, is detached.
+     */
+    private void dispatch(ByteBuffer buf, Target target, List<Target> targets) throws IOException
+    {
+        if (target.queue.remainingCapacity() > QUEUE_DEPTH / 2) {
+            target.lastRoom = System.nanoTime(); // keeps up
+        }
+        try {
+            while (target.isActive() && !target.queue.offer(buf, 50, TimeUnit.MILLISECONDS)) {
+                if (System.nanoTime() - target.lastRoom < TimeUnit.MILLISECONDS.toNanos(detachDelay)) {
+                    continue;
+                }
+                for (Target other : targets) {
+                    if (other != target && other.isActive() && other.queue.isEmpty()) {
+                        LOG.info(String.format("%s is slow, it reads the rest of the file separately",
+                            target.dstPath));
+                        target.detached = true;
+                        Metrics.getDefault().targetDetached();
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("copy interrupted", e);
+        }
+    }
+    
+    private void putQuietly(Target target, ByteBuffer buf)
+    {
+        try {
+            target.queue.put(buf);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Writer thread: write the chunks of the queue, then the end of the file if the target was detached
+     */
+    @SuppressWarnings("try") // the permits are held, not used
+    private void write(Path p, Target target) throws IOException, InterruptedException, NoSuchAlgorithmException
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        try (FileChannel out = FileChannel.open(target.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (true) {
+                ByteBuffer buf = target.queue.poll(50, TimeUnit.MILLISECONDS);
+                if (target.failed) {
+                    break; // the chunks left are dropped
+                }
+                if (buf == null) {
+                    if (target.detached) {
+                        break;
+                    }
+                    continue;
+                }
+                if (buf == EOF) {
+                    break;
+                }
+                md.update(buf.duplicate());
+                writeChunk(out, buf, target);
+            }
+            if (target.detached) {
+                try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ)) {
+                    ByteBuffer buf = ByteBuffer.allocate(CHUNK);
+                    while (!target.failed) {
+                        buf.clear();
+                        int n;
+                        try (IoScheduler.Permit permit = IoScheduler.getDefault().acquire(p)) {
+                            n = in.read(buf, target.written);
+                        }
+                        if (n < 0) {
+                            break;
+                        }
+                        buf.flip();
+                        md.update(buf.duplicate());
+                        writeChunk(out, buf, target);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            target.failed = true;
+            throw e;
+        }
+        if (target.failed) {
+            return;
+        }
+        target.writtenHash = DatatypeConverter.printHexBinary(md.digest());
+        if (options.isVerify()) {
+            target.readHash = new FileChecker().computeSha256(target.part);
+        }
+    }
+
+    @SuppressWarnings("try") // the permit is held, not used
+    private static void writeChunk(FileChannel out, ByteBuffer buf, Target target) throws IOException, InterruptedException
+    {
+        if (target.limiter != null) {
+            target.limiter.acquire(buf.remaining());
+        }
+        try (IoScheduler.Permit permit = IoScheduler.getDefault().acquire(target.part)) {
+            while (buf.hasRemaining()) {
+                target.written += out.write(buf);
+            }
+        }
+    }
+}
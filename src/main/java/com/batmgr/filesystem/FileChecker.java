@@ -24,22 +24,82 @@
 package com.batmgr.filesystem;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import jakarta.xml.bind.DatatypeConverter;
 
 /**
  * Knows how to read a file's signature.
+ * <p>
+ * With direct I/O, files are read with O_DIRECT into a block aligned buffer and
+ * don't go through the page cache, so a bulk indexation or scrub doesn't evict
+ * the data of other services. The system property batmgr.io.direct=true selects
+ * direct I/O by default. Files or file systems that refuse it are read normally,
+ * as are all files on a JDK without com.sun.nio.file.ExtendedOpenOption.
  */
+@SuppressWarnings("nls")
 public class FileChecker {
 
+    private static final Logger LOG         = LoggerFactory.getLogger(FileChecker.class);
+
+    private static final int    BUFFER_SIZE = 0x200000; // 2 MB, a multiple of any block size
+    private static final OpenOption DIRECT  = directOption(); // null if not available
+
+    private final RateLimiter   limiter;                // null if reads are not throttled
+    private final boolean       direct;
+    private final int           bufferSize;
+    
+    public FileChecker()
+    {
+        this(null);
+    }
+    
+    /**
+     * @param limiter throttles the reads, can be null
+     */
+    public FileChecker(RateLimiter limiter)
+    {
+        this(limiter, Boolean.getBoolean("batmgr.io.direct"));
+    }
+    
+    /**
+     * @param limiter throttles the reads, can be null
+     * @param direct true to bypass the page cache when possible
+     */
+    public FileChecker(RateLimiter limiter, boolean direct)
+    {
+        this(limiter, direct, BUFFER_SIZE);
+    }
+    
+    /**
+     * @param limiter throttles the reads, can be null
+     * @param direct true to bypass the page cache when possible
+     * @param bufferSize bytes per read, rounded up to the block size for direct I/O
+     */
+    public FileChecker(RateLimiter limiter, boolean direct, int bufferSize)
+    {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive");
+        }
+        this.limiter = limiter;
+        this.direct = direct;
+        this.bufferSize = bufferSize;
+    }
+    
     /**
-     * Compute SHA-256 file signature
+     * Compute SHA-256 file signature, within the limits of the device, see {@link IoScheduler}
      * @param path the file path
      * @return the signature in hexadecimal (uppercase)
      * @throws IOException if there is a problem reading the file
@@ -47,16 +107,158 @@ public class FileChecker {
      */
     public String computeSha256(Path path) throws IOException, NoSuchAlgorithmException {
         MessageDigest md = MessageDigest.getInstance("SHA-256");
-        try (SeekableByteChannel sbc = Files.newByteChannel(path)) {
-            ByteBuffer buf = ByteBuffer.allocate(0x200000); // 2 MB
-            while (sbc.read(buf) > 0) {
+        long start = System.nanoTime();
+        long profile = HotSpotProfiler.getDefault().start();
+        long bytes;
+        FsEvents.HashEvent event = new FsEvents.HashEvent();
+        try (DevicePermit permit = new DevicePermit(path)) {
+            event.begin(); // the wait for the permit is not part of the event
+            bytes = direct ? readDirect(path, md, permit) : -1;
+            event.direct = bytes >= 0;
+            if (bytes < 0) {
+                md.reset();
+                bytes = 0;
+                try (SeekableByteChannel sbc = Files.newByteChannel(path)) {
+                    ByteBuffer buf = ByteBuffer.allocate(bufferSize);
+                    while (sbc.read(buf) > 0) {
+                        throttle(buf.position(), permit);
+                        bytes += buf.position();
+                        buf.flip();
+                        md.update(buf);
+                        buf.clear();
+                    }
+                }
+            }
+        }
+        byte[] digest = md.digest();
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = path.toString();
+            event.bytes = bytes;
+            event.commit();
+        }
+        Metrics.getDefault().fileHashed(bytes, System.nanoTime() - start);
+        HotSpotProfiler.getDefault().recordFile(path, bytes, profile);
+        return DatatypeConverter.printHexBinary(digest);
+    }
+    
+    /**
+     * The option is not part of the standard API, it is looked up at run time
+     * @return ExtendedOpenOption.DIRECT, null if this JDK doesn't have it
+     */
+    private static OpenOption directOption()
+    {
+        try {
+            for (Object option : Class.forName("com.sun.nio.file.ExtendedOpenOption").getEnumConstants()) {
+                if (((Enum<?>) option).name().equals("DIRECT")) {
+                    return (OpenOption) option;
+                }
+            }
+        } catch (ClassNotFoundException | ClassCastException e) {
+            LOG.debug(String.format("no direct I/O option (%s)", e));
+        }
+        return null;
+    }
+    
+    /**
+     * Read a file with O_DIRECT. Offsets, lengths and the buffer address must be
+     * multiples of the block size; only the last read can be short.
+     * @param path the file
+     * @param md updated with the contents
+     * @param permit the permit of the device, released while throttled
+     * @return number of bytes read, -1 if direct I/O is not possible, md must be reset
+     * @throws IOException
+     */
+    private long readDirect(Path path, MessageDigest md, DevicePermit permit) throws IOException
+    {
+        if (DIRECT == null) {
+            return -1;
+        }
+        int blockSize;
+        FileChannel fc;
+        try {
+            blockSize = (int) Files.getFileStore(path).getBlockSize();
+            fc = FileChannel.open(path, StandardOpenOption.READ, DIRECT);
+        } catch (UnsupportedOperationException | IOException e) {
+            LOG.debug(String.format("%s: no direct I/O (%s)", path, e.getMessage()));
+            return -1;
+        }
+        try (FileChannel channel = fc) {
+            int length = (bufferSize + blockSize - 1) / blockSize * blockSize;
+            ByteBuffer buf = ByteBuffer.allocateDirect(length + blockSize).alignedSlice(blockSize);
+            buf.limit(length);
+            long size = channel.size();
+            long bytes = 0;
+            int n;
+            while ((n = channel.read(buf)) > 0) {
+                throttle(n, permit);
+                bytes += n;
                 buf.flip();
                 md.update(buf);
                 buf.clear();
+                buf.limit(length);
+                if (n % blockSize != 0) { // the position is no longer aligned
+                    if (channel.position() < size) {
+                        LOG.debug(String.format("%s: short direct read, read again", path));
+                        return -1;
+                    }
+                    break;
+                }
+            }
+            return bytes;
+        } catch (IOException e) {
+            // e.g. EINVAL when the block size of the device is larger than reported
+            LOG.debug(String.format("%s: direct read failed, read again (%s)", path, e.getMessage()));
+            return -1;
+        }
+    }
+    
+    /**
+     * Wait for the limiter without holding the device: other reads and copies
+     * of the disk go on while a throttled scrub waits.
+     */
+    private void throttle(int bytes, DevicePermit permit) throws IOException
+    {
+        if (limiter == null || limiter.tryAcquire(bytes)) {
+            return;
+        }
+        permit.close();
+        try {
+            limiter.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("hash interrupted");
+        }
+        permit.reacquire();
+    }
+    
+    /**
+     * The {@link IoScheduler} permit of a file, which can be released and taken again
+     */
+    private static final class DevicePermit implements AutoCloseable {
+        
+        private final Path         path;
+        private IoScheduler.Permit permit;
+        
+        DevicePermit(Path path) throws IOException
+        {
+            this.path = path;
+            reacquire();
+        }
+        
+        void reacquire() throws IOException
+        {
+            permit = IoScheduler.getDefault().acquire(path);
+        }
+        
+        @Override
+        public void close()
+        {
+            if (permit != null) {
+                permit.close();
+                permit = null;
             }
         }
-        byte[] digest = md.digest();
-        return DatatypeConverter.printHexBinary(digest);
     }
 
 }
@@ -36,7 +36,7 @@ import jakarta.xml.bind.DatatypeConverter;
 @SuppressWarnings("nls")
 public class FileInfo {
     
-    private static final int FLAG_REMOVED = 1;
+    static final int         FLAG_REMOVED = 1;
 
     private boolean          initialized  = false;
     private String           name;
@@ -183,6 +183,15 @@ public class FileInfo {
      * @return loc + appropriate offset
      */
     public long getFlagsLocation(Integer loc) {
+        return flagsLocation(loc.intValue());
+    }
+
+    /**
+     * Compute the flags location, without an entry
+     * @param loc beginning of the entry
+     * @return loc + appropriate offset
+     */
+    static long flagsLocation(int loc) {
         return loc + 2 * HASH_BYTES + 1;
     }
     
@@ -0,0 +1,160 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of the tools. <br>
+ * The events are cheap when no recording is running. The thresholds below are
+ * the defaults; the profile src/main/resources/batmgr.jfc sets them for a
+ * nightly run, e.g. java -XX:StartFlightRecording:settings=default,batmgr.jfc,filename=run.jfr
+ * <p>
+ * Usage: begin the event, end it, and fill its fields only if shouldCommit()
+ * returns true, so the paths are not converted to strings for nothing.
+ */
+@SuppressWarnings("nls")
+final class FsEvents {
+
+    private FsEvents()
+    {
+    }
+
+    @Name("com.batmgr.filesystem.Hash")
+    @Label("Hash")
+    @Description("SHA-256 of a file, see FileChecker")
+    @Category({ "batmgr", "Filesystem" })
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class HashEvent extends Event {
+        @Label("Path")
+        String  path;
+
+        @Label("Bytes")
+        @DataAmount
+        long    bytes;
+
+        @Label("Direct I/O")
+        boolean direct;
+    }
+
+    @Name("com.batmgr.filesystem.IndexRead")
+    @Label("Index Read")
+    @Description("Loading the index of a directory")
+    @Category({ "batmgr", "Filesystem" })
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class IndexReadEvent extends Event {
+        @Label("Index")
+        String indexFile;
+
+        @Label("Entries")
+        int    entries;
+
+        @Label("Bytes")
+        @DataAmount
+        long   bytes;
+    }
+
+    @Name("com.batmgr.filesystem.IndexWrite")
+    @Label("Index Write")
+    @Description("Entries appended to an index, or flagged as removed")
+    @Category({ "batmgr", "Filesystem" })
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class IndexWriteEvent extends Event {
+        @Label("Index")
+        String indexFile;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Entries")
+        int    entries;
+
+        @Label("Bytes")
+        @DataAmount
+        long   bytes;
+    }
+
+    @Name("com.batmgr.filesystem.DirectoryList")
+    @Label("Directory List")
+    @Description("Listing a directory, and sorting it by inode in disk order")
+    @Category({ "batmgr", "Filesystem" })
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class DirectoryListEvent extends Event {
+        @Label("Directory")
+        String  directory;
+
+        @Label("Entries")
+        int     entries;
+
+        @Label("Disk Order")
+        boolean ordered;
+    }
+
+    @Name("com.batmgr.filesystem.FolderIndex")
+    @Label("Folder Index")
+    @Description("Comparing the files of a directory with its index (stat), and hashing the new or modified ones")
+    @Category({ "batmgr", "Filesystem" })
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class FolderIndexEvent extends Event {
+        @Label("Directory")
+        String directory;
+
+        @Label("Files")
+        int    files;
+
+        @Label("Hashed")
+        int    hashed;
+    }
+
+    @Name("com.batmgr.filesystem.Copy")
+    @Label("Copy")
+    @Description("Copy of a file by Synchronize, PullUnique or ShardedStore")
+    @Category({ "batmgr", "Filesystem" })
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class CopyEvent extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Destination")
+        String destination;
+
+        @Label("Bytes")
+        @DataAmount
+        long   bytes;
+    }
+
+}
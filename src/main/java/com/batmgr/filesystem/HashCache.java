@@ -0,0 +1,230 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.xml.bind.DatatypeConverter;
+
+/**
+ * Hashes already computed, shared by all directories. <br>
+ * The key is the identity of the file (inode and device on Unix), its size and
+ * its last modification: a file renamed or moved on the same file system keeps
+ * its entry and is not read again. File systems without file keys (e.g. NTFS)
+ * are not cached. <br>
+ * The cache is kept in memory with a LRU eviction and saved in a binary file,
+ * written to a temporary file, then renamed.
+ */
+@SuppressWarnings("nls")
+public class HashCache {
+    
+    private static final Logger  LOG              = LoggerFactory.getLogger(HashCache.class);
+
+    public static final String   DEFAULT_FILE     = ".batmgr-hashcache";
+    public static final int      DEFAULT_CAPACITY = 500000; // about 100 bytes per entry on disk
+    private static final String  SIGNATURE        = "HASH CACHE - NO REAL DATA IN THIS FILE - VERSION 1";
+    private static final int     HASH_BYTES       = 32;     // SHA-256
+
+    private final Path           file;
+    private final int            capacity;
+    private final LinkedHashMap<String, byte[]> entries;    // access order, eldest first
+    private long                 hits;
+    private long                 misses;
+    private boolean              modified;
+    
+    /**
+     * Open the default cache, in the home directory
+     * @return the cache
+     */
+    public static HashCache openDefault()
+    {
+        return new HashCache(Paths.get(System.getProperty("user.home"), DEFAULT_FILE), DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Open a cache, load it if the file exists. A corrupted file is ignored.
+     * @param file where the cache is saved
+     * @param capacity maximum number of entries, the least recently used are evicted
+     */
+    public HashCache(Path file, int capacity)
+    {
+        this.file = file;
+        this.capacity = capacity;
+        entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest)
+            {
+                return size() > HashCache.this.capacity;
+            }
+        };
+        if (Files.exists(file)) {
+            try {
+                load();
+            } catch (IOException e) {
+                LOG.warn(String.format("%s: unreadable hash cache ignored (%s)", file, e.getMessage()));
+                entries.clear();
+            }
+        }
+    }
+    
+    /**
+     * Build the key of a file
+     * @param attrs the attributes of the file
+     * @return the key or null if the file system has no file keys
+     */
+    private static String key(BasicFileAttributes attrs)
+    {
+        Object fileKey = attrs.fileKey();
+        if (fileKey == null) {
+            return null;
+        }
+        return String.format("%s;%d;%d", fileKey, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+    
+    /**
+     * Look for the hash of a file
+     * @param attrs the attributes of the file
+     * @return the hash in hexadecimal (uppercase) or null if unknown
+     */
+    public synchronized String get(BasicFileAttributes attrs)
+    {
+        String key = key(attrs);
+        byte[] hash = key == null ? null : entries.get(key);
+        if (hash == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return DatatypeConverter.printHexBinary(hash);
+    }
+    
+    /**
+     * Record the hash of a file
+     * @param attrs the attributes read before the hash was computed
+     * @param hash the hash in hexadecimal
+     */
+    public synchronized void put(BasicFileAttributes attrs, String hash)
+    {
+        String key = key(attrs);
+        if (key == null) {
+            return;
+        }
+        entries.put(key, DatatypeConverter.parseHexBinary(hash));
+        modified = true;
+    }
+    
+    /**
+     * Compute the hash of a file, unless the cache knows it
+     * @param cache the cache, can be null
+     * @param p the file
+     * @param attrs the attributes of the file, read before
+     * @return the hash in hexadecimal (uppercase)
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String computeSha256(HashCache cache, Path p, BasicFileAttributes attrs)
+        throws IOException, NoSuchAlgorithmException
+    {
+        String hash = cache == null ? null : cache.get(attrs);
+        if (hash == null) {
+            hash = new FileChecker().computeSha256(p);
+            if (cache != null) {
+                cache.put(attrs, hash);
+            }
+        }
+        return hash;
+    }
+    
+    private void load() throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (!in.readUTF().equals(SIGNATURE)) {
+                throw new IOException("invalid signature");
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String key = in.readUTF();
+                byte[] hash = new byte[HASH_BYTES];
+                in.readFully(hash);
+                entries.put(key, hash);
+            }
+        }
+        LOG.debug(String.format("%s: %d hashes loaded", file, entries.size()));
+    }
+    
+    /**
+     * Write the cache if it was modified, least recently used entries first
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException
+    {
+        if (!modified) {
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeUTF(SIGNATURE);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.write(entry.getValue());
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        modified = false;
+        LOG.info(String.format("%s: %d hashes saved, %d hits, %d misses", file, entries.size(), hits, misses));
+    }
+    
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+}
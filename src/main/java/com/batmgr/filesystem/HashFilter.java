@@ -0,0 +1,242 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Bloom filter of content signatures, to answer "is this hash absent" without
+ * reading an index. <br>
+ * A negative answer is certain, a positive one is wrong about 1% of the time
+ * while the filter holds less than its capacity; removed entries stay in the
+ * filter until it is built again. <br>
+ * The filter can be saved to a file and mapped in memory: the hashes added
+ * afterwards are written through. The header records how much of the indexed
+ * data (e.g. the size of an index) the filter covers, so that its owner can
+ * add what was written since. A filter read in memory instead leaves its file
+ * free to be replaced or deleted, which Windows refuses for a mapped file.
+ * <p>
+ * Not thread-safe.
+ */
+public class HashFilter {
+
+    private static final long MAGIC          = 0x42444953_424c4d31L;
+    private static final int  HEADER         = 8 + 8 + 4 + 4;                       // magic, covered, capacity, count
+    private static final int  BITS_PER_ENTRY = 10;
+    private static final int  HASHES         = 7;                                   // best for 10 bits per entry
+    private static final int  MIN_CAPACITY   = 1024;
+
+    private final ByteBuffer  buffer;                                               // header then the bits
+    private final long        bits;
+
+    private HashFilter(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        bits = 8L * (buffer.capacity() - HEADER);
+    }
+
+    /**
+     * Create an empty filter in memory
+     * @param expected number of hashes to be added, the capacity is twice as large
+     */
+    public HashFilter(int expected)
+    {
+        this(allocate(Math.max(MIN_CAPACITY, 2L * expected)));
+    }
+
+    private static ByteBuffer allocate(long capacity)
+    {
+        long words = (capacity * BITS_PER_ENTRY + 63) / 64;
+        ByteBuffer result = ByteBuffer.allocate((int) (HEADER + 8 * words));
+        result.putLong(0, MAGIC).putInt(16, (int) capacity);
+        return result;
+    }
+
+    /**
+     * Map a saved filter in memory, read-write
+     * @param file the filter
+     * @return null if the file doesn't exist or isn't a filter
+     * @throws IOException
+     */
+    public static HashFilter load(Path file) throws IOException
+    {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (fc.size() <= HEADER || (fc.size() - HEADER) % 8 != 0) {
+                return null;
+            }
+            ByteBuffer buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, fc.size());
+            if (buffer.getLong(0) != MAGIC) {
+                return null;
+            }
+            return new HashFilter(buffer);
+        }
+    }
+
+    /**
+     * Read a saved filter in memory, the hashes added afterwards are not saved
+     * @param file the filter
+     * @return null if the file doesn't exist or isn't a filter
+     * @throws IOException
+     */
+    public static HashFilter read(Path file) throws IOException
+    {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length <= HEADER || (bytes.length - HEADER) % 8 != 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getLong(0) != MAGIC) {
+            return null;
+        }
+        return new HashFilter(buffer);
+    }
+
+    /**
+     * Write the filter, then map it
+     * @param file the destination, replaced atomically
+     * @param tmp a temporary file in the same directory
+     * @return the mapped filter, to which later hashes must be added
+     * @throws IOException
+     */
+    public HashFilter save(Path file, Path tmp) throws IOException
+    {
+        write(file, tmp);
+        return load(file);
+    }
+
+    /**
+     * Write the filter, which stays in memory
+     * @param file the destination, replaced atomically
+     * @param tmp a temporary file in the same directory
+     * @throws IOException
+     */
+    public void write(Path file, Path tmp) throws IOException
+    {
+        ByteBuffer data = buffer.duplicate();
+        data.clear();
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                fc.write(data);
+            }
+            fc.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param hash a content signature
+     */
+    public void add(String hash)
+    {
+        long h1 = mix(hash, 0);
+        long h2 = mix(hash, 16) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            int index = HEADER + (int) (bit >>> 6) * 8;
+            buffer.putLong(index, buffer.getLong(index) | (1L << bit));
+        }
+        buffer.putInt(20, buffer.getInt(20) + 1);
+    }
+
+    /**
+     * @param hash a content signature
+     * @return false if the hash was never added, true if it probably was
+     */
+    public boolean mightContain(String hash)
+    {
+        long h1 = mix(hash, 0);
+        long h2 = mix(hash, 16) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            if ((buffer.getLong(HEADER + (int) (bit >>> 6) * 8) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The signatures are already uniform, 16 characters give 64 bits; the
+     * finalizer of MurmurHash3 spreads any other string
+     */
+    private static long mix(String hash, int from)
+    {
+        long h = 0;
+        for (int i = from; i < Math.min(from + 16, hash.length()); i++) {
+            h = 31 * h + hash.charAt(i);
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the amount of indexed data already added, defined by the owner
+     */
+    public long getCovered()
+    {
+        return buffer.getLong(8);
+    }
+
+    public void setCovered(long covered)
+    {
+        buffer.putLong(8, covered);
+    }
+
+    /**
+     * @return the number of hashes added, duplicates included
+     */
+    public int getCount()
+    {
+        return buffer.getInt(20);
+    }
+
+    /**
+     * @return true if the filter holds more than its capacity and should be built again, larger
+     */
+    public boolean isFull()
+    {
+        return getCount() > buffer.getInt(16);
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opt-in profiling of the time spent per directory and per phase (list, load
+ * index, stat, hash, append, sweep), and of the slowest files to hash. <br>
+ * At the end of a run, the tools log a report of the top N directories and
+ * files, and write it to the file given by the system property
+ * batmgr.profile.file if set. <br>
+ * Enabled by the system property batmgr.profile=N (size of the report), or by
+ * the option profile[=N] of the tools. When disabled, the probes only read an int.
+ */
+@SuppressWarnings("nls")
+public class HotSpotProfiler {
+
+    private static final Logger          LOG         = LoggerFactory.getLogger(HotSpotProfiler.class);
+
+    public static final int              DEFAULT_TOP = 20;
+
+    private static final HotSpotProfiler INSTANCE    = new HotSpotProfiler(Integer.getInteger("batmgr.profile", 0));
+
+    /**
+     * What the time of a directory is spent on
+     */
+    public enum Phase {
+        LIST, LOAD_INDEX, STAT, HASH, APPEND, SWEEP
+    }
+
+    private volatile int                  top;         // 0 if disabled
+    private final Map<Path, AtomicLongArray> dirs     = new ConcurrentHashMap<>(); // ns per phase
+    private final PriorityQueue<SlowFile> slowFiles   = new PriorityQueue<>(Comparator.comparingLong(f -> f.nanos)); // guarded by itself
+
+    /**
+     * The duration of hashing one file
+     */
+    private static final class SlowFile {
+        final Path path;
+        final long bytes;
+        final long nanos;
+
+        SlowFile(Path path, long bytes, long nanos)
+        {
+            this.path = path;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+
+    HotSpotProfiler(int top)
+    {
+        this.top = Math.max(0, top);
+    }
+
+    /**
+     * @return the profiler shared by all tools
+     */
+    public static HotSpotProfiler getDefault()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Read the command line option profile[=N]
+     * @param option the option
+     * @return the size of the report, 0 if the option is not profile
+     */
+    public static int parseOption(String option)
+    {
+        if (option.equals("profile")) {
+            return DEFAULT_TOP;
+        }
+        if (option.startsWith("profile=")) {
+            return Integer.parseInt(option.substring("profile=".length()));
+        }
+        return 0;
+    }
+
+    public boolean isEnabled()
+    {
+        return top > 0;
+    }
+
+    /**
+     * @param top number of directories and files in the report, 0 to disable
+     */
+    public void setTop(int top)
+    {
+        this.top = Math.max(0, top);
+    }
+
+    /**
+     * Start a measure
+     * @return the start time to give to record, 0 if disabled
+     */
+    public long start()
+    {
+        return top > 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Add the time since start to a phase of a directory
+     * @param dir the directory
+     * @param phase the phase
+     * @param start returned by {@link #start()}
+     */
+    public void record(Path dir, Phase phase, long start)
+    {
+        if (start == 0 || top == 0) {
+            return;
+        }
+        add(dir, phase, System.nanoTime() - start);
+    }
+
+    /**
+     * Record the hash of a file, in the hash phase of its directory and in the slowest files
+     * @param file the file
+     * @param bytes its size
+     * @param start returned by {@link #start()}
+     */
+    public void recordFile(Path file, long bytes, long start)
+    {
+        if (start == 0 || top == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) {
+            add(dir, Phase.HASH, nanos);
+        }
+        synchronized (slowFiles) {
+            if (slowFiles.size() < top) {
+                slowFiles.add(new SlowFile(file, bytes, nanos));
+            } else if (slowFiles.peek().nanos < nanos) {
+                slowFiles.poll();
+                slowFiles.add(new SlowFile(file, bytes, nanos));
+            }
+        }
+    }
+
+    private void add(Path dir, Phase phase, long nanos)
+    {
+        dirs.computeIfAbsent(dir.toAbsolutePath(), d -> new AtomicLongArray(Phase.values().length))
+            .addAndGet(phase.ordinal(), nanos);
+    }
+
+    /**
+     * @return the slowest directories with the time of each phase, then the slowest files
+     */
+    public String report()
+    {
+        int n = top;
+        List<Map.Entry<Path, AtomicLongArray>> ranked = new ArrayList<>(dirs.entrySet());
+        ranked.sort(Comparator.comparingLong((Map.Entry<Path, AtomicLongArray> e) -> total(e.getValue())).reversed());
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("Slowest %d of %d directories (ms)%n", Math.min(n, ranked.size()), ranked.size()));
+        result.append(String.format("%10s", "total"));
+        for (Phase phase : Phase.values()) {
+            result.append(String.format(" %10s", phase.name().toLowerCase()));
+        }
+        result.append(String.format("  directory%n"));
+        for (Map.Entry<Path, AtomicLongArray> e : ranked.subList(0, Math.min(n, ranked.size()))) {
+            result.append(String.format("%10d", millis(total(e.getValue()))));
+            for (Phase phase : Phase.values()) {
+                result.append(String.format(" %10d", millis(e.getValue().get(phase.ordinal()))));
+            }
+            result.append(String.format("  %s%n", e.getKey()));
+        }
+        List<SlowFile> files;
+        synchronized (slowFiles) {
+            files = new ArrayList<>(slowFiles);
+        }
+        files.sort(Comparator.comparingLong((SlowFile f) -> f.nanos).reversed());
+        result.append(String.format("Slowest %d files to hash (ms)%n", files.size()));
+        for (SlowFile f : files) {
+            result.append(String.format("%10d %10s  %s%n", millis(f.nanos), FileInfo.getHumanReadableSize(f.bytes),
+                f.path));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Log the report at the end of a run, and write it to the file of batmgr.profile.file
+     */
+    public void logReport()
+    {
+        if (!isEnabled()) {
+            return;
+        }
+        String report = report();
+        LOG.info(String.format("hot spots%n%s", report));
+        String file = System.getProperty("batmgr.profile.file");
+        if (file == null) {
+            return;
+        }
+        Path path = Paths.get(file);
+        try {
+            Files.write(path, report.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOG.warn(String.format("%s: cannot write the profile (%s)", path, e.getMessage()));
+        }
+    }
+
+    /**
+     * Forget the measures
+     */
+    public void reset()
+    {
+        dirs.clear();
+        synchronized (slowFiles) {
+            slowFiles.clear();
+        }
+    }
+
+    private static long total(AtomicLongArray phases)
+    {
+        long result = 0;
+        for (int i = 0; i < phases.length(); i++) {
+            result += phases.get(i);
+        }
+        return result;
+    }
+
+    private static long millis(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive right to write an index, held by one thread of one process. <br>
+ * The threads of this JVM are serialized by a striped lock chosen by the path
+ * of the index, before taking an OS lock in a lock file next to the index
+ * (.index.lock), which serializes the processes: a JVM may only hold one lock
+ * per file. The index itself is never locked, so that readers are not blocked
+ * where locks are mandatory, e.g. on Windows. <br>
+ * The lock file is never replaced. Its first 8 bytes, outside of the locked
+ * region, hold the generation of the index, incremented when the index is
+ * replaced, e.g. by a compaction: an instance reading the index without the
+ * lock reads the generation first, and reads the index again if the
+ * generation found with the lock is another one.
+ * <p>
+ * The locks are not reentrant, and a thread holds at most one of them: the
+ * writes of indexes must not be nested, which also rules out deadlocks
+ * between threads locking two indexes in opposite orders.
+ */
+class IndexLock implements Closeable {
+
+    static final String           LOCK_SUFFIX = ".lock";
+    private static final int      GENERATION  = 8;                                  // bytes of the generation, never locked
+
+    private static final ReentrantLock[] STRIPES = new ReentrantLock[64];
+    private static final ThreadLocal<Path> HELD = new ThreadLocal<>();               // index locked by the thread
+
+    static {
+        for (int i = 0; i < STRIPES.length; i++) {
+            STRIPES[i] = new ReentrantLock();
+        }
+    }
+
+    private final ReentrantLock stripe;
+    private final FileChannel   lockChannel;
+    private final FileLock      fileLock;
+    private final FileChannel   channel;
+    private long                generation;
+
+    private IndexLock(ReentrantLock stripe, FileChannel lockChannel, FileLock fileLock, FileChannel channel)
+        throws IOException
+    {
+        this.stripe = stripe;
+        this.lockChannel = lockChannel;
+        this.fileLock = fileLock;
+        this.channel = channel;
+        generation = readGeneration(lockChannel);
+    }
+
+    /**
+     * Wait for the exclusive right to write the index
+     * @param indexFile the index, which must exist
+     * @return the lock, to be closed after the writes
+     * @throws IOException
+     */
+    static IndexLock acquire(Path indexFile) throws IOException
+    {
+        Path key = indexFile.toAbsolutePath().normalize();
+        if (HELD.get() != null) {
+            throw new IllegalStateException(String.format("%s: nested write of an index, %s is locked", indexFile, HELD.get()));
+        }
+        ReentrantLock stripe = STRIPES[Math.floorMod(key.hashCode(), STRIPES.length)];
+        stripe.lock();
+        FileChannel lockChannel = null;
+        try {
+            lockChannel = FileChannel.open(lockFile(indexFile), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            FileLock fileLock = lockChannel.lock(GENERATION, 1, false);
+            // the index cannot be replaced until the lock is released
+            FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                IndexLock result = new IndexLock(stripe, lockChannel, fileLock, channel);
+                HELD.set(key);
+                return result;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (lockChannel != null) {
+                lockChannel.close(); // releases the lock
+            }
+            stripe.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * @param indexFile an index
+     * @return its lock file, created at the first write
+     */
+    static Path lockFile(Path indexFile)
+    {
+        return indexFile.resolveSibling(indexFile.getFileName() + LOCK_SUFFIX);
+    }
+
+    /**
+     * Read the generation of an index without the lock, before reading the index
+     * @param indexFile the index
+     * @return 0 if the index was never replaced
+     * @throws IOException
+     */
+    static long generation(Path indexFile) throws IOException
+    {
+        try (FileChannel fc = FileChannel.open(lockFile(indexFile), StandardOpenOption.READ)) {
+            return readGeneration(fc);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    private static long readGeneration(FileChannel fc) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(GENERATION);
+        while (buf.hasRemaining() && fc.read(buf, buf.position()) > 0) {
+            // read the 8 bytes
+        }
+        return buf.hasRemaining() ? 0 : buf.getLong(0);
+    }
+
+    /**
+     * @return the channel of the locked index, opened for reading and writing
+     */
+    FileChannel channel()
+    {
+        return channel;
+    }
+
+    /**
+     * @return the generation of the locked index
+     */
+    long generation()
+    {
+        return generation;
+    }
+
+    /**
+     * Record that the index was replaced, after moving the new one in place
+     * @return the new generation
+     * @throws IOException
+     */
+    long replaced() throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(GENERATION).putLong(0, generation + 1);
+        while (buf.hasRemaining()) {
+            lockChannel.write(buf, buf.position());
+        }
+        generation++;
+        return generation;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            channel.close();
+        } finally {
+            try {
+                if (lockChannel.isOpen()) {
+                    fileLock.release();
+                }
+                lockChannel.close();
+            } finally {
+                HELD.remove();
+                stripe.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Index of the files of one directory: name, size, last modification and hash. <br>
+ * Implemented by {@link DirInfo} (an .index file per directory, loaded in memory),
+ * {@link LazyDirInfo} (the same file, read on demand for huge directories) and
+ * {@link XattrIndexStore} (an extended attribute per file).
+ */
+public interface IndexStore {
+
+    /**
+     * Consult a cache of hashes before reading new or modified files
+     * @param hashCache the cache, null to always compute the hashes
+     */
+    void setHashCache(HashCache hashCache);
+
+    /**
+     * Adds file to the index if its size or last modification changed
+     * @param p the file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    void addIfNeeded(Path p) throws IOException, NoSuchAlgorithmException;
+
+    /**
+     * Compare size and last update with the entry of a file
+     * @param name the file name
+     * @param attrs the current attributes of the file
+     * @return true if the entry is up to date, false if the file must be hashed
+     * @throws IOException
+     */
+    boolean isUpToDate(String name, BasicFileAttributes attrs) throws IOException;
+
+    /**
+     * Replace the entry of a file, e.g. after hashing it outside of the index
+     * @param name the file name
+     * @param attrs the attributes read before hashing
+     * @param hash the new hash
+     * @throws IOException
+     */
+    void update(String name, BasicFileAttributes attrs, String hash) throws IOException;
+
+    /**
+     * Record a file whose hash is already known
+     * @param fileInfo the entry
+     * @throws IOException
+     */
+    void appendToIndex(FileInfo fileInfo) throws IOException;
+
+    /**
+     * The entry is obsolete
+     * @param fileInfo entry to remove
+     * @throws IOException
+     */
+    void removeFromIndex(FileInfo fileInfo) throws IOException;
+
+    /**
+     * Several entries are obsolete
+     * @param fileInfos entries to remove
+     * @throws IOException
+     */
+    void removeFromIndex(Collection<FileInfo> fileInfos) throws IOException;
+
+    /**
+     * Look for file by name
+     * @param fileName the target file name
+     * @return the entry or null if the file is not indexed
+     * @throws IOException
+     */
+    FileInfo getFileInfo(String fileName) throws IOException;
+
+    /**
+     * Look for file by signature
+     * @param hash the target signature
+     * @return true if a file with the given signature is in the directory
+     * @throws IOException
+     */
+    boolean isHashPresent(String hash) throws IOException;
+
+    /**
+     * Look for files by signature
+     * @param hash the target signature
+     * @return the entries with this signature, read-only, empty if none
+     * @throws IOException
+     */
+    Collection<FileInfo> getByHash(String hash) throws IOException;
+
+    /**
+     * @return a copy of the entries
+     * @throws IOException
+     */
+    Set<FileInfo> getFiles() throws IOException;
+
+    /**
+     * @return a copy of the entries with file names as keys
+     * @throws IOException
+     */
+    Map<String, FileInfo> getNameIndex() throws IOException;
+
+    /**
+     * The view follows the later changes of the index, which must not be
+     * changed while iterating over the view.
+     * @return a read-only live view of the entries with file names as keys
+     * @throws IOException
+     */
+    Map<String, FileInfo> nameView() throws IOException;
+
+    /**
+     * Stream the entries without copying them, the index must not be changed
+     * while the stream is consumed.
+     * @return a sequential stream of the entries
+     * @throws IOException
+     */
+    Stream<FileInfo> stream() throws IOException;
+
+    /**
+     * Rewrite the index without its removed entries, if they are numerous
+     * @return true if the index was rewritten
+     * @throws IOException
+     */
+    default boolean compactIfNeeded() throws IOException
+    {
+        return false;
+    }
+}
@@ -24,13 +24,21 @@
 package com.batmgr.filesystem;
 
 import java.awt.Toolkit;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Creates indexes in a directory tree
+ * Creates indexes in a directory tree. <br>
+ * Usage: Indexer [-r] dir [cache[=file]] [xattr] [lazy] [adaptive] [disk-order] [profile[=N]]. The cache of hashes avoids reading
+ * again files that were renamed or moved, see {@link HashCache}. With xattr, the
+ * indexes are stored in extended attributes, see {@link XattrIndexStore}. With
+ * lazy, the indexes are read on demand, see {@link LazyDirInfo}. With
+ * adaptive, files are hashed in parallel, see {@link ConcurrencyController}. With
+ * disk-order, files are hashed in inode order, see {@link DiskOrder}. With profile,
+ * the slowest directories and files are reported, see {@link HotSpotProfiler}.
  */
 public class Indexer {
 
@@ -40,14 +48,46 @@ public class Indexer {
     {
         DirChecker checker = new DirChecker();
         try {
-            if (args[0].equals("-r")) {
-                checker.indexTree(Paths.get(args[1]));
-            } else {
-                checker.indexFolder(Paths.get(args[0]));
+            boolean recursive = args[0].equals("-r");
+            int next = recursive ? 1 : 0;
+            Path dir = Paths.get(args[next++]);
+            HashCache cache = null;
+            for (; next < args.length; next++) {
+                if (args[next].equals("xattr")) {
+                    checker.setXattrIndex(true);
+                } else if (args[next].equals("lazy")) {
+                    checker.setLazyIndex(true);
+                } else if (args[next].equals("disk-order")) {
+                    checker.setDiskOrder(true);
+                } else if (args[next].equals("adaptive")) {
+                    checker.setConcurrencyController(new ConcurrencyController("index"));
+                } else if (HotSpotProfiler.parseOption(args[next]) > 0) {
+                    HotSpotProfiler.getDefault().setTop(HotSpotProfiler.parseOption(args[next]));
+                } else if (args[next].equals("cache")) {
+                    cache = HashCache.openDefault();
+                } else if (args[next].startsWith("cache=")) {
+                    cache = new HashCache(Paths.get(args[next].substring("cache=".length())), HashCache.DEFAULT_CAPACITY);
+                } else {
+                    throw new IllegalArgumentException(String.format("unknown option %s", args[next]));
+                }
+            }
+            checker.setHashCache(cache);
+            try {
+                if (recursive) {
+                    checker.indexTree(dir);
+                } else {
+                    checker.indexFolder(dir);
+                }
+            } finally {
+                if (cache != null) {
+                    cache.save();
+                }
             }
         } catch (Throwable t) {
             LOG.error("program aborted", t);
         }
+        Metrics.getDefault().logSummary();
+        HotSpotProfiler.getDefault().logReport();
         Toolkit.getDefaultToolkit().beep();
     }
 }
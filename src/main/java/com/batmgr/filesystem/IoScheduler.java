@@ -0,0 +1,315 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the concurrent reads and writes per device. <br>
+ * Concurrent readers make a spinning disk seek between files, they are served
+ * one at a time in arrival order; solid state devices need several requests in
+ * flight to reach their throughput. Each file store gets its own limit, so a
+ * copy from a hard disk to a SSD runs each device at its best. <br>
+ * Limits are read from system properties:
+ * <ul>
+ * <li>batmgr.io.hdd: concurrent operations on a rotational device, default 1</li>
+ * <li>batmgr.io.ssd: on a non rotational device, default 8</li>
+ * <li>batmgr.io.default: when the kind of device is unknown, default 4</li>
+ * <li>batmgr.io.store.&lt;file store name&gt;: for one file store, e.g. batmgr.io.store./dev/sdb1=2</li>
+ * <li>batmgr.io.disabled=true: no limit</li>
+ * </ul>
+ * Permits are reentrant per thread: hashing a file while copying it doesn't
+ * wait. A copy acquires its two devices in a fixed order.
+ */
+@SuppressWarnings("nls")
+public class IoScheduler {
+    
+    private static final Logger             LOG             = LoggerFactory.getLogger(IoScheduler.class);
+
+    public static final int                 DEFAULT_HDD     = 1;
+    public static final int                 DEFAULT_SSD     = 8;
+    public static final int                 DEFAULT_UNKNOWN = 4;
+    
+    private static final IoScheduler        INSTANCE        = new IoScheduler(Boolean.getBoolean("batmgr.io.disabled"));
+    private static final Permit             NO_PERMIT       = () -> { };
+
+    private final boolean                   disabled;
+    private final Map<Object, Device>       devices         = new ConcurrentHashMap<>(); // key is the device id
+    private final AtomicLong                nextOrder       = new AtomicLong();
+    private final ThreadLocal<Map<Device, Integer>> held    = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * A permit to read or write, released by close
+     */
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * The queue of one file store
+     */
+    private static final class Device {
+        final String    name;
+        final long      order;
+        final int       concurrency;
+        final Semaphore semaphore;
+        
+        Device(String name, long order, int concurrency, boolean fair)
+        {
+            this.name = name;
+            this.order = order;
+            this.concurrency = concurrency;
+            semaphore = new Semaphore(concurrency, fair);
+        }
+    }
+
+    IoScheduler(boolean disabled)
+    {
+        this.disabled = disabled;
+    }
+    
+    /**
+     * @return the scheduler shared by all tools
+     */
+    public static IoScheduler getDefault()
+    {
+        return INSTANCE;
+    }
+    
+    /**
+     * Copy a file within the limits of both devices
+     * @param src the source file
+     * @param dst the target file
+     * @param options as {@link Files#copy(Path, Path, CopyOption...)}
+     * @throws IOException
+     */
+    @SuppressWarnings("try") // the permit is held, not used
+    public static void copy(Path src, Path dst, CopyOption... options) throws IOException
+    {
+        FsEvents.CopyEvent event = new FsEvents.CopyEvent();
+        try (Permit permit = INSTANCE.acquire(src, dst)) {
+            event.begin(); // the wait for the permits is not part of the event
+            Files.copy(src, dst, options);
+        }
+        event.end();
+        long bytes = Files.size(dst);
+        Metrics.getDefault().bytesCopied(bytes);
+        if (event.shouldCommit()) {
+            event.source = src.toString();
+            event.destination = dst.toString();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Wait for a permit on the device of a file
+     * @param p a file or directory, or a file about to be created
+     * @return the permit, to close when the operation is done
+     * @throws IOException
+     */
+    public Permit acquire(Path p) throws IOException
+    {
+        if (disabled) {
+            return NO_PERMIT;
+        }
+        Device device = getDevice(p);
+        enter(device);
+        return () -> leave(device);
+    }
+    
+    /**
+     * Wait for permits on the devices of a source and a target, in a fixed order
+     * @param src the file read
+     * @param dst the file written, may not exist yet
+     * @return the permits, to close when the operation is done
+     * @throws IOException
+     */
+    public Permit acquire(Path src, Path dst) throws IOException
+    {
+        if (disabled) {
+            return NO_PERMIT;
+        }
+        Device first = getDevice(src);
+        Device second = getDevice(dst);
+        if (first == second) {
+            return acquire(src);
+        }
+        if (second.order < first.order) {
+            Device swap = first;
+            first = second;
+            second = swap;
+        }
+        enter(first);
+        try {
+            enter(second);
+        } catch (IOException | RuntimeException e) {
+            leave(first);
+            throw e;
+        }
+        Device a = first;
+        Device b = second;
+        return () -> {
+            leave(b);
+            leave(a);
+        };
+    }
+    
+    /**
+     * @param p a file or directory
+     * @return the number of concurrent operations allowed on its device
+     * @throws IOException
+     */
+    int getConcurrency(Path p) throws IOException
+    {
+        return getDevice(p).concurrency;
+    }
+    
+    private void enter(Device device) throws InterruptedIOException
+    {
+        Map<Device, Integer> mine = held.get();
+        Integer count = mine.get(device);
+        if (count == null) {
+            try {
+                device.semaphore.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("waiting for %s", device.name));
+            }
+            count = 0;
+        }
+        mine.put(device, count + 1);
+    }
+    
+    private void leave(Device device)
+    {
+        Map<Device, Integer> mine = held.get();
+        int count = mine.get(device);
+        if (count == 1) {
+            mine.remove(device);
+            device.semaphore.release();
+        } else {
+            mine.put(device, count - 1);
+        }
+    }
+    
+    /**
+     * Find the device of a file, the device id is read with a single stat,
+     * the file store only the first time
+     */
+    private Device getDevice(Path p) throws IOException
+    {
+        Path existing = p;
+        while (!Files.exists(existing) && existing.toAbsolutePath().getParent() != null) {
+            existing = existing.toAbsolutePath().getParent();
+        }
+        Object key;
+        try {
+            key = Files.getAttribute(existing, "unix:dev");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            key = null;
+        }
+        FileStore store = null;
+        if (key == null) {
+            store = Files.getFileStore(existing);
+            key = store;
+        }
+        Device device = devices.get(key);
+        if (device != null) {
+            return device;
+        }
+        if (store == null) {
+            store = Files.getFileStore(existing);
+        }
+        FileStore finalStore = store;
+        return devices.computeIfAbsent(key, k -> newDevice(finalStore, nextOrder.getAndIncrement()));
+    }
+    
+    private static Device newDevice(FileStore store, long order)
+    {
+        Boolean rotational = isRotational(store.name());
+        int concurrency;
+        String configured = System.getProperty("batmgr.io.store." + store.name());
+        if (configured != null) {
+            concurrency = Integer.parseInt(configured);
+        } else if (rotational == null) {
+            concurrency = Integer.getInteger("batmgr.io.default", DEFAULT_UNKNOWN);
+        } else if (rotational) {
+            concurrency = Integer.getInteger("batmgr.io.hdd", DEFAULT_HDD);
+        } else {
+            concurrency = Integer.getInteger("batmgr.io.ssd", DEFAULT_SSD);
+        }
+        // first come first served keeps the head moving forward on a disk
+        Device result = new Device(store.name(), order, Math.max(1, concurrency), !Boolean.FALSE.equals(rotational));
+        LOG.info(String.format("Device %s (%s): %d concurrent operations", store.name(),
+            rotational == null ? "unknown" : rotational ? "rotational" : "solid state", result.concurrency));
+        return result;
+    }
+    
+    /**
+     * Read the rotational flag of a Linux block device
+     * @param storeName the name of the file store, e.g. /dev/sda1
+     * @return null if unknown
+     */
+    static Boolean isRotational(String storeName)
+    {
+        if (!storeName.startsWith("/dev/")) {
+            return null;
+        }
+        try {
+            // resolves /dev/mapper/x to /dev/dm-0
+            String device = Paths.get(storeName).toRealPath().getFileName().toString();
+            Path block = Paths.get("/sys/class/block", device).toRealPath();
+            Path flag = block.resolve("queue/rotational");
+            if (!Files.exists(flag)) { // a partition, the flag belongs to the disk
+                flag = block.getParent().resolve("queue/rotational");
+            }
+            if (!Files.exists(flag)) {
+                return null;
+            }
+            return Files.readAllLines(flag).get(0).trim().equals("1");
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            LOG.debug(String.format("%s: rotational flag unknown (%s)", storeName, e.getMessage()));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations in power of 2 buckets of microseconds: bucket i
+ * counts the durations below 2^i us. Recording is lock free.
+ */
+@SuppressWarnings("nls")
+public class LatencyHistogram {
+
+    private static final int      BUCKETS = 40; // up to about 12 days
+
+    private final AtomicLongArray counts  = new AtomicLongArray(BUCKETS);
+    private final LongAdder       total   = new LongAdder();
+    private final LongAdder       sum     = new LongAdder(); // us
+    private final LongAccumulator max     = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos a duration
+     */
+    public void record(long nanos)
+    {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        total.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    public long getCount()
+    {
+        return total.sum();
+    }
+
+    /**
+     * @return mean duration in us, 0 if nothing was recorded
+     */
+    public long getMeanMicros()
+    {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    public long getMaxMicros()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param fraction e.g. 0.99
+     * @return upper bound of the bucket of the percentile in us, 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double fraction)
+    {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * @return the summary and the non empty buckets, keyed by their upper bound in us
+     */
+    public String toJson()
+    {
+        StringBuilder buckets = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c > 0) {
+                buckets.append(buckets.length() == 0 ? "" : ", ").append(String.format(Locale.ROOT, "\"%d\": %d", 1L << i, c));
+            }
+        }
+        return String.format(Locale.ROOT, "{\"count\": %d, \"meanMicros\": %d, \"p50Micros\": %d, \"p99Micros\": %d, "
+            + "\"maxMicros\": %d, \"buckets\": {%s}}", getCount(), getMeanMicros(), getPercentileMicros(0.5),
+            getPercentileMicros(0.99), getMaxMicros(), buckets);
+    }
+
+}
@@ -0,0 +1,735 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of one directory read on demand, for huge directories. <br>
+ * The entries stay in the .index file, mapped in memory, next to a sorted
+ * sidecar (.index.sorted) holding the offsets of the live entries by name and
+ * by hash. Lookups are binary searches over the sidecar, read in memory at 8
+ * bytes per entry, and the mapped index, so opening a directory of a million
+ * files costs 8 MB instead of the maps of {@link DirInfo}.
+ * <p>
+ * The sidecar records the size of the index it covers. The lines appended
+ * since, by this class or by {@link DirInfo}, are parsed when opening. The
+ * sidecar is built again when these lines get numerous, or when the index was
+ * replaced. Entries removed later are flagged in place in the index, and the
+ * mapping sees the flags. Only the complete lines are read: another writer may
+ * be appending one.
+ * <p>
+ * A {@link HashFilter} of the hashes (.index.bloom) is kept with the sidecar,
+ * so that looking for an absent hash reads neither file. It is updated on
+ * append and built again with the sidecar, e.g. after
+ * {@link DirInfo#compactIfNeeded()}. The sidecar and the filter are not kept
+ * mapped, other instances replace or delete them. Windows doesn't replace the
+ * mapped index either: compaction waits until it is closed.
+ * <p>
+ * Not thread-safe. The writes take the {@link IndexLock} of the index, so
+ * that other processes, and {@link DirInfo}, can write it meanwhile: the lines
+ * they append are seen at the next opening. An index replaced meanwhile, e.g.
+ * compacted, is opened again before writing, the offsets of the old one would
+ * flag other entries.
+ */
+@SuppressWarnings("nls")
+public class LazyDirInfo implements IndexStore {
+
+    private static final Logger   LOG         = LoggerFactory.getLogger(LazyDirInfo.class);
+
+    public static final String    SORTED_FILE = DirInfo.IDXFILE + ".sorted";
+    public static final String    TMP_FILE    = SORTED_FILE + ".tmp";
+    public static final String    FILTER_FILE = DirInfo.IDXFILE + ".bloom";
+    public static final String    FILTER_TMP_FILE = FILTER_FILE + ".tmp";
+
+    private static final long     MAGIC       = 0x42444953_4f525431L;
+    private static final int      HEADER      = 8 + 8 + 4 + 4 + 4;                    // magic, covered size, generation, checksum, count
+    private static final int      CHECKED     = 4096;                                 // bytes checked at both ends of the covered part
+    private static final int      HASH_CHARS  = 64;
+    private static final int      MIN_TAIL    = 1024;                                 // entries parsed at each opening before building again
+
+    private final Path            path;
+    private final Path            indexFile;
+    private final Path            sortedFile;
+    private final Path            filterFile;
+    private HashCache             hashCache;                                          // null if none
+
+    private MappedByteBuffer      index;                                              // the part of the index covered by the sidecar
+    private IntBuffer             byName;                                             // offsets of the entries sorted by name
+    private IntBuffer             byHash;                                             // offsets of the entries sorted by hash
+    private Map<String, FileInfo> tail        = new HashMap<>();                      // entries appended after the sidecar
+    private Map<FileInfo, Integer> tailLocations = new HashMap<>();
+    private HashFilter            filter;                                             // null if it cannot be written
+    private long                  mappedGeneration;                                   // generation of the mapped index, see IndexLock
+
+    /**
+     * Open the index in this directory
+     * @param path the indexed directory
+     * @throws IOException
+     * @throws InvalidIndexException
+     */
+    public LazyDirInfo(Path path) throws IOException, InvalidIndexException
+    {
+        this(path, path.resolve(DirInfo.IDXFILE));
+    }
+
+    /**
+     * Open the index of this directory, stored in another location
+     * @param path the indexed directory
+     * @param indexFile the index, e.g. in a shadow tree; the sidecar is stored next to it
+     * @throws IOException
+     * @throws InvalidIndexException
+     */
+    public LazyDirInfo(Path path, Path indexFile) throws IOException, InvalidIndexException
+    {
+        this.path = path;
+        this.indexFile = indexFile;
+        sortedFile = indexFile.resolveSibling(SORTED_FILE);
+        filterFile = indexFile.resolveSibling(FILTER_FILE);
+        DirInfo.createIndexIfNeeded(path, indexFile);
+        open(true);
+    }
+
+    private void open(boolean mayBuild) throws IOException, InvalidIndexException
+    {
+        // read first: an index replaced meanwhile is opened again at the next write
+        mappedGeneration = IndexLock.generation(indexFile);
+        int generation = (int) mappedGeneration;
+        try (FileChannel fc = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            long covered = readSidecar(fc, generation);
+            if (covered >= 0) {
+                filter = HashFilter.read(filterFile);
+                if (filter == null || filter.isFull() || filter.getCovered() < covered || filter.getCovered() > fc.size()) {
+                    covered = -1; // build the filter again with the sidecar
+                }
+            }
+            if (covered < 0) {
+                covered = build(fc, generation);
+            }
+            index = fc.map(FileChannel.MapMode.READ_ONLY, 0, covered);
+            checkSignature(fc);
+            long end = readTail(fc, covered);
+            if (filter != null && filter.getCovered() < end) {
+                filter.setCovered(end);
+            }
+        }
+        if (mayBuild && tail.size() > MIN_TAIL && Files.isRegularFile(sortedFile)
+            && tail.size() > byName.limit() / 4)
+        {
+            LOG.debug(String.format("%s: %d entries after the sorted index, sort again", indexFile, tail.size()));
+            Files.deleteIfExists(sortedFile);
+            tail.clear();
+            tailLocations.clear();
+            open(false);
+        }
+    }
+
+    /**
+     * Read the sidecar if it matches the index
+     * @return the size of the index covered by the sidecar, -1 if it must be built
+     */
+    private long readSidecar(FileChannel indexChannel, int generation) throws IOException
+    {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(sortedFile);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+        if (bytes.length < HEADER) {
+            return -1;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        long covered = buf.getLong(8);
+        int count = buf.getInt(HEADER - 4);
+        if (buf.getLong(0) != MAGIC || covered > indexChannel.size() || buf.getInt(16) != generation
+            || buf.getInt(20) != checksum(indexChannel, covered) || bytes.length != HEADER + 8L * count)
+        {
+            return -1; // the index was replaced or truncated
+        }
+        setSorted(buf, count);
+        return covered;
+    }
+
+    private void setSorted(ByteBuffer sidecar, int count)
+    {
+        byName = sidecar.slice(HEADER, 4 * count).asIntBuffer();
+        byHash = sidecar.slice(HEADER + 4 * count, 4 * count).asIntBuffer();
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final String hash;
+        final int    offset;
+
+        Entry(byte[] name, String hash, int offset)
+        {
+            this.name = name;
+            this.hash = hash;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Parse the whole index once and write the sidecar, without the lock: a
+     * line being appended is left to the tail
+     * @return the size of the index covered by the sidecar
+     */
+    private long build(FileChannel indexChannel, int generation) throws IOException, InvalidIndexException
+    {
+        Map<String, Entry> live = new HashMap<>();
+        long end = DirInfo.parse(indexChannel, 0, indexFile, (fi, location) -> {
+            if (fi.isRemovedFlagSet()) {
+                return;
+            }
+            Entry previous = live.get(fi.getName());
+            // the flag of the previous entry may have been written after it was read
+            if (previous != null && !DirInfo.isRemovedOnDisk(indexChannel, previous.offset, indexFile)) {
+                throw new InvalidIndexException(String.format("multiple occurrences of name %s in index", fi.getName()));
+            }
+            live.put(fi.getName(), new Entry(fi.getName().getBytes(StandardCharsets.UTF_8), fi.getHash(), location));
+        });
+        int start = (int) end;
+        List<Entry> entries = new ArrayList<>(live.values());
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + 8 * entries.size());
+        buf.putLong(MAGIC).putLong(start).putInt(generation).putInt(checksum(indexChannel, start)).putInt(entries.size());
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.name, b.name));
+        entries.forEach(e -> buf.putInt(e.offset));
+        entries.sort((a, b) -> a.hash.compareTo(b.hash));
+        entries.forEach(e -> buf.putInt(e.offset));
+        buf.flip();
+        try {
+            // the filter first, a sidecar without its filter is built again
+            HashFilter built = new HashFilter(entries.size());
+            entries.forEach(e -> built.add(e.hash));
+            built.setCovered(start);
+            built.write(filterFile, filterFile.resolveSibling(FILTER_TMP_FILE));
+            filter = built;
+            Path tmp = sortedFile.resolveSibling(TMP_FILE);
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buf.hasRemaining()) {
+                    fc.write(buf);
+                }
+                fc.force(true);
+            }
+            Files.move(tmp, sortedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // e.g. a read-only directory, all the entries are parsed at each opening
+            LOG.warn(String.format("%s: cannot write the sorted index (%s)", sortedFile, e.getMessage()));
+            filter = null;
+            byName = IntBuffer.allocate(0);
+            byHash = IntBuffer.allocate(0);
+            return DirInfo.IDXSIGNATURE.length() + 2;
+        }
+        setSorted(buf, entries.size());
+        return start;
+    }
+
+    /**
+     * The generation is not enough to detect an index replaced by another one,
+     * e.g. restored from a backup or with its lock file deleted. The flags are
+     * left out, they change in place.
+     * @return the CRC of the lines at the beginning and at the end of the covered part
+     */
+    private static int checksum(FileChannel fc, long covered) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(covered, CHECKED));
+        byte[] bytes = buf.array();
+        for (long pos : new long[] { 0, covered - buf.capacity() }) {
+            buf.clear();
+            while (buf.hasRemaining() && fc.read(buf, pos + buf.position()) > 0) {
+                // fill the buffer
+            }
+            int from = pos == 0 ? 0 : -1; // skip the first line, unless it is the signature
+            for (int i = 1; i < buf.position(); i++) {
+                if (bytes[i - 1] != '\r' || bytes[i] != '\n') {
+                    continue;
+                }
+                if (from < 0) {
+                    from = i + 1;
+                }
+                int flags = i + 1 + HASH_CHARS + 1;
+                Arrays.fill(bytes, Math.min(flags, buf.position()), Math.min(flags + 4, buf.position()), (byte) '0');
+            }
+            if (from >= 0) {
+                crc.update(bytes, from, buf.position() - from);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private void checkSignature(FileChannel fc) throws IOException, InvalidIndexException
+    {
+        byte[] expected = String.format("%s\r\n", DirInfo.IDXSIGNATURE).getBytes(DirInfo.IDXCHARSET);
+        ByteBuffer buf = ByteBuffer.allocate(expected.length);
+        while (buf.hasRemaining() && fc.read(buf, buf.position()) > 0) {
+            // read the first line
+        }
+        if (!Arrays.equals(buf.array(), expected)) {
+            throw new InvalidIndexException(indexFile + ": has an invalid signature");
+        }
+    }
+
+    /**
+     * Parse the entries appended after the sidecar, add to the filter those it doesn't cover
+     * @return the end of the last entry
+     */
+    private long readTail(FileChannel fc, long covered) throws IOException, InvalidIndexException
+    {
+        ByteBuffer buf = ByteBuffer.allocate((int) (fc.size() - covered));
+        while (buf.hasRemaining() && fc.read(buf, covered + buf.position()) > 0) {
+            // read to the end
+        }
+        byte[] bytes = buf.array();
+        int begin = 0;
+        for (int i = 1; i < buf.position(); i++) {
+            if (bytes[i] != '\n' || bytes[i - 1] != '\r') {
+                continue;
+            }
+            FileInfo fi = parse(new String(bytes, begin, i - 1 - begin, DirInfo.IDXCHARSET));
+            Metrics.getDefault().indexLineParsed();
+            if (!fi.isRemovedFlagSet()) {
+                tail.put(fi.getName(), fi);
+                tailLocations.put(fi, (int) covered + begin);
+                if (filter != null && covered + begin >= filter.getCovered()) {
+                    filter.add(fi.getHash());
+                }
+            }
+            begin = i + 1;
+        }
+        return covered + begin;
+    }
+
+    private FileInfo parse(String line) throws InvalidIndexException
+    {
+        try {
+            return new FileInfo(line);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidIndexException(String.format("%s: %s", indexFile, e.getMessage()));
+        }
+    }
+
+    /**
+     * Read the entry at an offset of the mapped index
+     */
+    private FileInfo decode(int offset) throws IOException
+    {
+        int end = offset + HASH_CHARS;
+        while (index.get(end) != '\r') {
+            end++;
+        }
+        byte[] line = new byte[end - offset];
+        index.get(offset, line);
+        Metrics.getDefault().indexLineParsed();
+        try {
+            return new FileInfo(new String(line, DirInfo.IDXCHARSET));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(String.format("%s: %s", indexFile, e.getMessage()), e);
+        }
+    }
+
+    private FileInfo decodeUnchecked(int offset)
+    {
+        try {
+            return decode(offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Compare the name of the entry at an offset with a name, as unsigned bytes
+     */
+    private int compareName(int offset, byte[] name)
+    {
+        int pos = offset + HASH_CHARS + 6; // after hash;flags;
+        for (int fields = 0; fields < 2; pos++) { // skip size;instant;
+            if (index.get(pos) == ';') {
+                fields++;
+            }
+        }
+        for (int i = 0;; i++, pos++) {
+            byte b = index.get(pos);
+            if (b == '\r') {
+                return i == name.length ? 0 : -1;
+            }
+            if (i == name.length) {
+                return 1;
+            }
+            int cmp = Byte.compareUnsigned(b, name[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+    }
+
+    private int compareHash(int offset, byte[] hash)
+    {
+        for (int i = 0; i < HASH_CHARS; i++) {
+            int cmp = Byte.compareUnsigned(index.get(offset + i), i < hash.length ? hash[i] : 0);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return hash.length > HASH_CHARS ? -1 : 0;
+    }
+
+    /**
+     * @return the offset of the entry with this name in the mapped index, -1 if none
+     */
+    private int findByName(String name)
+    {
+        byte[] target = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = byName.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(byName.get(mid), target);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return byName.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void setHashCache(HashCache hashCache)
+    {
+        this.hashCache = hashCache;
+    }
+
+    @Override
+    public void addIfNeeded(Path p) throws IOException, NoSuchAlgorithmException
+    {
+        // always skip IDXFILE and work files
+        if (DirInfo.isReservedName(p.getFileName().toString())) {
+            return;
+        }
+        String name = p.getFileName().toString();
+        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        if (isUpToDate(name, attrs)) {
+            return; // same file
+        }
+        update(name, attrs, HashCache.computeSha256(hashCache, p, attrs));
+    }
+
+    @Override
+    public boolean isUpToDate(String name, BasicFileAttributes attrs) throws IOException
+    {
+        FileInfo fileInfo = getFileInfo(name);
+        boolean upToDate = fileInfo != null
+            && fileInfo.getSize() == attrs.size()
+            && fileInfo.getLastModif().compareTo(fileInfo.secondFileTime(attrs.lastModifiedTime())) == 0;
+        Metrics.getDefault().fileSeen(upToDate);
+        return upToDate;
+    }
+
+    @Override
+    public void update(String name, BasicFileAttributes attrs, String hash) throws IOException
+    {
+        FileInfo fileInfo = getFileInfo(name);
+        if (fileInfo != null) {
+            removeFromIndex(fileInfo);
+        }
+        appendToIndex(new FileInfo(name, attrs.size(), attrs.lastModifiedTime(), hash, 0));
+    }
+
+    @Override
+    public void appendToIndex(FileInfo fileInfo) throws IOException
+    {
+        long start = HotSpotProfiler.getDefault().start();
+        byte[] line = String.format("%s\r\n", fileInfo).getBytes(DirInfo.IDXCHARSET);
+        int location;
+        try (IndexLock lock = IndexLock.acquire(indexFile)) {
+            reopenIfReplaced(lock);
+            // the end of the file cannot move while the lock is held
+            location = (int) lock.channel().size();
+            ByteBuffer byteBuffer = ByteBuffer.wrap(line);
+            while (byteBuffer.hasRemaining()) {
+                lock.channel().write(byteBuffer, location + byteBuffer.position());
+            }
+        }
+        Metrics.getDefault().indexLineWritten();
+        if (filter != null) {
+            filter.add(fileInfo.getHash());
+            if (filter.getCovered() == location) { // otherwise the lines of other writers are added at the next opening
+                filter.setCovered(location + line.length);
+            }
+        }
+        HotSpotProfiler.getDefault().record(path, HotSpotProfiler.Phase.APPEND, start);
+        // update the tail if write is successful
+        tail.put(fileInfo.getName(), fileInfo);
+        tailLocations.put(fileInfo, location);
+    }
+
+    @Override
+    public void removeFromIndex(FileInfo fileInfo) throws IOException
+    {
+        removeFromIndex(Collections.singletonList(fileInfo));
+    }
+
+    /**
+     * Several entries are obsolete, update their flags with a single opening of the index.
+     * @param fileInfos entries to remove
+     * @throws IOException
+     */
+    @Override
+    public void removeFromIndex(Collection<FileInfo> fileInfos) throws IOException
+    {
+        if (fileInfos.isEmpty()) {
+            return;
+        }
+        long start = HotSpotProfiler.getDefault().start();
+        try (IndexLock lock = IndexLock.acquire(indexFile)) {
+            reopenIfReplaced(lock);
+            FileChannel fc = lock.channel();
+            for (FileInfo fileInfo : fileInfos) {
+                int loc = getLocation(fileInfo);
+                if (loc < 0) {
+                    throw new IllegalArgumentException("file location is unknown");
+                }
+                fc.position(fileInfo.getFlagsLocation(loc));
+                fileInfo.setRemovedFlag();
+                ByteBuffer byteBuffer = ByteBuffer.wrap(fileInfo.getFlagsString().getBytes(DirInfo.IDXCHARSET));
+                fc.write(byteBuffer);
+                Metrics.getDefault().tombstoneWritten();
+                FileInfo inTail = tail.get(fileInfo.getName());
+                if (inTail != null && Integer.valueOf(loc).equals(tailLocations.get(inTail))) {
+                    tail.remove(fileInfo.getName());
+                    tailLocations.remove(inTail);
+                }
+                tailLocations.remove(fileInfo);
+            }
+        }
+        HotSpotProfiler.getDefault().record(path, HotSpotProfiler.Phase.APPEND, start);
+    }
+
+    /**
+     * Open the index again if it is not the mapped one any more, before
+     * writing at offsets of the mapped one
+     * @param lock the lock of the index
+     * @throws IOException
+     */
+    private void reopenIfReplaced(IndexLock lock) throws IOException
+    {
+        if (lock.generation() == mappedGeneration && lock.channel().size() >= index.limit()) {
+            return;
+        }
+        LOG.debug(String.format("%s: replaced, open again", indexFile));
+        tail.clear();
+        tailLocations.clear();
+        try {
+            open(true);
+        } catch (InvalidIndexException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Entries opened before the index was replaced are found by name and hash.
+     * @return the location of the entry in the index, -1 if unknown
+     */
+    private int getLocation(FileInfo fileInfo)
+    {
+        Integer loc = tailLocations.get(fileInfo);
+        if (loc != null) {
+            return loc.intValue();
+        }
+        FileInfo inTail = tail.get(fileInfo.getName());
+        if (inTail != null) {
+            return inTail.getHash().equals(fileInfo.getHash()) ? tailLocations.get(inTail).intValue() : -1;
+        }
+        int offset = findByName(fileInfo.getName());
+        if (offset < 0 || compareHash(offset, fileInfo.getHash().getBytes(StandardCharsets.US_ASCII)) != 0) {
+            return -1;
+        }
+        return offset;
+    }
+
+    @Override
+    public FileInfo getFileInfo(String fileName) throws IOException
+    {
+        FileInfo result = tail.get(fileName);
+        if (result != null) {
+            return result;
+        }
+        int offset = findByName(fileName);
+        if (offset < 0) {
+            return null;
+        }
+        result = decode(offset);
+        return result.isRemovedFlagSet() ? null : result;
+    }
+
+    @Override
+    public boolean isHashPresent(String hash) throws IOException
+    {
+        return !getByHash(hash).isEmpty();
+    }
+
+    @Override
+    public Collection<FileInfo> getByHash(String hash) throws IOException
+    {
+        if (filter != null && !filter.mightContain(hash)) {
+            return Collections.emptyList();
+        }
+        List<FileInfo> result = new ArrayList<>(1);
+        byte[] target = hash.getBytes(StandardCharsets.US_ASCII);
+        // first entry with this hash
+        int low = 0;
+        int high = byHash.limit();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareHash(byHash.get(mid), target) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < byHash.limit() && compareHash(byHash.get(i), target) == 0; i++) {
+            FileInfo fi = decode(byHash.get(i));
+            if (!fi.isRemovedFlagSet() && !tail.containsKey(fi.getName())) {
+                result.add(fi);
+            }
+        }
+        for (FileInfo fi : tail.values()) {
+            if (fi.getHash().equals(hash)) {
+                result.add(fi);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public Set<FileInfo> getFiles() throws IOException
+    {
+        return stream().collect(Collectors.toCollection(HashSet::new));
+    }
+
+    @Override
+    public Map<String, FileInfo> getNameIndex() throws IOException
+    {
+        return stream().collect(Collectors.toMap(FileInfo::getName, fi -> fi, (a, b) -> b, HashMap::new));
+    }
+
+    /**
+     * The view reads the entries on demand; its size and iteration go over the whole index.
+     */
+    @Override
+    public Map<String, FileInfo> nameView()
+    {
+        return new AbstractMap<String, FileInfo>() {
+
+            @Override
+            public FileInfo get(Object key)
+            {
+                if (!(key instanceof String)) {
+                    return null;
+                }
+                try {
+                    return getFileInfo((String) key);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean containsKey(Object key)
+            {
+                return get(key) != null;
+            }
+
+            @Override
+            public Set<Map.Entry<String, FileInfo>> entrySet()
+            {
+                return new AbstractSet<Map.Entry<String, FileInfo>>() {
+
+                    @Override
+                    public Iterator<Map.Entry<String, FileInfo>> iterator()
+                    {
+                        return LazyDirInfo.this.stream().<Map.Entry<String, FileInfo>> map(fi -> new SimpleImmutableEntry<>(fi.getName(), fi))
+                            .iterator();
+                    }
+
+                    @Override
+                    public int size()
+                    {
+                        return (int) LazyDirInfo.this.stream().count();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The entries of the sorted index come in name order, then the entries appended since.
+     */
+    @Override
+    public Stream<FileInfo> stream()
+    {
+        Stream<FileInfo> sorted = IntStream.range(0, byName.limit())
+            .mapToObj(i -> decodeUnchecked(byName.get(i)))
+            .filter(fi -> !fi.isRemovedFlagSet() && !tail.containsKey(fi.getName()));
+        return Stream.concat(sorted, tail.values().stream());
+    }
+
+}
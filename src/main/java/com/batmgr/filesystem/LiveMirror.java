@@ -0,0 +1,387 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.awt.Toolkit;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keep a target directory synchronized with a source directory. <br>
+ * After a full {@link Synchronize}, the source tree is watched. Changes are
+ * collected until the tree is quiet for a moment, then each modified directory
+ * is synchronized once, with the usual checks. Scrape is always on, deletions
+ * and renames are propagated. A file deleted and a file created with the same
+ * contents in the same batch are a rename: the copy is moved in the target
+ * instead of being copied again. So are a directory deleted and a directory
+ * created with the same tree, i.e. the same names and contents.
+ * <p>
+ * Each directory of the source uses one watch, on Linux the number of inotify
+ * watches may have to be raised for big trees.
+ */
+@SuppressWarnings("nls")
+public class LiveMirror {
+    
+    private static final Logger LOG               = LoggerFactory.getLogger(LiveMirror.class);
+
+    public static final long    DEFAULT_QUIET     = 1000;  // ms without event before synchronizing
+    public static final long    DEFAULT_MAX_DELAY = 10000; // ms, synchronize even if events keep coming
+
+    private final Path          src;
+    private final Path          dst;
+    private final SyncOptions   options;
+    private final DirChecker    checker           = new DirChecker();
+    private final Map<WatchKey, Path> keys        = new HashMap<>();
+    private final Set<Path>     dirty             = new TreeSet<>(); // parents before children
+    private final Set<Path>     created           = new HashSet<>(); // source paths, candidates for renames
+    private final Set<Path>     createdDirs       = new HashSet<>();
+    private final Set<Path>     deleted           = new HashSet<>();
+    private boolean             overflow;
+    private WatchService        watcher;
+    
+    public static void main(String[] args) {
+        try {
+            SyncOptions options = SyncOptions.parse(args, 2);
+            LOG.info("options : " + options);
+            new LiveMirror(Paths.get(args[0]), Paths.get(args[1]), options).run(DEFAULT_QUIET, DEFAULT_MAX_DELAY);
+        } catch (Throwable t) {
+            LOG.error("program aborted", t);
+        }
+        Metrics.getDefault().logSummary();
+        Toolkit.getDefaultToolkit().beep();
+    }
+    
+    /**
+     * @param src the source directory
+     * @param dst the target directory
+     * @param options synchronization options, copied with scrape set
+     */
+    public LiveMirror(Path src, Path dst, SyncOptions options)
+    {
+        this.src = src.toAbsolutePath().normalize();
+        this.dst = dst;
+        this.options = options.copy().setScrape(true);
+    }
+    
+    /**
+     * Synchronize, then propagate changes until the thread is interrupted
+     * @param quiet ms without event before synchronizing
+     * @param maxDelay ms, maximum time changes can wait
+     */
+    public void run(long quiet, long maxDelay) throws IOException, NoSuchAlgorithmException, InvalidIndexException
+    {
+        try (WatchService ws = src.getFileSystem().newWatchService()) {
+            watcher = ws;
+            register(src); // before the first synchronization: changes made meanwhile are not lost
+            Synchronize.synchronize(src, dst, options);
+            LOG.info(String.format("Watching %d directories of %s", keys.size(), src));
+            while (true) {
+                WatchKey key = watcher.take();
+                long first = System.currentTimeMillis();
+                while (key != null) {
+                    collect(key);
+                    if (System.currentTimeMillis() - first > maxDelay) {
+                        break;
+                    }
+                    key = watcher.poll(quiet, TimeUnit.MILLISECONDS);
+                }
+                propagate();
+            }
+        } catch (InterruptedException e) {
+            LOG.info("Live mirror stopped");
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Watch a directory and its sub-directories
+     */
+    private void register(Path dir) throws IOException
+    {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException
+            {
+                if (!d.equals(src) && checker.isSpecialDir(d)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                keys.put(d.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    /**
+     * Record the directories changed according to the events of a key
+     */
+    private void collect(WatchKey key) throws IOException
+    {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (DirInfo.isReservedName(child.getFileName().toString())) {
+                continue; // written by the synchronization itself
+            }
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+                register(child);
+                createdDirs.add(child);
+            } else if (event.kind() == ENTRY_CREATE) {
+                created.add(child);
+            } else if (event.kind() == ENTRY_DELETE) {
+                deleted.add(child);
+            }
+            dirty.add(dir);
+        }
+        if (!key.reset()) {
+            keys.remove(key); // directory deleted, the event of its parent is enough
+        }
+    }
+    
+    /**
+     * Synchronize the changed directories, a directory that fails is tried again
+     * after the next change
+     */
+    private void propagate() throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        if (overflow) {
+            LOG.warn("Too many changes, synchronize everything");
+            overflow = false;
+            dirty.clear();
+            created.clear();
+            createdDirs.clear();
+            deleted.clear();
+            Synchronize.synchronize(src, dst, options);
+            return;
+        }
+        try {
+            moveRenamed();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("cannot move the renamed files, they are copied", e);
+        }
+        created.clear();
+        createdDirs.clear();
+        deleted.clear();
+        Set<Path> failed = new TreeSet<>();
+        for (Path dir : dirty) {
+            if (!Files.isDirectory(dir)) {
+                continue; // deleted, the parent removes it from dst
+            }
+            try {
+                Synchronize.synchronizeFolder(dir, dst.resolve(src.relativize(dir).toString()), options);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn(String.format("cannot synchronize %s, will try again", dir), e);
+                failed.add(dir);
+            }
+        }
+        dirty.clear();
+        dirty.addAll(failed);
+    }
+    
+    /**
+     * Move in the target the copies of the deleted files that have the
+     * contents of created files. The source folders of the created files are
+     * indexed, which the synchronization does anyway.
+     */
+    private void moveRenamed() throws IOException, InvalidIndexException, NoSuchAlgorithmException
+    {
+        DirChecker dstChecker = options.getDestinationChecker();
+        if (!createdDirs.isEmpty() && !deleted.isEmpty()) {
+            moveRenamedDirs(dstChecker);
+        }
+        if (created.isEmpty() || deleted.isEmpty()) {
+            return;
+        }
+        Map<Path, IndexStore> dstInfos = new HashMap<>();
+        Map<String, Path> copies = new HashMap<>(); // hash of a deleted file -> its copy in the target
+        for (Path p : deleted) {
+            Path dstPath = dst.resolve(src.relativize(p).toString());
+            if (Files.exists(p) || !Files.isRegularFile(dstPath) || !Files.isDirectory(dstPath.getParent())) {
+                continue;
+            }
+            FileInfo fileInfo = openIndex(dstChecker, dstInfos, dstPath.getParent()).getFileInfo(p.getFileName().toString());
+            if (fileInfo != null) {
+                copies.put(fileInfo.getHash(), dstPath);
+            }
+        }
+        if (copies.isEmpty()) {
+            return;
+        }
+        DirChecker srcChecker = options.getSourceChecker();
+        Map<Path, IndexStore> srcInfos = new HashMap<>();
+        for (Path p : created) {
+            Path dstPath = dst.resolve(src.relativize(p).toString());
+            if (!Files.isRegularFile(p) || Files.exists(dstPath) || !Files.isDirectory(dstPath.getParent())) {
+                continue;
+            }
+            if (!srcInfos.containsKey(p.getParent())) {
+                srcChecker.indexFolder(p.getParent());
+            }
+            FileInfo srcFileInfo = openIndex(srcChecker, srcInfos, p.getParent()).getFileInfo(p.getFileName().toString());
+            Path copy = srcFileInfo == null ? null : copies.remove(srcFileInfo.getHash());
+            if (copy == null) {
+                continue;
+            }
+            LOG.info(String.format("Move %s to %s", copy, dstPath));
+            IndexStore from = openIndex(dstChecker, dstInfos, copy.getParent());
+            from.removeFromIndex(from.getFileInfo(copy.getFileName().toString()));
+            Files.move(copy, dstPath);
+            openIndex(dstChecker, dstInfos, dstPath.getParent()).update(dstPath.getFileName().toString(),
+                Files.readAttributes(dstPath, BasicFileAttributes.class), srcFileInfo.getHash());
+        }
+    }
+    
+    /**
+     * Move in the target the copies of the deleted directories that have the
+     * tree of created directories. The names are compared first, the created
+     * trees are indexed only if they match.
+     */
+    private void moveRenamedDirs(DirChecker dstChecker) throws IOException, InvalidIndexException, NoSuchAlgorithmException
+    {
+        Map<Path, Map<String, String>> copies = new HashMap<>(); // copy of a deleted directory -> its tree
+        for (Path p : deleted) {
+            Path dstDir = dst.resolve(src.relativize(p).toString());
+            if (Files.exists(p) || !Files.isDirectory(dstDir)) {
+                continue;
+            }
+            Map<String, String> tree = listTree(dstDir, dstChecker, false);
+            if (tree != null && !tree.isEmpty()) {
+                copies.put(dstDir, tree);
+            }
+        }
+        DirChecker srcChecker = options.getSourceChecker();
+        for (Path p : createdDirs) {
+            Path dstPath = dst.resolve(src.relativize(p).toString());
+            if (copies.isEmpty()) {
+                return;
+            }
+            if (!Files.isDirectory(p) || Files.exists(dstPath) || !Files.isDirectory(dstPath.getParent())) {
+                continue;
+            }
+            Set<String> names = listTree(p, null, false).keySet();
+            Map<String, String> tree = null;
+            for (Map.Entry<Path, Map<String, String>> copy : copies.entrySet()) {
+                if (!copy.getValue().keySet().equals(names)) {
+                    continue;
+                }
+                if (tree == null) {
+                    tree = listTree(p, srcChecker, true);
+                }
+                if (copy.getValue().equals(tree)) {
+                    LOG.info(String.format("Move %s to %s", copy.getKey(), dstPath));
+                    Files.move(copy.getKey(), dstPath);
+                    copies.remove(copy.getKey());
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * List a tree with the hashes of its files
+     * @param root the top directory
+     * @param indexChecker opens the indexes of the tree, null to list the names only
+     * @param index true to index the directories first
+     * @return the hash of each file and "" for each directory, by path relative
+     * to root; null if a file is not indexed
+     */
+    private Map<String, String> listTree(Path root, DirChecker indexChecker, boolean index)
+        throws IOException, InvalidIndexException, NoSuchAlgorithmException
+    {
+        Map<String, String> result = new HashMap<>();
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(root);
+        while (!dirs.isEmpty()) {
+            Path dir = dirs.remove(dirs.size() - 1);
+            if (index) {
+                indexChecker.indexFolder(dir);
+            }
+            IndexStore dirInfo = indexChecker == null ? null : indexChecker.openIndex(dir);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path p : stream) {
+                    String name = p.getFileName().toString();
+                    if (Files.isDirectory(p)) {
+                        if (!checker.isSpecialDir(p)) {
+                            dirs.add(p);
+                            result.put(root.relativize(p).toString(), "");
+                        }
+                        continue;
+                    }
+                    if (!Files.isRegularFile(p) || DirInfo.isReservedName(name)) {
+                        continue;
+                    }
+                    FileInfo fileInfo = dirInfo == null ? null : dirInfo.getFileInfo(name);
+                    if (dirInfo != null && fileInfo == null) {
+                        return null;
+                    }
+                    result.put(root.relativize(p).toString(), fileInfo == null ? null : fileInfo.getHash());
+                }
+            }
+        }
+        return result;
+    }
+    
+    private static IndexStore openIndex(DirChecker checker, Map<Path, IndexStore> indexes, Path dir)
+        throws IOException, InvalidIndexException
+    {
+        IndexStore result = indexes.get(dir);
+        if (result == null) {
+            result = checker.openIndex(dir);
+            indexes.put(dir, result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters of the indexation, hashing and copies, shared by all tools. <br>
+ * Registered in the platform MBean server as com.batmgr.filesystem:type=Metrics.
+ * The tools log a JSON summary at the end of a run, and write it to the file
+ * given by the system property batmgr.metrics.file if set.
+ */
+@SuppressWarnings("nls")
+public class Metrics implements MetricsMXBean {
+
+    private static final Logger  LOG                  = LoggerFactory.getLogger(Metrics.class);
+
+    public static final String   OBJECT_NAME          = "com.batmgr.filesystem:type=Metrics";
+
+    private static final Metrics INSTANCE             = register(new Metrics());
+
+    private final LongAdder      filesSeen            = new LongAdder();
+    private final LongAdder      fastPathHits         = new LongAdder();
+    private final LongAdder      rehashes             = new LongAdder();
+    private final LongAdder      bytesHashed          = new LongAdder();
+    private final LatencyHistogram hashLatency        = new LatencyHistogram();
+    private final LongAdder      indexLinesParsed     = new LongAdder();
+    private final LongAdder      indexLinesWritten    = new LongAdder();
+    private final LongAdder      tombstonesWritten    = new LongAdder();
+    private final LongAdder      bytesCopied          = new LongAdder();
+    private final LongAdder      verificationFailures = new LongAdder();
+    private final LongAdder      targetsDetached      = new LongAdder();
+    private final AtomicInteger  concurrencyLimit     = new AtomicInteger();
+    private final LongAdder      concurrencyIncreases = new LongAdder();
+    private final LongAdder      concurrencyDecreases = new LongAdder();
+
+    Metrics()
+    {
+    }
+
+    /**
+     * @return the metrics shared by all tools
+     */
+    public static Metrics getDefault()
+    {
+        return INSTANCE;
+    }
+
+    private static Metrics register(Metrics metrics)
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            LOG.warn(String.format("metrics not available in JMX: %s", e));
+        }
+        return metrics;
+    }
+
+    /**
+     * An index entry was compared with a file
+     * @param upToDate true if the size and last update match, false if the file is hashed
+     */
+    public void fileSeen(boolean upToDate)
+    {
+        filesSeen.increment();
+        (upToDate ? fastPathHits : rehashes).increment();
+    }
+
+    /**
+     * A file was hashed
+     * @param bytes its size
+     * @param nanos the duration
+     */
+    public void fileHashed(long bytes, long nanos)
+    {
+        bytesHashed.add(bytes);
+        hashLatency.record(nanos);
+    }
+
+    public void indexLineParsed()
+    {
+        indexLinesParsed.increment();
+    }
+
+    public void indexLineWritten()
+    {
+        indexLinesWritten.increment();
+    }
+
+    public void tombstoneWritten()
+    {
+        tombstonesWritten.increment();
+    }
+
+    public void bytesCopied(long bytes)
+    {
+        bytesCopied.add(bytes);
+    }
+
+    /**
+     * A copy or a file doesn't have the expected contents
+     */
+    public void verificationFailed()
+    {
+        verificationFailures.increment();
+    }
+
+    /**
+     * A slow target of {@link FanOutSynchronize} reads the rest of a file by itself
+     */
+    public void targetDetached()
+    {
+        targetsDetached.increment();
+    }
+
+    @Override
+    public long getFilesSeen()
+    {
+        return filesSeen.sum();
+    }
+
+    @Override
+    public long getFastPathHits()
+    {
+        return fastPathHits.sum();
+    }
+
+    @Override
+    public long getRehashes()
+    {
+        return rehashes.sum();
+    }
+
+    @Override
+    public double getFastPathRatio()
+    {
+        long seen = getFilesSeen();
+        return seen == 0 ? 0 : (double) getFastPathHits() / seen;
+    }
+
+    @Override
+    public long getFilesHashed()
+    {
+        return hashLatency.getCount();
+    }
+
+    @Override
+    public long getBytesHashed()
+    {
+        return bytesHashed.sum();
+    }
+
+    @Override
+    public long getHashMeanMicros()
+    {
+        return hashLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getHashP50Micros()
+    {
+        return hashLatency.getPercentileMicros(0.5);
+    }
+
+    @Override
+    public long getHashP99Micros()
+    {
+        return hashLatency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getHashMaxMicros()
+    {
+        return hashLatency.getMaxMicros();
+    }
+
+    @Override
+    public long getIndexLinesParsed()
+    {
+        return indexLinesParsed.sum();
+    }
+
+    @Override
+    public long getIndexLinesWritten()
+    {
+        return indexLinesWritten.sum();
+    }
+
+    @Override
+    public long getTombstonesWritten()
+    {
+        return tombstonesWritten.sum();
+    }
+
+    @Override
+    public long getBytesCopied()
+    {
+        return bytesCopied.sum();
+    }
+
+    @Override
+    public long getVerificationFailures()
+    {
+        return verificationFailures.sum();
+    }
+
+    @Override
+    public long getTargetsDetached()
+    {
+        return targetsDetached.sum();
+    }
+
+    /**
+     * A {@link ConcurrencyController} decided its limit, at the end of a window or when created
+     * @param previous the limit before
+     * @param limit the new limit
+     */
+    public void concurrencyAdjusted(int previous, int limit)
+    {
+        concurrencyLimit.set(limit);
+        if (limit > previous) {
+            concurrencyIncreases.increment();
+        } else if (limit < previous) {
+            concurrencyDecreases.increment();
+        }
+    }
+
+    @Override
+    public int getConcurrencyLimit()
+    {
+        return concurrencyLimit.get();
+    }
+
+    @Override
+    public long getConcurrencyIncreases()
+    {
+        return concurrencyIncreases.sum();
+    }
+
+    @Override
+    public long getConcurrencyDecreases()
+    {
+        return concurrencyDecreases.sum();
+    }
+
+    @Override
+    public String getSummary()
+    {
+        // JSON numbers, whatever the default locale
+        return String.format(Locale.ROOT, "{\"filesSeen\": %d, \"fastPathHits\": %d, \"rehashes\": %d, \"fastPathRatio\": %.4f, "
+            + "\"bytesHashed\": %d, \"hashLatency\": %s, \"indexLinesParsed\": %d, \"indexLinesWritten\": %d, "
+            + "\"tombstonesWritten\": %d, \"bytesCopied\": %d, \"verificationFailures\": %d, \"targetsDetached\": %d, "
+            + "\"concurrencyLimit\": %d, \"concurrencyIncreases\": %d, \"concurrencyDecreases\": %d}",
+            getFilesSeen(), getFastPathHits(), getRehashes(), getFastPathRatio(), getBytesHashed(),
+            hashLatency.toJson(), getIndexLinesParsed(), getIndexLinesWritten(), getTombstonesWritten(),
+            getBytesCopied(), getVerificationFailures(), getTargetsDetached(), getConcurrencyLimit(),
+            getConcurrencyIncreases(), getConcurrencyDecreases());
+    }
+
+    @Override
+    public void reset()
+    {
+        filesSeen.reset();
+        fastPathHits.reset();
+        rehashes.reset();
+        bytesHashed.reset();
+        hashLatency.reset();
+        indexLinesParsed.reset();
+        indexLinesWritten.reset();
+        tombstonesWritten.reset();
+        bytesCopied.reset();
+        verificationFailures.reset();
+        targetsDetached.reset();
+        concurrencyLimit.set(0);
+        concurrencyIncreases.reset();
+        concurrencyDecreases.reset();
+    }
+
+    /**
+     * Log the summary at the end of a run, and write it to the file of batmgr.metrics.file
+     */
+    public void logSummary()
+    {
+        String summary = getSummary();
+        LOG.info(String.format("metrics %s", summary));
+        String file = System.getProperty("batmgr.metrics.file");
+        if (file == null) {
+            return;
+        }
+        Path path = Paths.get(file);
+        try {
+            Files.write(path, String.format("%s\n", summary).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOG.warn(String.format("%s: cannot write the metrics (%s)", path, e.getMessage()));
+        }
+    }
+
+}
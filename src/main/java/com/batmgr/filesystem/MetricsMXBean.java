@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+/**
+ * The counters of {@link Metrics}, as seen in JMX clients (jconsole, VisualVM...)
+ */
+public interface MetricsMXBean {
+
+    long getFilesSeen();
+
+    long getFastPathHits();
+
+    long getRehashes();
+
+    /**
+     * @return fast path hits / files seen, 0 if no file was seen
+     */
+    double getFastPathRatio();
+
+    long getFilesHashed();
+
+    long getBytesHashed();
+
+    long getHashMeanMicros();
+
+    long getHashP50Micros();
+
+    long getHashP99Micros();
+
+    long getHashMaxMicros();
+
+    long getIndexLinesParsed();
+
+    long getIndexLinesWritten();
+
+    long getTombstonesWritten();
+
+    long getBytesCopied();
+
+    long getVerificationFailures();
+
+    long getTargetsDetached();
+
+    /**
+     * @return the limit last decided by a {@link ConcurrencyController}, 0 if none
+     */
+    int getConcurrencyLimit();
+
+    long getConcurrencyIncreases();
+
+    long getConcurrencyDecreases();
+
+    /**
+     * @return all the counters in JSON
+     */
+    String getSummary();
+
+    void reset();
+
+}
@@ -0,0 +1,176 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+/**
+ * The progress of an operation at one time, see {@link ProgressTracker}. <br>
+ * Totals are estimated from the directories found so far, the estimate improves
+ * as the walk proceeds and is exact when it is finished.
+ */
+@SuppressWarnings("nls")
+public class ProgressReport {
+
+    private final String  operation;
+    private final long    filesDone;
+    private final long    bytesDone;
+    private final long    dirsDone;
+    private final long    dirsFound;
+    private final long    elapsedMillis;
+    private final boolean finished;
+
+    public ProgressReport(String operation, long filesDone, long bytesDone, long dirsDone, long dirsFound,
+        long elapsedMillis, boolean finished)
+    {
+        this.operation = operation;
+        this.filesDone = filesDone;
+        this.bytesDone = bytesDone;
+        this.dirsDone = dirsDone;
+        this.dirsFound = dirsFound;
+        this.elapsedMillis = elapsedMillis;
+        this.finished = finished;
+    }
+
+    public String getOperation()
+    {
+        return operation;
+    }
+
+    public long getFilesDone()
+    {
+        return filesDone;
+    }
+
+    public long getBytesDone()
+    {
+        return bytesDone;
+    }
+
+    public long getDirsDone()
+    {
+        return dirsDone;
+    }
+
+    /**
+     * @return directories done and waiting, at least dirsDone
+     */
+    public long getDirsFound()
+    {
+        return dirsFound;
+    }
+
+    public long getElapsedMillis()
+    {
+        return elapsedMillis;
+    }
+
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    /**
+     * @return the files done extrapolated to the directories found, -1 before the first directory is done
+     */
+    public long getEstimatedFiles()
+    {
+        return estimate(filesDone);
+    }
+
+    /**
+     * @return the bytes done extrapolated to the directories found, -1 before the first directory is done
+     */
+    public long getEstimatedBytes()
+    {
+        return estimate(bytesDone);
+    }
+
+    private long estimate(long done)
+    {
+        if (finished) {
+            return done;
+        }
+        if (dirsDone == 0) {
+            return -1;
+        }
+        return Math.max(done, (long) ((double) done * dirsFound / dirsDone));
+    }
+
+    /**
+     * @return bytes per second since the start
+     */
+    public long getBytesPerSecond()
+    {
+        return elapsedMillis == 0 ? 0 : bytesDone * 1000 / elapsedMillis;
+    }
+
+    /**
+     * @return estimated remaining time in ms, -1 if unknown
+     */
+    public long getEtaMillis()
+    {
+        if (finished) {
+            return 0;
+        }
+        long total = getEstimatedBytes();
+        long speed = getBytesPerSecond();
+        if (total < 0 || speed == 0) {
+            return -1;
+        }
+        return (total - bytesDone) * 1000 / speed;
+    }
+
+    /**
+     * @return the fraction of the estimated bytes done, between 0 and 1, -1 if unknown
+     */
+    public double getFraction()
+    {
+        long total = getEstimatedBytes();
+        if (total < 0) {
+            return -1;
+        }
+        return total == 0 ? 1 : (double) bytesDone / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        if (finished) {
+            return String.format("%s done: %d files, %s in %d folders, %s/s, %s", operation, filesDone,
+                FileInfo.getHumanReadableSize(bytesDone), dirsDone, FileInfo.getHumanReadableSize(getBytesPerSecond()),
+                duration(elapsedMillis));
+        }
+        long eta = getEtaMillis();
+        return String.format("%s: %d files, %s of ~%s (%.0f%%), %d/%d folders, %s/s, ETA %s", operation, filesDone,
+            FileInfo.getHumanReadableSize(bytesDone), FileInfo.getHumanReadableSize(Math.max(0, getEstimatedBytes())),
+            Math.max(0, getFraction()) * 100, dirsDone, dirsFound, FileInfo.getHumanReadableSize(getBytesPerSecond()),
+            eta < 0 ? "unknown" : duration(eta));
+    }
+
+    private static String duration(long millis)
+    {
+        long seconds = millis / 1000;
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+}
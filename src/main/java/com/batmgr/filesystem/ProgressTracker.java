@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the files, bytes and directories of a walk and reports them to a
+ * listener at most once per interval, and once at the end. <br>
+ * There is no counting pre-pass: the walk declares the sub-directories it finds,
+ * and the totals are extrapolated from the directories done, see {@link ProgressReport}.
+ * Thread safe.
+ */
+@SuppressWarnings("nls")
+public class ProgressTracker {
+
+    private static final Logger           LOG              = LoggerFactory.getLogger(ProgressTracker.class);
+
+    public static final long              DEFAULT_INTERVAL = 10000; // ms
+
+    /**
+     * Logs the reports at info level
+     */
+    public static final ProgressListener  LOGGING          = report -> LOG.info(report.toString());
+
+    private final String                  operation;
+    private final ProgressListener        listener;         // null if nobody listens
+    private final long                    interval;
+    private final long                    start            = System.currentTimeMillis();
+    private final AtomicLong              lastReport       = new AtomicLong(start);
+    private final LongAdder               files            = new LongAdder();
+    private final LongAdder               bytes            = new LongAdder();
+    private final LongAdder               dirsDone         = new LongAdder();
+    private final LongAdder               dirsFound        = new LongAdder();
+
+    /**
+     * @param operation name of the operation in the reports
+     * @param listener receives the reports, can be null
+     */
+    public ProgressTracker(String operation, ProgressListener listener)
+    {
+        this(operation, listener, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param operation name of the operation in the reports
+     * @param listener receives the reports, can be null
+     * @param interval minimum time between two reports in ms
+     */
+    public ProgressTracker(String operation, ProgressListener listener, long interval)
+    {
+        this.operation = operation;
+        this.listener = listener;
+        this.interval = interval;
+    }
+
+    /**
+     * Directories to walk, including the root
+     * @param count number of directories found
+     */
+    public void directoriesFound(int count)
+    {
+        dirsFound.add(count);
+    }
+
+    /**
+     * A directory was walked, without its sub-directories
+     */
+    public void directoryDone()
+    {
+        dirsDone.increment();
+        reportIfDue();
+    }
+
+    /**
+     * A file was processed
+     * @param size its size
+     */
+    public void fileDone(long size)
+    {
+        files.increment();
+        bytes.add(size);
+        reportIfDue();
+    }
+
+    /**
+     * Send the last report
+     */
+    public void finish()
+    {
+        if (listener != null) {
+            listener.progress(snapshot(true));
+        }
+    }
+
+    /**
+     * @return the counters at this time
+     */
+    public ProgressReport snapshot()
+    {
+        return snapshot(false);
+    }
+
+    private ProgressReport snapshot(boolean finished)
+    {
+        long done = dirsDone.sum();
+        return new ProgressReport(operation, files.sum(), bytes.sum(), done, Math.max(done, dirsFound.sum()),
+            System.currentTimeMillis() - start, finished);
+    }
+
+    private void reportIfDue()
+    {
+        if (listener == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastReport.get();
+        if (now - last >= interval && lastReport.compareAndSet(last, now)) { // a single thread reports
+            listener.progress(snapshot(false));
+        }
+    }
+
+}
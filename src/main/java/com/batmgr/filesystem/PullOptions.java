@@ -0,0 +1,185 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Options of {@link PullUnique}. <br>
+ * The defaults give the original behaviour: one thread, flat destination,
+ * indexes stored in the source directories.
+ */
+@SuppressWarnings("nls")
+public class PullOptions {
+    
+    public static final int DEFAULT_SCAN_THREADS = 4;
+    public static final int DEFAULT_COPY_THREADS = 2;
+
+    private int             scanThreads;                          // 0: serial
+    private int             copyThreads          = DEFAULT_COPY_THREADS;
+    private boolean         sharded;
+    private Path            shadowIndex;
+    private ConcurrencyController controller;
+    private ProgressListener progressListener    = ProgressTracker.LOGGING;
+    
+    /**
+     * Read the options given after the source and destination on the command line
+     * @param args the command line
+     * @param first index of the first option
+     * @return the options
+     * @throws IllegalArgumentException if an option is unknown
+     */
+    public static PullOptions parse(String[] args, int first)
+    {
+        PullOptions result = new PullOptions();
+        for (int i = first; i < args.length; i++) {
+            if (args[i].equals("sharded")) {
+                result.setSharded(true);
+            } else if (args[i].equals("parallel")) {
+                result.setScanThreads(DEFAULT_SCAN_THREADS);
+            } else if (args[i].startsWith("scan-threads=")) {
+                result.setScanThreads(Integer.parseInt(args[i].substring("scan-threads=".length())));
+            } else if (args[i].startsWith("copy-threads=")) {
+                result.setCopyThreads(Integer.parseInt(args[i].substring("copy-threads=".length())));
+            } else if (args[i].equals("adaptive")) {
+                result.setAdaptive(true);
+            } else if (args[i].startsWith("shadow=")) {
+                result.setShadowIndex(Paths.get(args[i].substring("shadow=".length())));
+            } else {
+                throw new IllegalArgumentException(String.format("unknown option %s", args[i]));
+            }
+        }
+        return result;
+    }
+
+    public int getScanThreads()
+    {
+        return scanThreads;
+    }
+
+    /**
+     * @param scanThreads number of source directories scanned concurrently, 0 for the serial pull
+     * @return this
+     */
+    public PullOptions setScanThreads(int scanThreads)
+    {
+        this.scanThreads = scanThreads;
+        return this;
+    }
+
+    public int getCopyThreads()
+    {
+        return copyThreads;
+    }
+
+    /**
+     * @param copyThreads number of concurrent copies of the parallel pull
+     * @return this
+     */
+    public PullOptions setCopyThreads(int copyThreads)
+    {
+        if (copyThreads < 1) {
+            throw new IllegalArgumentException(String.format("%d copy threads", copyThreads));
+        }
+        this.copyThreads = copyThreads;
+        return this;
+    }
+
+    public boolean isSharded()
+    {
+        return sharded;
+    }
+
+    /**
+     * @param sharded true for the content addressed layout of {@link ShardedStore}
+     * @return this
+     */
+    public PullOptions setSharded(boolean sharded)
+    {
+        this.sharded = sharded;
+        return this;
+    }
+
+    public Path getShadowIndex()
+    {
+        return shadowIndex;
+    }
+
+    /**
+     * @param shadowIndex root of the tree where source indexes are stored, null to store them in the source
+     * @return this
+     */
+    public PullOptions setShadowIndex(Path shadowIndex)
+    {
+        this.shadowIndex = shadowIndex;
+        return this;
+    }
+
+    public boolean isAdaptive()
+    {
+        return controller != null;
+    }
+
+    /**
+     * @param adaptive true to adjust the number of concurrent hashes and copies
+     * from the throughput, see {@link ConcurrencyController}; copyThreads is then ignored
+     * @return this
+     */
+    public PullOptions setAdaptive(boolean adaptive)
+    {
+        controller = adaptive ? new ConcurrencyController("pull") : null;
+        return this;
+    }
+
+    /**
+     * @return the controller shared by hashes and copies, null if not adaptive
+     */
+    public ConcurrencyController getController()
+    {
+        return controller;
+    }
+
+    public ProgressListener getProgressListener()
+    {
+        return progressListener;
+    }
+
+    /**
+     * @param progressListener receives the progress of the pull, null for none; logs by default
+     * @return this
+     */
+    public PullOptions setProgressListener(ProgressListener progressListener)
+    {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("scanThreads=%d, copyThreads=%d, sharded=%b, shadowIndex=%s, adaptive=%b", scanThreads,
+            copyThreads, sharded, shadowIndex, isAdaptive());
+    }
+}
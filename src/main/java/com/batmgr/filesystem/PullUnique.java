@@ -31,8 +31,22 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,10 +64,13 @@ public class PullUnique {
     
     public static void main(String[] args) {
         try {
-            pullUnique(Paths.get(args[0]), Paths.get(args[1]));
+            PullOptions options = PullOptions.parse(args, 2);
+            LOG.info("options : {}", options);
+            pullUnique(Paths.get(args[0]), Paths.get(args[1]), options);
         } catch (Throwable t) {
             LOG.error("program aborted", t);
         }
+        Metrics.getDefault().logSummary();
         Toolkit.getDefaultToolkit().beep();
     }
     
@@ -71,18 +88,58 @@ public class PullUnique {
      */
     public static void pullUnique(Path src, Path dst) throws NoSuchAlgorithmException, IOException, InvalidIndexException
     {
+        pullUnique(src, dst, new PullOptions());
+    }
+
+    /**
+     * Same as {@link #pullUnique(Path, Path)} with options: parallel scan and copies,
+     * content addressed layout of {@link ShardedStore}, shadow indexes for a read-only source.
+     * @param src the source directory
+     * @param dst the target directory
+     * @param options the options
+     */
+    public static void pullUnique(Path src, Path dst, PullOptions options)
+        throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        if (options.getScanThreads() > 0) {
+            LOG.info("pullUnique {} with {} scan threads, {} copy threads", src, options.getScanThreads(),
+                options.getCopyThreads());
+            new ParallelPull(dst, options).run(src);
+            return;
+        }
         LOG.info("pullUnique {}", src.toString());
+        ProgressTracker tracker = new ProgressTracker("pull", options.getProgressListener());
         LinkedList<Path> dirsQueue = new LinkedList<Path>(); // FIFO
         dirsQueue.add(src);
+        tracker.directoriesFound(1);
+        DirChecker srcChecker = new DirChecker(options.getShadowIndex());
+        srcChecker.setConcurrencyController(options.getController());
+        ShardedStore store = null;
+        DirInfo dstInfo = null;
+        if (options.isSharded()) {
+            store = new ShardedStore(dst);
+        } else {
+            dstInfo = openFlatDestination(dst);
+        }
+        while (dirsQueue.size() > 0) {
+            pullOneDir(dirsQueue.remove(), dst, dstInfo, store, srcChecker, dirsQueue, tracker);
+        }
+        tracker.finish();
+    }
+    
+    /**
+     * Create, index and sweep a flat destination
+     * @param dst the target directory
+     * @return its index
+     */
+    private static DirInfo openFlatDestination(Path dst) throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
         DirChecker checker = new DirChecker();
         Files.createDirectories(dst);
         checker.indexFolder(dst);
         checker.sweepFolder(dst);
         // TODO add some delay to make sure index is stable ?
-        DirInfo dstInfo = new DirInfo(dst);
-        while (dirsQueue.size() > 0) {
-            pullOneDir(dirsQueue.remove(), dst, dstInfo, dirsQueue);
-        }
+        return new DirInfo(dst);
     }
 
     /**
@@ -98,13 +155,24 @@ public class PullUnique {
      */
     public static void pullOneDir(Path src, Path dst, DirInfo dstInfo, LinkedList<Path> dirsQueue) throws IOException, NoSuchAlgorithmException,
         InvalidIndexException
+    {
+        pullOneDir(src, dst, dstInfo, null, new DirChecker(), dirsQueue, new ProgressTracker("pull", null));
+    }
+
+    /**
+     * Same as {@link #pullOneDir(Path, Path, DirInfo, LinkedList)}, with a flat
+     * destination (dst and dstInfo) or a sharded one (store)
+     * @param checker indexes the source
+     * @param tracker counts the source files and directories
+     */
+    private static void pullOneDir(Path src, Path dst, DirInfo dstInfo, ShardedStore store, DirChecker checker,
+        LinkedList<Path> dirsQueue, ProgressTracker tracker) throws IOException, NoSuchAlgorithmException, InvalidIndexException
     {
         LOG.info("pullOneDir {}", src.toString());
-        DirChecker checker = new DirChecker();
         checker.indexFolder(src);
         checker.sweepFolder(src);
-        DirInfo srcInfo = new DirInfo(src);
-        Map<String, FileInfo> srcNames = srcInfo.getNameIndex();
+        IndexStore srcInfo = checker.openIndex(src);
+        Map<String, FileInfo> srcNames = srcInfo.nameView();
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(src)) {
             for (Path p : stream) { // cannot use stream.forEach because of IOException
                 if (Files.isDirectory(p)) {
@@ -112,6 +180,7 @@ public class PullUnique {
                         continue;
                     }
                     dirsQueue.add(p);
+                    tracker.directoriesFound(1);
                     continue;
                 }
                 if (!Files.isRegularFile(p)) {
@@ -122,6 +191,15 @@ public class PullUnique {
                 if (srcFileInfo == null) { // file not indexed (special file, index file...)
                     continue;
                 }
+                tracker.fileDone(srcFileInfo.getSize()); // copied or not
+                if (store != null) {
+                    if (store.contains(srcFileInfo.getHash())) { // file already present
+                        LOG.debug("Skip duplicate {}", name);
+                    } else {
+                        store.store(p, srcFileInfo);
+                    }
+                    continue;
+                }
                 if (dstInfo.isHashPresent(srcFileInfo.getHash())) { // file already present
                     LOG.debug("Skip duplicate {}", name);
                     continue;
@@ -132,18 +210,265 @@ public class PullUnique {
                     dstPath = dst.resolve(String.format("%s (%d)", name, i++));
                 }
                 LOG.info("Copy {}", name);
-                Files.copy(p, dstPath, StandardCopyOption.COPY_ATTRIBUTES);
+                IoScheduler.copy(p, dstPath, StandardCopyOption.COPY_ATTRIBUTES);
                 dstInfo.addIfNeeded(dstPath);
-                Map<String, FileInfo> dstNames = dstInfo.getNameIndex();
-                FileInfo dstFileInfo = dstNames.get(dstPath.getFileName().toString());
+                FileInfo dstFileInfo = dstInfo.getFileInfo(dstPath.getFileName().toString());
                 if (dstFileInfo == null) {
                     LOG.warn("{} not present in destination", dstPath);
                     continue;
                 }
                 if (!dstFileInfo.getHash().equals(srcFileInfo.getHash())) {
                     LOG.warn("{} has different content", dstPath);
+                    Metrics.getDefault().verificationFailed();
+                }
+            }
+        }
+        tracker.directoryDone();
+    }
+
+    /**
+     * Same as {@link #pullUnique(Path, Path)} with several threads. <br>
+     * Source directories are indexed and scanned concurrently. Each content is
+     * claimed atomically in a concurrent map of signatures, so it is copied only
+     * once; the duplicates found while it is copied wait in the claim, and one of
+     * them is copied if the copy fails. Copies go through a bounded pool: when it
+     * is full, the scanning thread makes the copy itself.
+     * @param src the source directory
+     * @param dst the target directory
+     * @param scanThreads number of directories scanned concurrently
+     * @param copyThreads number of concurrent copies
+     */
+    public static void pullUnique(Path src, Path dst, int scanThreads, int copyThreads)
+        throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        pullUnique(src, dst, new PullOptions().setScanThreads(scanThreads).setCopyThreads(copyThreads));
+    }
+
+    /**
+     * State shared by the threads of a parallel pull
+     */
+    private static class ParallelPull {
+
+        private static final Queue<Map.Entry<Path, FileInfo>> COPIED = new ArrayDeque<>(0); // content present in dst
+
+        private final Path               dst;
+        private final DirInfo            dstInfo;
+        private final ShardedStore       store;          // replaces dst and dstInfo in sharded layout
+        private final DirChecker         srcChecker;
+        private final ConcurrencyController controller;  // null if the number of copies is fixed
+        // by signature: COPIED, or the duplicates found while the content is copied
+        private final Map<String, Queue<Map.Entry<Path, FileInfo>>> claims = new ConcurrentHashMap<>();
+        private final Set<String>        usedNames     = ConcurrentHashMap.newKeySet();
+        private final ExecutorService    scanners;
+        private final ThreadPoolExecutor copiers;
+        private final AtomicInteger      pending       = new AtomicInteger(); // directories submitted, not scanned yet
+        private final CountDownLatch     finished      = new CountDownLatch(1);
+        private final Queue<Exception>   errors        = new ConcurrentLinkedQueue<>();
+        private final ProgressTracker    tracker;
+
+        /**
+         * In the sharded layout, the claimed set only holds the contents copied by
+         * this run, the others are looked up in their shard
+         */
+        ParallelPull(Path dst, PullOptions options) throws IOException, NoSuchAlgorithmException, InvalidIndexException
+        {
+            srcChecker = new DirChecker(options.getShadowIndex());
+            tracker = new ProgressTracker("pull", options.getProgressListener());
+            controller = options.getController();
+            srcChecker.setConcurrencyController(controller);
+            if (options.isSharded()) {
+                this.dst = null;
+                dstInfo = null;
+                store = new ShardedStore(dst);
+            } else {
+                this.dst = dst;
+                dstInfo = openFlatDestination(dst);
+                store = null;
+                dstInfo.stream().forEach(fileInfo -> claims.put(fileInfo.getHash(), COPIED));
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dst)) {
+                    for (Path p : stream) {
+                        usedNames.add(p.getFileName().toString());
+                    }
+                }
+            }
+            scanners = Executors.newFixedThreadPool(options.getScanThreads());
+            // with a controller, the pool is an upper bound and the controller sets the actual number of copies
+            int copyThreads = controller == null ? options.getCopyThreads() : ConcurrencyController.DEFAULT_MAX;
+            copiers = new ThreadPoolExecutor(copyThreads, copyThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(4 * copyThreads), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        void run(Path src) throws IOException
+        {
+            try {
+                submit(src);
+                finished.await();
+                copiers.shutdown();
+                copiers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                tracker.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("pull interrupted", e);
+            } finally {
+                scanners.shutdownNow();
+                copiers.shutdownNow();
+            }
+            if (!errors.isEmpty()) {
+                IOException e = new IOException(String.format("%d directories or files failed", errors.size()));
+                errors.forEach(e::addSuppressed);
+                throw e;
+            }
+        }
+
+        private void submit(Path dir)
+        {
+            pending.incrementAndGet();
+            tracker.directoriesFound(1);
+            scanners.execute(() -> {
+                try {
+                    scan(dir);
+                    tracker.directoryDone();
+                } catch (Exception e) {
+                    LOG.error(String.format("cannot pull %s", dir), e);
+                    errors.add(e);
+                } finally {
+                    if (pending.decrementAndGet() == 0) { // sub-directories are submitted before
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Index one source directory, queue its sub-directories and copy its new contents
+         */
+        private void scan(Path src) throws IOException, NoSuchAlgorithmException, InvalidIndexException
+        {
+            LOG.info("pullOneDir {}", src.toString());
+            srcChecker.indexFolder(src);
+            srcChecker.sweepFolder(src);
+            Map<String, FileInfo> srcNames = srcChecker.openIndex(src).nameView();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(src)) {
+                for (Path p : stream) { // cannot use stream.forEach because of IOException
+                    if (Files.isDirectory(p)) {
+                        if (!srcChecker.isSpecialDir(p)) {
+                            submit(p);
+                        }
+                        continue;
+                    }
+                    if (!Files.isRegularFile(p)) {
+                        continue;
+                    }
+                    String name = p.getFileName().toString();
+                    FileInfo srcFileInfo = srcNames.get(name);
+                    if (srcFileInfo == null) { // file not indexed (special file, index file...)
+                        continue;
+                    }
+                    if (!claim(p, srcFileInfo)) { // present or being copied
+                        LOG.debug("Skip duplicate {}", name);
+                        tracker.fileDone(srcFileInfo.getSize());
+                        continue;
+                    }
+                    if (store != null && store.contains(srcFileInfo.getHash())) {
+                        claims.put(srcFileInfo.getHash(), COPIED);
+                        LOG.debug("Skip duplicate {}", name);
+                        tracker.fileDone(srcFileInfo.getSize());
+                        continue;
+                    }
+                    copiers.execute(() -> copy(p, srcFileInfo, false));
                 }
             }
         }
+
+        /**
+         * Claim the content of a file, or keep the file aside while the content is copied
+         * @return true if the file must be copied
+         */
+        private boolean claim(Path p, FileInfo srcFileInfo)
+        {
+            boolean[] claimed = new boolean[1];
+            claims.compute(srcFileInfo.getHash(), (hash, waiting) -> {
+                if (waiting == null) {
+                    claimed[0] = true;
+                    return new ArrayDeque<>();
+                }
+                if (waiting != COPIED) {
+                    waiting.add(Map.entry(p, srcFileInfo));
+                }
+                return waiting;
+            });
+            return claimed[0];
+        }
+
+        /**
+         * Copy a claimed file, when the controller allows it. If the copy fails,
+         * a duplicate skipped meanwhile is copied instead.
+         * @param counted true if the file was already counted as done
+         */
+        private void copy(Path p, FileInfo srcFileInfo, boolean counted)
+        {
+            String hash = srcFileInfo.getHash();
+            try {
+                if (controller == null) {
+                    copyNow(p, srcFileInfo);
+                } else {
+                    controller.run(srcFileInfo.getSize(), () -> {
+                        copyNow(p, srcFileInfo);
+                        return null;
+                    });
+                }
+                claims.put(hash, COPIED);
+            } catch (IOException | NoSuchAlgorithmException e) {
+                LOG.error(String.format("cannot copy %s", p), e);
+                errors.add(e);
+                List<Map.Entry<Path, FileInfo>> next = new ArrayList<>(1);
+                claims.compute(hash, (h, waiting) -> {
+                    if (waiting.isEmpty()) {
+                        return null; // a duplicate found later claims it again
+                    }
+                    next.add(waiting.remove());
+                    return waiting;
+                });
+                if (!next.isEmpty()) { // in this thread, the pool may be shut down already
+                    LOG.info("Copy duplicate {} instead", next.get(0).getKey());
+                    copy(next.get(0).getKey(), next.get(0).getValue(), true);
+                }
+            }
+            if (!counted) {
+                tracker.fileDone(srcFileInfo.getSize());
+            }
+        }
+        
+        /**
+         * Copy a claimed file under a unique name, check and index the copy
+         */
+        private void copyNow(Path p, FileInfo srcFileInfo) throws IOException, NoSuchAlgorithmException
+        {
+            if (store != null) {
+                try {
+                    store.store(p, srcFileInfo);
+                } catch (InvalidIndexException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+                return;
+            }
+            String name = srcFileInfo.getName();
+            String uniqueName = name;
+            int i = 1;
+            while (!usedNames.add(uniqueName)) {
+                uniqueName = String.format("%s (%d)", name, i++);
+            }
+            Path dstPath = dst.resolve(uniqueName);
+            LOG.info("Copy {}", name);
+            IoScheduler.copy(p, dstPath, StandardCopyOption.COPY_ATTRIBUTES);
+            String hash = new FileChecker().computeSha256(dstPath);
+            if (!hash.equals(srcFileInfo.getHash())) {
+                LOG.warn("{} has different content", dstPath);
+                Metrics.getDefault().verificationFailed();
+            }
+            FileInfo dstFileInfo = new FileInfo(uniqueName, Files.size(dstPath),
+                Files.getLastModifiedTime(dstPath), hash, 0);
+            dstInfo.appendToIndex(dstFileInfo);
+        }
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+/**
+ * Token bucket limiting a throughput in bytes per second, shared by several threads. <br>
+ * The bucket holds at most one second of tokens, so an idle period doesn't
+ * allow a long burst afterwards.
+ */
+@SuppressWarnings("nls")
+public class RateLimiter {
+    
+    private final long bytesPerSecond;
+    private double     tokens;
+    private long       last;   // ns
+    
+    /**
+     * @param bytesPerSecond the maximum throughput
+     */
+    public RateLimiter(long bytesPerSecond)
+    {
+        if (bytesPerSecond < 1) {
+            throw new IllegalArgumentException(String.format("%d bytes per second", bytesPerSecond));
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        last = System.nanoTime();
+    }
+    
+    /**
+     * Wait until bytes can be processed. A request larger than the bucket is
+     * granted when the bucket is full and leaves a debt.
+     * @param bytes the amount about to be read or written
+     * @throws InterruptedException
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException
+    {
+        refill();
+        while (tokens < Math.min(bytes, bytesPerSecond)) {
+            long waitNs = (long) ((Math.min(bytes, bytesPerSecond) - tokens) * 1e9 / bytesPerSecond);
+            wait(Math.max(1, waitNs / 1000000), (int) (waitNs % 1000000));
+            refill();
+        }
+        tokens -= bytes;
+    }
+    
+    /**
+     * Take the tokens only if they are available now
+     * @param bytes the amount about to be read or written
+     * @return false if {@link #acquire(long)} would wait
+     */
+    public synchronized boolean tryAcquire(long bytes)
+    {
+        refill();
+        if (tokens < Math.min(bytes, bytesPerSecond)) {
+            return false;
+        }
+        tokens -= bytes;
+        return true;
+    }
+    
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - last) * (double) bytesPerSecond / 1e9);
+        last = now;
+    }
+    
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.awt.Toolkit;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read again the indexed files and report those whose content no longer
+ * matches the hash of the index (bit rot, silent corruption). <br>
+ * Files whose size or last modification changed since they were indexed are
+ * skipped: they were modified, not corrupted. <br>
+ * Directories are scrubbed in lexicographic pre-order and a cursor at the root
+ * records the last one completed, so that a scrub limited in time continues
+ * where the previous run stopped. Reads can be throttled to run alongside
+ * production load. <br>
+ * Usage: Scrubber dir [threads=N] [rate=MB/s] [budget=minutes] [direct], direct
+ * reads the files without filling the page cache, see {@link FileChecker}.
+ */
+@SuppressWarnings("nls")
+public class Scrubber {
+    
+    private static final Logger      LOG             = LoggerFactory.getLogger(Scrubber.class);
+
+    public static final String       CURSOR_FILE     = ".scrub-cursor";
+    public static final String       TMP_FILE        = CURSOR_FILE + ".tmp";
+    public static final int          DEFAULT_THREADS = 2;
+    private static final String      SIGNATURE       = "SCRUB CURSOR - NO REAL DATA IN THIS FILE - VERSION 1";
+    private static final String      ROOT            = "ROOT;";
+    private static final String      CURSOR          = "CURSOR;";
+
+    private final Path               root;
+    private final Path               cursorFile;
+    private final DirChecker         checker         = new DirChecker();
+    private final FileChecker        fileChecker;
+    private final int                threads;
+    private List<String>             cursor;                                 // last directory done, relative to root
+    private final Queue<Path>        corrupted       = new ConcurrentLinkedQueue<>();
+    private final LongAdder          files           = new LongAdder();
+    private final LongAdder          bytes           = new LongAdder();
+    private final LongAdder          skipped         = new LongAdder();
+    private int                      dirsDone;
+    private long                     deadline;
+    
+    public static void main(String[] args)
+    {
+        try {
+            int threads = DEFAULT_THREADS;
+            RateLimiter limiter = null;
+            long budget = Long.MAX_VALUE;
+            boolean direct = false;
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].startsWith("threads=")) {
+                    threads = Integer.parseInt(args[i].substring("threads=".length()));
+                } else if (args[i].startsWith("rate=")) {
+                    limiter = new RateLimiter(Long.parseLong(args[i].substring("rate=".length())) * 0x100000);
+                } else if (args[i].startsWith("budget=")) {
+                    budget = Long.parseLong(args[i].substring("budget=".length())) * 60000;
+                } else if (args[i].equals("direct")) {
+                    direct = true;
+                } else {
+                    throw new IllegalArgumentException(String.format("unknown option %s", args[i]));
+                }
+            }
+            Scrubber scrubber = new Scrubber(Paths.get(args[0]), threads, limiter, direct);
+            scrubber.run(budget);
+        } catch (Throwable t) {
+            LOG.error("program aborted", t);
+        }
+        Metrics.getDefault().logSummary();
+        Toolkit.getDefaultToolkit().beep();
+    }
+    
+    /**
+     * Prepare a scrub, load the cursor of a previous run if any
+     * @param root the tree to verify
+     * @param threads number of files hashed concurrently
+     * @param limiter throttles the reads of all threads, can be null
+     * @throws IOException
+     */
+    public Scrubber(Path root, int threads, RateLimiter limiter) throws IOException
+    {
+        this(root, threads, limiter, Boolean.getBoolean("batmgr.io.direct"));
+    }
+    
+    /**
+     * Same as {@link #Scrubber(Path, int, RateLimiter)}
+     * @param direct true to bypass the page cache when possible
+     */
+    public Scrubber(Path root, int threads, RateLimiter limiter, boolean direct) throws IOException
+    {
+        this.root = root.toAbsolutePath().normalize();
+        this.threads = threads;
+        cursorFile = this.root.resolve(CURSOR_FILE);
+        fileChecker = new FileChecker(limiter, direct);
+        if (Files.exists(cursorFile)) {
+            loadCursor();
+        }
+    }
+    
+    /**
+     * Verify the tree from the cursor, until the end or until the budget is spent. <br>
+     * The budget is checked between directories, at least one directory is verified.
+     * @param budget maximum duration in ms
+     * @return true if the end of the tree was reached, the next run starts again from the beginning
+     * @throws IOException
+     * @throws InvalidIndexException
+     */
+    public boolean run(long budget) throws IOException, InvalidIndexException
+    {
+        long start = System.currentTimeMillis();
+        deadline = budget > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + budget;
+        if (cursor != null) {
+            LOG.info(String.format("Scrub %s from %s", root, String.join("/", cursor)));
+        } else {
+            LOG.info(String.format("Scrub %s", root));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        boolean complete;
+        try {
+            complete = scrubTree(root, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+        if (complete) {
+            Files.deleteIfExists(cursorFile);
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        LOG.info(String.format("%s: %d files verified (%s, %s/s), %d skipped, %d corrupted", complete ? "Scrub complete"
+            : "Scrub suspended", files.sum(), FileInfo.getHumanReadableSize(bytes.sum()),
+            FileInfo.getHumanReadableSize(bytes.sum() * 1000 / elapsed), skipped.sum(), corrupted.size()));
+        for (Path p : corrupted) {
+            LOG.warn(String.format("    %s", p));
+        }
+        return complete;
+    }
+    
+    /**
+     * @return the files whose content doesn't match their index
+     */
+    public List<Path> getCorrupted()
+    {
+        return new ArrayList<>(corrupted);
+    }
+    
+    private static List<String> elements(Path relative)
+    {
+        List<String> result = new ArrayList<>();
+        for (Path element : relative) {
+            if (!element.toString().isEmpty()) { // the root relative to itself is an empty path
+                result.add(element.toString());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Compare two directories in the pre-order of the scrub
+     */
+    private static int compare(List<String> a, List<String> b)
+    {
+        for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+            int result = a.get(i).compareTo(b.get(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return a.size() - b.size();
+    }
+    
+    /**
+     * @return false if the budget is spent
+     */
+    private boolean scrubTree(Path dir, ExecutorService pool) throws IOException, InvalidIndexException
+    {
+        List<String> relative = elements(root.relativize(dir));
+        int cmp = cursor == null ? 1 : compare(relative, cursor);
+        if (cmp < 0 && !(cursor.size() > relative.size() && cursor.subList(0, relative.size()).equals(relative))) {
+            return true; // verified by a previous run with all its sub-directories
+        }
+        if (cmp > 0) { // the files of the cursor and of its ancestors are already verified
+            if (dirsDone > 0 && System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            scrubFolder(dir, pool);
+            dirsDone++;
+            cursor = relative;
+            saveCursor();
+        }
+        List<Path> subDirs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) { // cannot use stream.forEach because of IOException
+                if (Files.isDirectory(p) && !checker.isSpecialDir(p)) {
+                    subDirs.add(p);
+                }
+            }
+        }
+        Collections.sort(subDirs, (p1, p2) -> p1.getFileName().toString().compareTo(p2.getFileName().toString()));
+        for (Path p : subDirs) {
+            if (!scrubTree(p, pool)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Verify the files of one directory in parallel
+     */
+    private void scrubFolder(Path dir, ExecutorService pool) throws IOException, InvalidIndexException
+    {
+        LOG.debug(String.format("Scrub %s", dir));
+        List<Future<?>> futures = new ArrayList<>();
+        checker.openIndex(dir).stream().forEach(fileInfo -> futures.add(pool.submit(() -> {
+            verify(dir.resolve(fileInfo.getName()), fileInfo);
+            return null;
+        })));
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // an unreadable file is logged, the scrub goes on
+                LOG.error(String.format("%s: %s", dir, e.getCause().getMessage()));
+                skipped.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("scrub interrupted", e);
+            }
+        }
+    }
+    
+    private void verify(Path p, FileInfo fileInfo) throws IOException, NoSuchAlgorithmException
+    {
+        if (!Files.isRegularFile(p)) {
+            skipped.increment(); // deleted, the next indexation will sweep it
+            return;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        if (attrs.size() != fileInfo.getSize()
+            || fileInfo.getLastModif().compareTo(fileInfo.secondFileTime(attrs.lastModifiedTime())) != 0)
+        {
+            LOG.debug(String.format("%s modified since indexed, skipped", p));
+            skipped.increment();
+            return;
+        }
+        String hash = fileChecker.computeSha256(p);
+        files.increment();
+        bytes.add(attrs.size());
+        if (!hash.equals(fileInfo.getHash())) {
+            LOG.warn(String.format("%s: content doesn't match the index (expected %s, found %s)", p,
+                fileInfo.getHash(), hash));
+            Metrics.getDefault().verificationFailed();
+            corrupted.add(p);
+        }
+    }
+    
+    private void loadCursor() throws IOException
+    {
+        try (BufferedReader reader = Files.newBufferedReader(cursorFile, Charset.forName(DirInfo.IDXCHARSET))) {
+            String line = reader.readLine();
+            if (!SIGNATURE.equals(line)) {
+                LOG.warn(String.format("%s: invalid signature, ignored", cursorFile));
+                return;
+            }
+            line = reader.readLine();
+            if (line == null || !line.equals(ROOT + root)) {
+                LOG.warn(String.format("%s: written for another root, ignored", cursorFile));
+                return;
+            }
+            line = reader.readLine();
+            if (line == null || !line.startsWith(CURSOR)) {
+                LOG.warn(String.format("%s: no cursor, ignored", cursorFile));
+                return;
+            }
+            String value = line.substring(CURSOR.length());
+            cursor = value.isEmpty() ? new ArrayList<>() : Arrays.asList(value.split("/"));
+        }
+    }
+    
+    /**
+     * Write the cursor to a temporary file, flush it and rename it
+     */
+    private void saveCursor() throws IOException
+    {
+        String contents = String.format("%s\r\n%s%s\r\n%s%s\r\n", SIGNATURE, ROOT, root, CURSOR, String.join("/", cursor));
+        Path tmp = cursorFile.resolveSibling(TMP_FILE);
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(contents.getBytes(DirInfo.IDXCHARSET));
+            while (buf.hasRemaining()) {
+                fc.write(buf);
+            }
+            fc.force(true);
+        }
+        Files.move(tmp, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
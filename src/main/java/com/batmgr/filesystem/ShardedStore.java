@@ -0,0 +1,247 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed layout for the destination of {@link PullUnique}. <br>
+ * A file with signature ABCD... is stored as AB/CD/ABCD....ext: shard directories
+ * stay small whatever the number of files, each one has its own index. <br>
+ * The manifest at the root records the origin of each content, one line per
+ * copied file: signature;source path. <br>
+ * A {@link HashFilter} of the whole store (.store.bloom) answers most lookups
+ * of new contents without opening a shard. It covers the manifest: when the
+ * manifest has another size, the filter is built again from the shard indexes.
+ * <p>
+ * Thread safe: copies run concurrently, only index updates are serialized. A shard
+ * is opened under its own lock, so opening one doesn't delay the others.
+ */
+@SuppressWarnings("nls")
+public class ShardedStore {
+    
+    private static final Logger LOG        = LoggerFactory.getLogger(ShardedStore.class);
+
+    public static final String  MANIFEST   = ".manifest";
+    public static final String  FILTER     = ".store.bloom";
+    public static final String  FILTER_TMP = FILTER + ".tmp";
+    private static final int    MAX_SHARDS = 256;      // indexes kept in memory
+    private static final int    MAX_EXT    = 10;       // longer extensions are dropped
+
+    private final Path          root;
+    private final Path          manifest;
+    private final Object        manifestLock = new Object();
+    private HashFilter          filter;    // guarded by manifestLock, replaced when full
+    private final Map<Path, Shard> shards = new LinkedHashMap<Path, Shard>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Shard> eldest)
+        {
+            return size() > MAX_SHARDS;
+        }
+    };
+    
+    /**
+     * A shard directory, its index is opened on first use under the lock of the shard
+     */
+    private static final class Shard {
+        DirInfo index;
+    }
+    
+    /**
+     * @param root the destination directory, created if needed
+     * @throws IOException
+     */
+    public ShardedStore(Path root) throws IOException
+    {
+        this.root = root;
+        manifest = root.resolve(MANIFEST);
+        Files.createDirectories(root);
+        filter = HashFilter.load(root.resolve(FILTER));
+        long size = Files.exists(manifest) ? Files.size(manifest) : 0;
+        if (filter == null || filter.getCovered() != size || filter.isFull()) {
+            filter = buildFilter(size);
+        }
+    }
+    
+    /**
+     * Add the hashes of all shard indexes to a new filter
+     * @param covered the size of the manifest
+     */
+    private HashFilter buildFilter(long covered) throws IOException
+    {
+        List<String> hashes = new ArrayList<>();
+        try (DirectoryStream<Path> level1 = Files.newDirectoryStream(root, ShardedStore::isShardDir)) {
+            for (Path dir1 : level1) {
+                try (DirectoryStream<Path> level2 = Files.newDirectoryStream(dir1, ShardedStore::isShardDir)) {
+                    for (Path dir2 : level2) {
+                        if (Files.exists(dir2.resolve(DirInfo.IDXFILE))) {
+                            new DirInfo(dir2).stream().forEach(fileInfo -> hashes.add(fileInfo.getHash()));
+                        }
+                    }
+                }
+            }
+        } catch (InvalidIndexException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        LOG.info("Build the filter of {} contents in {}", hashes.size(), root);
+        HashFilter result = new HashFilter(hashes.size());
+        hashes.forEach(result::add);
+        result.setCovered(covered);
+        return result.save(root.resolve(FILTER), root.resolve(FILTER_TMP));
+    }
+    
+    private static boolean isShardDir(Path p)
+    {
+        String name = p.getFileName().toString();
+        return name.length() == 2 && Files.isDirectory(p);
+    }
+    
+    /**
+     * @param hash a content signature
+     * @return the directory where this content is stored
+     */
+    public Path shardDir(String hash)
+    {
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4));
+    }
+    
+    /**
+     * @param hash a content signature
+     * @param originalName the name of a file with this content
+     * @return the signature followed by the extension of the original name, if it is short
+     */
+    public static String storedName(String hash, String originalName)
+    {
+        int dot = originalName.lastIndexOf('.');
+        if (dot <= 0 || originalName.length() - dot > MAX_EXT || originalName.indexOf(' ', dot) >= 0) {
+            return hash;
+        }
+        return hash + originalName.substring(dot);
+    }
+    
+    /**
+     * Open the index of a shard, the first time it is checked and swept
+     * @return null if the shard doesn't exist and create is false
+     */
+    private DirInfo getShard(Path dir, boolean create) throws IOException, InvalidIndexException, NoSuchAlgorithmException
+    {
+        Shard shard;
+        synchronized (shards) {
+            shard = shards.computeIfAbsent(dir, d -> new Shard());
+        }
+        synchronized (shard) {
+            if (shard.index != null) {
+                return shard.index;
+            }
+            if (!Files.isDirectory(dir)) {
+                if (!create) {
+                    return null;
+                }
+                Files.createDirectories(dir);
+            }
+            DirChecker checker = new DirChecker();
+            checker.indexFolder(dir);
+            checker.sweepFolder(dir);
+            shard.index = new DirInfo(dir);
+            return shard.index;
+        }
+    }
+    
+    /**
+     * Look for a content, only its shard is read
+     * @param hash a content signature
+     * @return true if the content is stored
+     */
+    public boolean contains(String hash) throws IOException, InvalidIndexException, NoSuchAlgorithmException
+    {
+        synchronized (manifestLock) {
+            if (!filter.mightContain(hash)) {
+                return false;
+            }
+        }
+        DirInfo shard = getShard(shardDir(hash), false);
+        if (shard == null) {
+            return false;
+        }
+        synchronized (shard) {
+            return shard.isHashPresent(hash);
+        }
+    }
+    
+    /**
+     * Copy a file to its shard, check and index the copy, record it in the manifest
+     * @param p the source file
+     * @param srcFileInfo its entry in the source index
+     * @return false if the copy has different content
+     */
+    public boolean store(Path p, FileInfo srcFileInfo) throws IOException, InvalidIndexException, NoSuchAlgorithmException
+    {
+        String hash = srcFileInfo.getHash();
+        Path dir = shardDir(hash);
+        DirInfo shard = getShard(dir, true);
+        String name = storedName(hash, srcFileInfo.getName());
+        Path dstPath = dir.resolve(name);
+        LOG.info("Copy {} to {}", p.getFileName(), name);
+        IoScheduler.copy(p, dstPath, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+        String copyHash = new FileChecker().computeSha256(dstPath);
+        if (!copyHash.equals(hash)) {
+            LOG.warn("{} has different content", dstPath);
+            Metrics.getDefault().verificationFailed();
+            Files.delete(dstPath);
+            return false;
+        }
+        synchronized (shard) {
+            FileInfo old = shard.getFileInfo(name);
+            if (old != null) {
+                shard.removeFromIndex(old);
+            }
+            shard.appendToIndex(new FileInfo(name, Files.size(dstPath), Files.getLastModifiedTime(dstPath), hash, 0));
+        }
+        synchronized (manifestLock) {
+            Files.write(manifest, String.format("%s;%s\r\n", hash, p).getBytes(DirInfo.IDXCHARSET),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            filter.add(hash);
+            filter.setCovered(Files.size(manifest));
+            if (filter.isFull()) {
+                filter = buildFilter(Files.size(manifest));
+            }
+        }
+        return true;
+    }
+}
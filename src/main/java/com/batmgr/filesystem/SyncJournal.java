@@ -0,0 +1,229 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checkpoints of a {@link Synchronize} run, kept at the root of the destination. <br>
+ * Records the source directories completely synchronized and the large copies
+ * in progress, so that an interrupted run can restart where it stopped. <br>
+ * The journal is written to a temporary file, then renamed.
+ */
+@SuppressWarnings("nls")
+public class SyncJournal {
+    
+    private static final Logger  LOG              = LoggerFactory.getLogger(SyncJournal.class);
+
+    public static final String   JOURNAL_FILE     = ".sync-journal";
+    public static final String   TMP_FILE         = JOURNAL_FILE + ".tmp";
+    public static final String   PART_SUFFIX      = ".sync-part";
+    public static final long     RESUME_THRESHOLD = 0x4000000; // 64 MB, smaller copies are simply restarted
+    private static final String  SIGNATURE        = "SYNCHRONIZE JOURNAL - NO REAL DATA IN THIS FILE - VERSION 1";
+    private static final String  SOURCE           = "SOURCE;";
+    private static final String  DONE             = "DONE;";
+    private static final String  COPY             = "COPY;";
+
+    private final Path           src;
+    private final Path           file;
+    private final Set<Path>      done             = new HashSet<>();     // relative to src
+    private final Map<Path, FileInfo> inFlight    = new HashMap<>();     // relative to src, name is the relative path
+    
+    /**
+     * Open the journal of a synchronization, load it if it exists
+     * @param src the source root
+     * @param dst the destination root, must exist
+     * @throws IOException
+     */
+    public SyncJournal(Path src, Path dst) throws IOException
+    {
+        this.src = src.toAbsolutePath().normalize();
+        file = dst.resolve(JOURNAL_FILE);
+        if (Files.exists(file)) {
+            load();
+        }
+    }
+    
+    private void load() throws IOException
+    {
+        try (BufferedReader reader = Files.newBufferedReader(file, Charset.forName(DirInfo.IDXCHARSET))) {
+            String line = reader.readLine();
+            if (!SIGNATURE.equals(line)) {
+                LOG.warn(String.format("%s: invalid signature, ignored", file));
+                return;
+            }
+            line = reader.readLine();
+            if (line == null || !line.equals(SOURCE + src)) {
+                LOG.warn(String.format("%s: written for another source, ignored", file));
+                return;
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(DONE)) {
+                    done.add(src.getFileSystem().getPath(line.substring(DONE.length())));
+                } else if (line.startsWith(COPY)) {
+                    FileInfo fi = new FileInfo(line.substring(COPY.length()));
+                    inFlight.put(src.getFileSystem().getPath(fi.getName()), fi);
+                } else {
+                    LOG.warn(String.format("%s: invalid line %s, ignored", file, line));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.warn(String.format("%s: %s", file, e.getMessage()));
+        }
+        LOG.info(String.format("Resume: %d directories done, %d copies in progress", done.size(), inFlight.size()));
+    }
+    
+    /**
+     * Write the journal to a temporary file, flush it and rename it
+     * @throws IOException
+     */
+    public void save() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(SIGNATURE).append("\r\n");
+        sb.append(SOURCE).append(src).append("\r\n");
+        for (Path p : done) {
+            sb.append(DONE).append(p).append("\r\n");
+        }
+        for (FileInfo fi : inFlight.values()) {
+            sb.append(COPY).append(fi).append("\r\n");
+        }
+        Path tmp = file.resolveSibling(TMP_FILE);
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(DirInfo.IDXCHARSET));
+            while (buf.hasRemaining()) {
+                fc.write(buf);
+            }
+            fc.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * The run is complete, the journal is useless
+     * @throws IOException
+     */
+    public void delete() throws IOException
+    {
+        Files.deleteIfExists(file);
+    }
+    
+    private Path relative(Path p)
+    {
+        return src.relativize(p.toAbsolutePath().normalize());
+    }
+
+    /**
+     * @param dir a source directory
+     * @return true if dir and its descendants were synchronized by the interrupted run
+     */
+    public boolean isDone(Path dir)
+    {
+        return done.contains(relative(dir));
+    }
+    
+    /**
+     * Record that dir and its descendants are synchronized. <br>
+     * Entries of the descendants are replaced by this one, the journal stays small.
+     * @param dir a source directory
+     * @throws IOException
+     */
+    public void markDone(Path dir) throws IOException
+    {
+        Path rel = relative(dir);
+        for (Iterator<Path> it = done.iterator(); it.hasNext();) {
+            if (it.next().startsWith(rel)) {
+                it.remove();
+            }
+        }
+        done.add(rel);
+        save();
+    }
+    
+    /**
+     * @param dstPath the final destination of a copy
+     * @return the temporary name used during the copy
+     */
+    public static Path partPath(Path dstPath)
+    {
+        return dstPath.resolveSibling(dstPath.getFileName().toString() + PART_SUFFIX);
+    }
+    
+    /**
+     * Prepare the copy of a file to its temporary name.
+     * <p>
+     * If the interrupted run was copying the same content, the bytes already
+     * copied are kept. Large copies are recorded in the journal.
+     * @param srcPath the source file
+     * @param part the temporary destination
+     * @param srcFileInfo the source entry
+     * @return the number of bytes already copied
+     * @throws IOException
+     */
+    public long startCopy(Path srcPath, Path part, FileInfo srcFileInfo) throws IOException
+    {
+        Path rel = relative(srcPath);
+        FileInfo pending = inFlight.get(rel);
+        if (pending != null
+            && pending.getHash().equals(srcFileInfo.getHash())
+            && pending.getSize() == srcFileInfo.getSize()
+            && Files.exists(part))
+        {
+            return Math.min(Files.size(part), srcFileInfo.getSize());
+        }
+        Files.deleteIfExists(part);
+        if (srcFileInfo.getSize() >= RESUME_THRESHOLD) {
+            inFlight.put(rel, new FileInfo(rel.toString(), srcFileInfo.getSize(), srcFileInfo.getLastModif(),
+                srcFileInfo.getHash(), 0));
+            save();
+        }
+        return 0;
+    }
+    
+    /**
+     * The copy is complete, it will disappear from the journal at the next save
+     * @param srcPath the source file
+     */
+    public void endCopy(Path srcPath)
+    {
+        inFlight.remove(relative(srcPath));
+    }
+}
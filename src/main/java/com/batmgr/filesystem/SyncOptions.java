@@ -0,0 +1,370 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Options of {@link Synchronize}. <br>
+ * The defaults give the original behaviour: no scrape, modified files are copied again.
+ */
+@SuppressWarnings("nls")
+public class SyncOptions {
+    
+    public static final long DEFAULT_DELTA_THRESHOLD = 0x1000000; // 16 MB
+
+    private boolean           scrape;
+    private boolean           delta;
+    private boolean           resume;
+    private int               deleteThreads           = TreeDeleter.DEFAULT_THREADS;
+    private long              deltaThreshold          = DEFAULT_DELTA_THRESHOLD;
+    private Path              shadowIndex;
+    private boolean           xattrIndex;
+    private boolean           lazyIndex;
+    private ConcurrencyController controller;
+    private boolean           diskOrder;
+    private ProgressListener  progressListener        = ProgressTracker.LOGGING;
+    private int               profile;
+    private boolean           verify                  = true;
+    
+    /**
+     * Read the options given after the source and destination on the command line
+     * @param args the command line
+     * @param first index of the first option
+     * @return the options
+     * @throws IllegalArgumentException if an option is unknown
+     */
+    public static SyncOptions parse(String[] args, int first)
+    {
+        SyncOptions result = new SyncOptions();
+        for (int i = first; i < args.length; i++) {
+            if (args[i].startsWith("delete-threads=")) {
+                result.setDeleteThreads(Integer.parseInt(args[i].substring("delete-threads=".length())));
+                continue;
+            }
+            if (HotSpotProfiler.parseOption(args[i]) > 0) {
+                result.setProfile(HotSpotProfiler.parseOption(args[i]));
+                continue;
+            }
+            if (args[i].startsWith("shadow=")) {
+                result.setShadowIndex(Paths.get(args[i].substring("shadow=".length())));
+                continue;
+            }
+            switch (args[i]) {
+                case "scrape":
+                    result.setScrape(true);
+                    break;
+                case "delta":
+                    result.setDelta(true);
+                    break;
+                case "resume":
+                    result.setResume(true);
+                    break;
+                case "xattr":
+                    result.setXattrIndex(true);
+                    break;
+                case "lazy":
+                    result.setLazyIndex(true);
+                    break;
+                case "adaptive":
+                    result.setAdaptive(true);
+                    break;
+                case "disk-order":
+                    result.setDiskOrder(true);
+                    break;
+                case "no-verify":
+                    result.setVerify(false);
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("unknown option %s", args[i]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of these options, sharing the controller and the listener
+     */
+    public SyncOptions copy()
+    {
+        SyncOptions result = new SyncOptions();
+        result.scrape = scrape;
+        result.delta = delta;
+        result.resume = resume;
+        result.deleteThreads = deleteThreads;
+        result.deltaThreshold = deltaThreshold;
+        result.shadowIndex = shadowIndex;
+        result.xattrIndex = xattrIndex;
+        result.lazyIndex = lazyIndex;
+        result.controller = controller;
+        result.diskOrder = diskOrder;
+        result.progressListener = progressListener;
+        result.profile = profile;
+        result.verify = verify;
+        return result;
+    }
+
+    public boolean isScrape()
+    {
+        return scrape;
+    }
+
+    /**
+     * @param scrape true to delete from the destination what is not in the source
+     * @return this
+     */
+    public SyncOptions setScrape(boolean scrape)
+    {
+        this.scrape = scrape;
+        return this;
+    }
+
+    public boolean isDelta()
+    {
+        return delta;
+    }
+
+    /**
+     * @param delta true to update modified files with {@link DeltaCopier} instead of copying them again
+     * @return this
+     */
+    public SyncOptions setDelta(boolean delta)
+    {
+        this.delta = delta;
+        return this;
+    }
+
+    public boolean isResume()
+    {
+        return resume;
+    }
+
+    /**
+     * @param resume true to keep a {@link SyncJournal} and restart where an interrupted run stopped
+     * @return this
+     */
+    public SyncOptions setResume(boolean resume)
+    {
+        this.resume = resume;
+        return this;
+    }
+
+    public int getDeleteThreads()
+    {
+        return deleteThreads;
+    }
+
+    /**
+     * @param deleteThreads maximum number of concurrent deletions when scraping
+     * @return this
+     */
+    public SyncOptions setDeleteThreads(int deleteThreads)
+    {
+        if (deleteThreads < 1) {
+            throw new IllegalArgumentException(String.format("%d delete threads", deleteThreads));
+        }
+        this.deleteThreads = deleteThreads;
+        return this;
+    }
+
+    public long getDeltaThreshold()
+    {
+        return deltaThreshold;
+    }
+
+    /**
+     * @param deltaThreshold smaller files are always copied again
+     * @return this
+     */
+    public SyncOptions setDeltaThreshold(long deltaThreshold)
+    {
+        this.deltaThreshold = deltaThreshold;
+        return this;
+    }
+
+    public Path getShadowIndex()
+    {
+        return shadowIndex;
+    }
+
+    /**
+     * @param shadowIndex root of the tree where source indexes are stored, null to store them in the source
+     * @return this
+     */
+    public SyncOptions setShadowIndex(Path shadowIndex)
+    {
+        this.shadowIndex = shadowIndex;
+        return this;
+    }
+
+    public boolean isXattrIndex()
+    {
+        return xattrIndex;
+    }
+
+    /**
+     * @param xattrIndex true to store the indexes in extended attributes, see {@link XattrIndexStore}
+     * @return this
+     */
+    public SyncOptions setXattrIndex(boolean xattrIndex)
+    {
+        this.xattrIndex = xattrIndex;
+        return this;
+    }
+
+    public boolean isLazyIndex()
+    {
+        return lazyIndex;
+    }
+
+    /**
+     * @param lazyIndex true to read the .index files on demand, see {@link LazyDirInfo}
+     * @return this
+     */
+    public SyncOptions setLazyIndex(boolean lazyIndex)
+    {
+        this.lazyIndex = lazyIndex;
+        return this;
+    }
+
+    public boolean isAdaptive()
+    {
+        return controller != null;
+    }
+
+    /**
+     * @param adaptive true to hash and copy files in parallel, the number of
+     * concurrent tasks is adjusted from the throughput, see {@link ConcurrencyController};
+     * copies stay serial with option resume
+     * @return this
+     */
+    public SyncOptions setAdaptive(boolean adaptive)
+    {
+        controller = adaptive ? new ConcurrencyController("sync") : null;
+        return this;
+    }
+
+    /**
+     * @return the controller shared by source and destination, null if not adaptive
+     */
+    public ConcurrencyController getController()
+    {
+        return controller;
+    }
+
+    public boolean isDiskOrder()
+    {
+        return diskOrder;
+    }
+
+    /**
+     * @param diskOrder true to index and copy the files in inode order, see {@link DiskOrder}
+     * @return this
+     */
+    public SyncOptions setDiskOrder(boolean diskOrder)
+    {
+        this.diskOrder = diskOrder;
+        return this;
+    }
+
+    public ProgressListener getProgressListener()
+    {
+        return progressListener;
+    }
+
+    /**
+     * @param progressListener receives the progress of the synchronization, null for none; logs by default
+     * @return this
+     */
+    public SyncOptions setProgressListener(ProgressListener progressListener)
+    {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    public int getProfile()
+    {
+        return profile;
+    }
+
+    /**
+     * @param profile size of the report of {@link HotSpotProfiler}, 0 to leave it as is
+     * @return this
+     */
+    public SyncOptions setProfile(int profile)
+    {
+        this.profile = profile;
+        return this;
+    }
+
+    public boolean isVerify()
+    {
+        return verify;
+    }
+
+    /**
+     * @param verify false to trust the signature computed while reading the
+     * source, instead of reading the copies again; used by {@link FanOutSynchronize}
+     * @return this
+     */
+    public SyncOptions setVerify(boolean verify)
+    {
+        this.verify = verify;
+        return this;
+    }
+
+    /**
+     * @return the checker of the source directories, honours the shadow index
+     */
+    DirChecker getSourceChecker()
+    {
+        DirChecker result = new DirChecker(shadowIndex);
+        result.setXattrIndex(xattrIndex);
+        result.setLazyIndex(lazyIndex);
+        result.setConcurrencyController(controller);
+        result.setDiskOrder(diskOrder);
+        return result;
+    }
+
+    /**
+     * @return the checker of the destination directories
+     */
+    DirChecker getDestinationChecker()
+    {
+        DirChecker result = new DirChecker();
+        result.setXattrIndex(xattrIndex);
+        result.setLazyIndex(lazyIndex);
+        result.setConcurrencyController(controller);
+        result.setDiskOrder(diskOrder);
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("scrape=%b, delta=%b, resume=%b, shadowIndex=%s, xattrIndex=%b, lazyIndex=%b, adaptive=%b, diskOrder=%b, profile=%d, verify=%b",
+            scrape, delta, resume, shadowIndex, xattrIndex, lazyIndex, isAdaptive(), diskOrder, profile, verify);
+    }
+}
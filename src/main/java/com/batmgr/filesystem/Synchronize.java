@@ -25,16 +25,21 @@ package com.batmgr.filesystem;
 
 import java.awt.Toolkit;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static java.nio.file.FileVisitResult.CONTINUE;
-
 /**
  * Synchronize a source directory to a target directory
  */
@@ -45,12 +50,14 @@ public class Synchronize {
     
     public static void main(String[] args) {
         try {
-            boolean scrape = args.length > 2 && args[2].equals("scrape");
-            LOG.info("scrape : " + scrape);
-            synchronize(Paths.get(args[0]), Paths.get(args[1]), scrape);
+            SyncOptions options = SyncOptions.parse(args, 2);
+            LOG.info("options : " + options);
+            synchronize(Paths.get(args[0]), Paths.get(args[1]), options);
         } catch (Throwable t) {
             LOG.error("program aborted", t);
         }
+        Metrics.getDefault().logSummary();
+        HotSpotProfiler.getDefault().logReport();
         Toolkit.getDefaultToolkit().beep();
     }
     
@@ -66,118 +73,353 @@ public class Synchronize {
      * This method is not optimal: identical files can be copied several times.
      */
     public static void synchronize(Path src, Path dst, boolean scrape) throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        synchronize(src, dst, new SyncOptions().setScrape(scrape));
+    }
+
+    /**
+     * Recursively copy the contents of src to dst, see {@link #synchronize(Path, Path, boolean)}.
+     * @param src the source directory
+     * @param dst the target directory
+     * @param options scrape, delta update...
+     */
+    public static void synchronize(Path src, Path dst, SyncOptions options) throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        Files.createDirectories(dst);
+        if (options.getProfile() > 0) {
+            HotSpotProfiler.getDefault().setTop(options.getProfile());
+        }
+        SyncJournal journal = options.isResume() ? new SyncJournal(src, dst) : null;
+        ProgressTracker tracker = new ProgressTracker("synchronize", options.getProgressListener());
+        tracker.directoriesFound(1);
+        synchronize(src, dst, options, journal, true, tracker);
+        tracker.finish();
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+
+    /**
+     * Copy the files of src to dst. Sub-directories missing in dst are copied
+     * recursively, the others are left as they are.
+     * @param src the source directory
+     * @param dst the target directory
+     * @param options scrape, delta update...
+     */
+    static void synchronizeFolder(Path src, Path dst, SyncOptions options)
+        throws NoSuchAlgorithmException, IOException, InvalidIndexException
+    {
+        synchronize(src, dst, options, null, false, new ProgressTracker("synchronize", null));
+    }
+
+    /**
+     * Copy the contents of src to dst, skip the directories completed
+     * according to the journal.
+     * @param recursive false to synchronize only the sub-directories missing in dst
+     * @param tracker counts the source files and directories
+     */
+    private static void synchronize(Path src, Path dst, SyncOptions options, SyncJournal journal, boolean recursive,
+        ProgressTracker tracker) throws NoSuchAlgorithmException, IOException, InvalidIndexException
     {
         LOG.info(String.format("Synchronize %s", src.toString()));
-        DirChecker checker = new DirChecker();
-        checker.indexFolder(src);
-        checker.sweepFolder(src);
+        DirChecker srcChecker = options.getSourceChecker();
+        srcChecker.indexFolder(src);
+        srcChecker.sweepFolder(src);
+        DirChecker checker = options.getDestinationChecker();
         Files.createDirectories(dst);
         checker.indexFolder(dst);
         checker.sweepFolder(dst);
         // TODO faut-il un délai avant d'avoir un index stable ?
-        DirInfo srcInfo = new DirInfo(src);
-        Map<String, FileInfo> srcNames = srcInfo.getNameIndex();
-        DirInfo dstInfo = new DirInfo(dst);
-        Map<String, FileInfo> dstNames = dstInfo.getNameIndex();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(src)) {
+        IndexStore srcInfo = srcChecker.openIndex(src);
+        Map<String, FileInfo> srcNames = srcInfo.nameView();
+        IndexStore dstInfo = checker.openIndex(dst);
+        Map<String, FileInfo> dstNames = dstInfo.nameView(); // follows the copies
+        ConcurrencyController controller = options.getController();
+        Map<String, Future<CopiedFile>> copies = new LinkedHashMap<>(); // copies running in the pool of the controller
+        List<Path> entries = DiskOrder.list(src, options.isDiskOrder());
+        tracker.directoriesFound((int) entries.stream().filter(p -> Files.isDirectory(p) && !checker.isSpecialDir(p)).count());
+        for (Path p : entries) {
+            if (Files.isDirectory(p)) {
+                if (checker.isSpecialDir(p)) {
+                    continue;
+                }
+                if (journal != null && journal.isDone(p)) {
+                    LOG.debug(String.format("Skip %s, done by previous run", p));
+                    tracker.directoryDone();
+                    continue;
+                }
+                Path dstDir = dst.resolve(p.getFileName().toString());
+                if (!recursive && Files.isDirectory(dstDir)) {
+                    tracker.directoryDone();
+                    continue;
+                }
+                synchronize(p, dstDir, options, journal, true, tracker);
+            } else {
+                if (!Files.isRegularFile(p)) {
+                    continue;
+                }
+                String name = p.getFileName().toString();
+                FileInfo srcFileInfo = srcNames.get(name);
+                if (srcFileInfo == null) { // file not indexed (special file, index file...)
+                    continue;
+                }
+                tracker.fileDone(srcFileInfo.getSize()); // copied or not
+                Path dstPath = dst.resolve(name);
+                FileInfo dstFileInfo = dstNames.get(name);
+                if (dstFileInfo != null && !srcFileInfo.getHash().equals(dstFileInfo.getHash())) {
+                    // file is present but different, update or remove it
+                    dstInfo.removeFromIndex(dstFileInfo);
+                    if (options.isDelta()
+                        && dstFileInfo.getSize() >= options.getDeltaThreshold()
+                        && updateDelta(p, dstPath, srcFileInfo, dstInfo))
+                    {
+                        continue;
+                    }
+                    Files.delete(dstPath);
+                    dstFileInfo = null;
+                }
+                if (dstFileInfo != null) {
+                    // file is present and has same contents, skip it
+                    continue;
+                }
+                if (controller != null && journal == null) {
+                    copies.put(name, controller.submit(srcFileInfo.getSize(), () -> copyAndHash(p, dstPath)));
+                } else {
+                    copyFile(p, dstPath, srcFileInfo, dstInfo, journal);
+                }
+            }
+        }
+        indexCopies(copies, dst, srcNames, dstInfo);
+        if (options.isScrape()) { // scrub ?? // timing issues ??
+            scrape(src, dst, dstInfo, srcNames, dstNames, options);
+        }
+        tracker.directoryDone();
+        if (journal != null) {
+            journal.markDone(src);
+        }
+    }
+
+    /**
+     * Copy a file, index the copy and check its contents.
+     * <p>
+     * With a journal, the copy is written under a temporary name and renamed at
+     * the end. A copy interrupted by a previous run is resumed.
+     * @param p the source file
+     * @param dstPath the destination, must not exist
+     * @param srcFileInfo the source entry
+     * @param dstInfo the destination index
+     * @param journal the journal, can be null
+     */
+    private static void copyFile(Path p, Path dstPath, FileInfo srcFileInfo, IndexStore dstInfo, SyncJournal journal)
+        throws IOException, NoSuchAlgorithmException
+    {
+        String name = srcFileInfo.getName();
+        long offset = 0;
+        if (journal == null) {
+            LOG.info(String.format("Copy %s", name));
+            IoScheduler.copy(p, dstPath);
+        } else {
+            Path part = SyncJournal.partPath(dstPath);
+            offset = journal.startCopy(p, part, srcFileInfo);
+            if (offset > 0) {
+                LOG.info(String.format("Resume copy %s at %s", name, FileInfo.getHumanReadableSize(offset)));
+            } else {
+                LOG.info(String.format("Copy %s", name));
+            }
+            copyFrom(p, part, offset);
+            Files.move(part, dstPath, StandardCopyOption.ATOMIC_MOVE);
+            journal.endCopy(p);
+        }
+        dstInfo.addIfNeeded(dstPath);
+        FileInfo dstFileInfo = dstInfo.getFileInfo(name);
+        if (dstFileInfo == null) {
+            throw new RuntimeException(String.format("%s not present in destination", dstPath));
+        }
+        if (!dstFileInfo.getHash().equals(srcFileInfo.getHash())) {
+            Metrics.getDefault().verificationFailed();
+            if (offset > 0) {
+                // the part copied by the interrupted run is damaged, start again
+                LOG.warn(String.format("%s has different content after resume, copy it again", dstPath));
+                dstInfo.removeFromIndex(dstFileInfo);
+                Files.delete(dstPath);
+                copyFile(p, dstPath, srcFileInfo, dstInfo, journal);
+                return;
+            }
+            throw new RuntimeException(String.format("%s has different content", dstPath));
+        }
+    }
+
+    /**
+     * A copy made in the pool of the controller, hashed but not indexed yet
+     */
+    private static class CopiedFile {
+        final BasicFileAttributes attrs;
+        final String              hash;
+
+        CopiedFile(BasicFileAttributes attrs, String hash)
+        {
+            this.attrs = attrs;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Copy a file and read the copy again, without touching the index, which
+     * is updated from the thread of the directory
+     */
+    private static CopiedFile copyAndHash(Path p, Path dstPath) throws IOException, NoSuchAlgorithmException
+    {
+        LOG.info(String.format("Copy %s", p.getFileName()));
+        IoScheduler.copy(p, dstPath);
+        BasicFileAttributes attrs = Files.readAttributes(dstPath, BasicFileAttributes.class);
+        return new CopiedFile(attrs, HashCache.computeSha256(null, dstPath, attrs));
+    }
+
+    /**
+     * Wait for the copies made in the pool, index and check them as {@link #copyFile} does
+     */
+    private static void indexCopies(Map<String, Future<CopiedFile>> copies, Path dst, Map<String, FileInfo> srcNames,
+        IndexStore dstInfo) throws IOException, NoSuchAlgorithmException
+    {
+        for (Map.Entry<String, Future<CopiedFile>> entry : copies.entrySet()) {
+            CopiedFile copied;
+            try {
+                copied = entry.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("copying to %s", dst));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof NoSuchAlgorithmException) {
+                    throw (NoSuchAlgorithmException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+            dstInfo.update(entry.getKey(), copied.attrs, copied.hash);
+            if (!copied.hash.equals(srcNames.get(entry.getKey()).getHash())) {
+                Metrics.getDefault().verificationFailed();
+                throw new RuntimeException(String.format("%s has different content", dst.resolve(entry.getKey())));
+            }
+        }
+    }
+
+    /**
+     * Copy the end of a file
+     * @param p the source file
+     * @param part the destination, created if needed, truncated to offset
+     * @param offset the number of bytes to keep in part
+     */
+    @SuppressWarnings("try") // the permit is held, not used
+    private static void copyFrom(Path p, Path part, long offset) throws IOException
+    {
+        try (IoScheduler.Permit permit = IoScheduler.getDefault().acquire(p, part);
+            FileChannel in = FileChannel.open(p, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FsEvents.CopyEvent event = new FsEvents.CopyEvent();
+            event.begin();
+            out.truncate(offset);
+            out.position(offset);
+            long size = in.size();
+            long pos = offset;
+            while (pos < size) {
+                pos += in.transferTo(pos, size - pos, out);
+            }
+            event.end();
+            Metrics.getDefault().bytesCopied(size - offset);
+            if (event.shouldCommit()) {
+                event.source = p.toString();
+                event.destination = part.toString();
+                event.bytes = size - offset;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Delete from dst the files and directories that are not in src. <br>
+     * Deletions run in parallel, the index entries of the deleted files are
+     * removed in one batch.
+     * @param src the source directory
+     * @param dst the target directory
+     * @param dstInfo the target index
+     * @param srcNames the source entries
+     * @param dstNames the target entries
+     * @param options the number of threads
+     */
+    static void scrape(Path src, Path dst, IndexStore dstInfo, Map<String, FileInfo> srcNames,
+        Map<String, FileInfo> dstNames, SyncOptions options) throws IOException
+    {
+        DirChecker checker = new DirChecker();
+        List<Path> obsolete = new ArrayList<>();
+        List<FileInfo> obsoleteEntries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dst)) {
             for (Path p : stream) { // cannot use stream.forEach because of IOException
                 if (Files.isDirectory(p)) {
                     if (checker.isSpecialDir(p)) {
                         continue;
                     }
-                    synchronize(p, dst.resolve(p.getFileName().toString()), scrape);
+                    if (!Files.exists(src.resolve(p.getFileName().toString()))) {
+                        LOG.info(String.format("directory %s present only in dest, trying to delete",
+                            p.getFileName()));
+                        obsolete.add(p);
+                    }
                 } else {
                     if (!Files.isRegularFile(p)) {
                         continue;
                     }
                     String name = p.getFileName().toString();
-                    FileInfo srcFileInfo = srcNames.get(name);
-                    if (srcFileInfo == null) { // file not indexed (special file, index file...)
-                        continue;
-                    }
-                    Path dstPath = dst.resolve(name);
                     FileInfo dstFileInfo = dstNames.get(name);
-                    if (dstFileInfo != null && !srcFileInfo.getHash().equals(dstFileInfo.getHash())) {
-                        // file is present but different, remove it
-                        Files.delete(dstPath);
-                        dstInfo.removeFromIndex(dstFileInfo);
-                        dstFileInfo = null;
-                    }
-                    if (dstFileInfo != null) {
-                        // file is present and has same contents, skip it
+                    if (dstFileInfo == null) { // file not indexed (special file, index file...)
                         continue;
                     }
-                    LOG.info(String.format("Copy %s", name));
-                    Files.copy(p, dstPath);
-                    dstInfo.addIfNeeded(dstPath);
-                    dstNames = dstInfo.getNameIndex();
-                    dstFileInfo = dstNames.get(name);
-                    if (dstFileInfo == null) {
-                        throw new RuntimeException(String.format("%s not present in destination", dstPath));
-                    }
-                    if (!dstFileInfo.getHash().equals(srcFileInfo.getHash())) {
-                        throw new RuntimeException(String.format("%s has different content", dstPath));
+                    FileInfo srcFileInfo = srcNames.get(name);
+                    if (srcFileInfo == null) { // not present in src
+                        LOG.info(String.format("deleting file %s", p));
+                        obsolete.add(p);
+                        obsoleteEntries.add(dstFileInfo);
                     }
                 }
             }
         }
-        if (scrape) { // scrub ?? // timing issues ??
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dst)) {
-                for (Path p : stream) { // cannot use stream.forEach because of IOException
-                    if (Files.isDirectory(p)) {
-                        if (checker.isSpecialDir(p)) {
-                            continue;
-                        }
-                        if (!Files.exists(src.resolve(p.getFileName().toString()))) {
-                            LOG.info(String.format("directory %s present only in dest, trying to delete",
-                                p.getFileName()));
-                            try {
-                                Files.walkFileTree(p, new FileVisitor<Path>() {
-                                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
-                                        throws IOException {
-                                        return CONTINUE;
-                                    }
-                                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                                        throws IOException {
-                                        LOG.info(String.format("deleting file %s", file));
-                                        Files.delete(file);
-                                        return CONTINUE;
-                                    }
-                                    public FileVisitResult visitFileFailed(Path file, IOException exc)
-                                        throws IOException {
-                                        throw exc;
-                                    }
-                                    public FileVisitResult postVisitDirectory(Path dir, IOException exc)
-                                        throws IOException {
-                                        if (exc != null) {
-                                            throw exc;
-                                        }
-                                        LOG.info(String.format("deleting directory %s", dir));
-                                        Files.delete(dir);
-                                        return CONTINUE;
-                                    }
-                                });
-                            } catch (Exception e) {
-                                LOG.warn(String.format("cannot delete %s", p), e);
-                            }
-                        }
-                    } else {
-                        if (!Files.isRegularFile(p)) {
-                            continue;
-                        }
-                        String name = p.getFileName().toString();
-                        FileInfo dstFileInfo = dstNames.get(name);
-                        if (dstFileInfo == null) { // file not indexed (special file, index file...)
-                            continue;
-                        }
-                        FileInfo srcFileInfo = srcNames.get(name);
-                        if (srcFileInfo == null) { // not present in src
-                            LOG.info(String.format("deleting file %s", p));
-                            Files.delete(p);
-                        }
-                    }
-                }
+        if (obsolete.isEmpty()) {
+            return;
+        }
+        try (TreeDeleter deleter = new TreeDeleter(options.getDeleteThreads())) {
+            deleter.delete(obsolete);
+            deleter.report();
+        }
+        List<FileInfo> deleted = new ArrayList<>();
+        for (FileInfo fileInfo : obsoleteEntries) {
+            if (!Files.exists(dst.resolve(fileInfo.getName()))) {
+                deleted.add(fileInfo);
+            }
+        }
+        dstInfo.removeFromIndex(deleted);
+    }
+
+    /**
+     * Rewrite the changed blocks of an existing copy and index it.
+     * @param p the source file
+     * @param dstPath the outdated copy, already removed from dstInfo
+     * @param srcFileInfo the source entry
+     * @param dstInfo the destination index
+     * @return false if the copy is still different, it must be copied again
+     */
+    @SuppressWarnings("try") // the permit is held, not used
+    private static boolean updateDelta(Path p, Path dstPath, FileInfo srcFileInfo, IndexStore dstInfo)
+        throws NoSuchAlgorithmException, IOException
+    {
+        LOG.info(String.format("Update %s", srcFileInfo.getName()));
+        try (IoScheduler.Permit permit = IoScheduler.getDefault().acquire(p, dstPath)) {
+            if (!new DeltaCopier().update(p, dstPath, srcFileInfo.getHash())) {
+                return false;
             }
         }
+        // the signature was checked by DeltaCopier, no need to compute it again
+        dstInfo.appendToIndex(new FileInfo(srcFileInfo.getName(), Files.size(dstPath),
+            Files.getLastModifiedTime(dstPath), srcFileInfo.getHash(), 0));
+        return true;
     }
 }
@@ -0,0 +1,198 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delete files and directory trees with a bounded number of threads. <br>
+ * Sub-directories are deleted in parallel, a directory is deleted when all its
+ * contents are gone. Reports the files and bytes reclaimed per second.
+ */
+@SuppressWarnings("nls")
+public class TreeDeleter implements AutoCloseable {
+    
+    private static final Logger LOG             = LoggerFactory.getLogger(TreeDeleter.class);
+
+    public static final int     DEFAULT_THREADS = 4;
+    private static final long   REPORT_INTERVAL = 10000; // ms
+    
+    private final ForkJoinPool  pool;
+    private final LongAdder     files           = new LongAdder();
+    private final LongAdder     dirs            = new LongAdder();
+    private final LongAdder     bytes           = new LongAdder();
+    private final AtomicLong    lastReport;
+    private final long          start;
+    
+    /**
+     * @param threads maximum number of concurrent deletions
+     */
+    public TreeDeleter(int threads)
+    {
+        pool = new ForkJoinPool(threads);
+        start = System.currentTimeMillis();
+        lastReport = new AtomicLong(start);
+    }
+    
+    /**
+     * Delete files and directory trees. <br>
+     * A failure is logged and doesn't stop the other deletions, the parent
+     * directories of a file that cannot be deleted are kept.
+     * @param paths files or directories
+     * @return the number of paths that could not be deleted completely
+     */
+    public int delete(Collection<Path> paths)
+    {
+        List<DeleteTask> tasks = new ArrayList<>();
+        for (Path p : paths) {
+            tasks.add(new DeleteTask(p));
+        }
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute()
+            {
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
+        int failures = 0;
+        for (DeleteTask task : tasks) {
+            if (task.failed) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+    
+    /**
+     * Delete one file or directory tree, the sub-directories are forked
+     */
+    private class DeleteTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path path;   // tasks are never serialized
+        private boolean           failed;
+        
+        DeleteTask(Path path)
+        {
+            this.path = path;
+        }
+
+        @Override
+        protected void compute()
+        {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+                if (attrs.isDirectory()) {
+                    List<DeleteTask> children = new ArrayList<>();
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                        for (Path p : stream) { // cannot use stream.forEach because of IOException
+                            children.add(new DeleteTask(p));
+                        }
+                    }
+                    ForkJoinTask.invokeAll(children);
+                    for (DeleteTask child : children) {
+                        if (child.failed) {
+                            failed = true;
+                            return; // directory not empty
+                        }
+                    }
+                    LOG.debug(String.format("deleting directory %s", path));
+                    Files.delete(path);
+                    dirs.increment();
+                } else {
+                    LOG.debug(String.format("deleting file %s", path));
+                    Files.delete(path);
+                    files.increment();
+                    bytes.add(attrs.size());
+                }
+                reportIfNeeded();
+            } catch (IOException e) {
+                LOG.warn(String.format("cannot delete %s", path), e);
+                failed = true;
+            }
+        }
+    }
+    
+    private void reportIfNeeded()
+    {
+        long now = System.currentTimeMillis();
+        long last = lastReport.get();
+        if (now - last >= REPORT_INTERVAL && lastReport.compareAndSet(last, now)) {
+            report();
+        }
+    }
+    
+    /**
+     * Log what was reclaimed since the creation of this object
+     */
+    public void report()
+    {
+        double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+        LOG.info(String.format("deleted %d files, %d directories, %s (%.0f files/s, %s/s)",
+            files.sum(), dirs.sum(), FileInfo.getHumanReadableSize(bytes.sum()), files.sum() / seconds,
+            FileInfo.getHumanReadableSize((long) (bytes.sum() / seconds))));
+    }
+    
+    public long getFiles()
+    {
+        return files.sum();
+    }
+    
+    public long getBytes()
+    {
+        return bytes.sum();
+    }
+
+    @Override
+    public void close()
+    {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index stored in a user extended attribute of each file, holding the same
+ * line as an .index file. <br>
+ * Looking up an indexed file costs a single getxattr, a file without the
+ * attribute also a listxattr; the whole directory is only read when all
+ * entries or a hash are requested. An attribute copied with the file
+ * (e.g. cp --preserve=xattr) stays valid as long as size and last modification
+ * are kept, otherwise the file is hashed again. <br>
+ * Not thread-safe, unlike {@link DirInfo}: share an instance between threads
+ * only with external synchronization.
+ */
+@SuppressWarnings("nls")
+public class XattrIndexStore implements IndexStore {
+    
+    private static final Logger   LOG       = LoggerFactory.getLogger(XattrIndexStore.class);
+
+    public static final String    ATTRIBUTE = "batmgr.index"; // user.batmgr.index on Linux
+    private static final int      MAX_SIZE  = 2048;           // an entry with a name of 255 characters fits
+
+    private final Path            path;
+    private HashCache             hashCache;                  // null if none
+    private Map<String, FileInfo> nameIndex;                  // null until the directory is read
+    
+    /**
+     * @param path the indexed directory
+     */
+    public XattrIndexStore(Path path)
+    {
+        this.path = path;
+    }
+    
+    /**
+     * @param path a directory
+     * @return true if the file system of the directory has user extended attributes
+     */
+    public static boolean isSupported(Path path)
+    {
+        try {
+            FileStore store = Files.getFileStore(path);
+            return store.supportsFileAttributeView(UserDefinedFileAttributeView.class);
+        } catch (IOException e) {
+            LOG.debug(String.format("%s: cannot check extended attributes (%s)", path, e.getMessage()));
+            return false;
+        }
+    }
+
+    @Override
+    public void setHashCache(HashCache hashCache)
+    {
+        this.hashCache = hashCache;
+    }
+    
+    /**
+     * Read the attribute of one file
+     * @param file the file
+     * @return the entry, with the current name of the file, or null
+     */
+    private static FileInfo read(Path file) throws IOException
+    {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(MAX_SIZE);
+        try {
+            try {
+                view.read(ATTRIBUTE, buf);
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (FileSystemException e) {
+                // a missing attribute and a short buffer give the same exception
+                if (!view.list().contains(ATTRIBUTE)) {
+                    return null;
+                }
+                buf = ByteBuffer.allocate(view.size(ATTRIBUTE));
+                view.read(ATTRIBUTE, buf);
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        buf.flip();
+        FileInfo stored;
+        try {
+            stored = new FileInfo(StandardCharsets.UTF_8.decode(buf).toString());
+        } catch (IllegalArgumentException e) {
+            LOG.warn(String.format("%s: invalid index attribute ignored (%s)", file, e.getMessage()));
+            return null;
+        }
+        Metrics.getDefault().indexLineParsed();
+        String name = file.getFileName().toString();
+        if (stored.isRemovedFlagSet()) {
+            return null;
+        }
+        if (!stored.getName().equals(name)) { // renamed or copied with its attributes
+            return new FileInfo(name, stored.getSize(), stored.getLastModif(), stored.getHash(), 0);
+        }
+        return stored;
+    }
+    
+    /**
+     * Read the attributes of all files, once
+     */
+    private Map<String, FileInfo> load() throws IOException
+    {
+        if (nameIndex != null) {
+            return nameIndex;
+        }
+        nameIndex = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path p : stream) { // cannot use stream.forEach because of IOException
+                if (Files.isRegularFile(p) && !DirInfo.isReservedName(p.getFileName().toString())) {
+                    FileInfo fileInfo = read(p);
+                    if (fileInfo != null) {
+                        nameIndex.put(fileInfo.getName(), fileInfo);
+                    }
+                }
+            }
+        }
+        return nameIndex;
+    }
+
+    @Override
+    public void addIfNeeded(Path p) throws IOException, NoSuchAlgorithmException
+    {
+        String name = p.getFileName().toString();
+        if (DirInfo.isReservedName(name)) {
+            return;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        if (isUpToDate(name, attrs)) {
+            return; // same file
+        }
+        update(name, attrs, HashCache.computeSha256(hashCache, p, attrs));
+    }
+
+    /**
+     * Same trade-off as {@link DirInfo#isUpToDate(String, BasicFileAttributes)}
+     */
+    @Override
+    public boolean isUpToDate(String name, BasicFileAttributes attrs) throws IOException
+    {
+        FileInfo fileInfo = getFileInfo(name);
+        boolean upToDate = fileInfo != null
+            && fileInfo.getSize() == attrs.size()
+            && fileInfo.getLastModif().compareTo(fileInfo.secondFileTime(attrs.lastModifiedTime())) == 0;
+        Metrics.getDefault().fileSeen(upToDate);
+        return upToDate;
+    }
+
+    /**
+     * Overwrite the attribute
+     */
+    @Override
+    public void update(String name, BasicFileAttributes attrs, String hash) throws IOException
+    {
+        appendToIndex(new FileInfo(name, attrs.size(), attrs.lastModifiedTime(), hash, 0));
+    }
+
+    /**
+     * Write the attribute, the last modification of the file is not changed
+     */
+    @Override
+    public void appendToIndex(FileInfo fileInfo) throws IOException
+    {
+        Path file = path.resolve(fileInfo.getName());
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        view.write(ATTRIBUTE, StandardCharsets.UTF_8.encode(fileInfo.toString()));
+        Metrics.getDefault().indexLineWritten();
+        if (nameIndex != null) {
+            nameIndex.put(fileInfo.getName(), fileInfo);
+        }
+    }
+
+    @Override
+    public void removeFromIndex(FileInfo fileInfo) throws IOException
+    {
+        Path file = path.resolve(fileInfo.getName());
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+            if (view.list().contains(ATTRIBUTE)) {
+                view.delete(ATTRIBUTE);
+            }
+        } catch (NoSuchFileException e) {
+            // the attribute disappeared with the file
+        }
+        fileInfo.setRemovedFlag();
+        if (nameIndex != null) {
+            nameIndex.remove(fileInfo.getName());
+        }
+    }
+
+    @Override
+    public void removeFromIndex(Collection<FileInfo> fileInfos) throws IOException
+    {
+        for (FileInfo fileInfo : fileInfos) {
+            removeFromIndex(fileInfo);
+        }
+    }
+
+    /**
+     * A single getxattr if the file is indexed, unless the directory was already read
+     */
+    @Override
+    public FileInfo getFileInfo(String fileName) throws IOException
+    {
+        if (nameIndex != null) {
+            return nameIndex.get(fileName);
+        }
+        return read(path.resolve(fileName));
+    }
+
+    @Override
+    public boolean isHashPresent(String hash) throws IOException
+    {
+        for (FileInfo fileInfo : load().values()) {
+            if (fileInfo.getHash().equals(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Collection<FileInfo> getByHash(String hash) throws IOException
+    {
+        List<FileInfo> result = new ArrayList<>(1);
+        for (FileInfo fileInfo : load().values()) {
+            if (fileInfo.getHash().equals(hash)) {
+                result.add(fileInfo);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public Set<FileInfo> getFiles() throws IOException
+    {
+        return new HashSet<>(load().values());
+    }
+
+    @Override
+    public Map<String, FileInfo> getNameIndex() throws IOException
+    {
+        return new HashMap<>(load());
+    }
+
+    @Override
+    public Map<String, FileInfo> nameView() throws IOException
+    {
+        return Collections.unmodifiableMap(load());
+    }
+
+    @Override
+    public Stream<FileInfo> stream() throws IOException
+    {
+        return load().values().stream();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+public class ConcurrencyControllerTest {
+
+    @Test
+    public void test_limitRespected() throws Exception {
+        Metrics.getDefault().reset();
+        ConcurrencyController controller = new ConcurrencyController("test", 1, 3, 1, 20);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger highest = new AtomicInteger();
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            int n = i;
+            futures.add(controller.submit(1000, () -> {
+                highest.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return n;
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertThat(futures.get(i).get()).isEqualTo(i);
+        }
+        assertThat(highest.get()).isLessThanOrEqualTo(3);
+        assertThat(controller.getLimit()).isBetween(1, 3);
+        assertThat(controller.getIncreases()).isGreaterThan(0); // the first window probes upwards
+        assertThat(controller.getActive()).isEqualTo(0);
+        // the decisions are counted in the metrics
+        assertThat(Metrics.getDefault().getConcurrencyLimit()).isEqualTo(controller.getLimit());
+        assertThat(Metrics.getDefault().getConcurrencyIncreases()).isEqualTo(controller.getIncreases());
+        assertThat(Metrics.getDefault().getConcurrencyDecreases()).isEqualTo(controller.getDecreases());
+        assertThat(Metrics.getDefault().getSummary()).contains("\"concurrencyLimit\": " + controller.getLimit());
+    }
+    
+    /**
+     * Throughput of a device which scales up to peak workers, then loses 10% per extra worker
+     */
+    private static double throughput(int workers, int peak) {
+        return workers <= peak ? workers * 100e6 : peak * 100e6 * Math.max(0.1, 1 - 0.1 * (workers - peak));
+    }
+    
+    /**
+     * Run windows against the simulated device
+     * @return the limits decided
+     */
+    private static List<Integer> simulate(ConcurrencyController controller, int peak, int windows) {
+        List<Integer> limits = new ArrayList<>();
+        for (int i = 0; i < windows; i++) {
+            int workers = controller.getLimit();
+            double throughput = throughput(workers, peak);
+            controller.adjust(throughput, workers * 1e6 / throughput * 1e9); // 1 MB tasks
+            limits.add(controller.getLimit());
+        }
+        return limits;
+    }
+    
+    @Test
+    public void test_convergesAndRecovers() {
+        ConcurrencyController controller = new ConcurrencyController("simulated", 1, 16, 2, 1000);
+        // climbs to the peak and stays around it, probing now and then
+        List<Integer> limits = simulate(controller, 6, 40);
+        assertThat(limits.subList(10, 40)).allSatisfy(limit -> assertThat(limit).isBetween(6, 7));
+        assertThat(limits.subList(10, 40)).contains(7);
+        // another job loads the shared device: the limit comes down without collapsing
+        limits = simulate(controller, 3, 40);
+        assertThat(limits.subList(10, 40)).allSatisfy(limit -> assertThat(limit).isBetween(3, 5));
+        // the device is free again: the limit follows
+        limits = simulate(controller, 10, 60);
+        assertThat(limits.subList(40, 60)).allSatisfy(limit -> assertThat(limit).isBetween(10, 11));
+        assertThat(controller.getDecreases()).isGreaterThan(0);
+    }
+    
+    @Test
+    public void test_flatThroughputDoesNotCollapse() {
+        ConcurrencyController controller = new ConcurrencyController("flat", 1, 16, 8, 1000);
+        controller.adjust(800e6, 10e6); // first window, probe
+        controller.adjust(800e6, 11e6); // no gain, back to 8
+        controller.adjust(800e6, 10e6);
+        assertThat(controller.getLimit()).isEqualTo(8);
+        // a decrease lowers the throughput of the next window, which is not a new congestion
+        controller.adjust(500e6, 16e6); // congestion
+        assertThat(controller.getLimit()).isEqualTo(6);
+        controller.adjust(375e6, 16e6); // same throughput per worker with 6
+        assertThat(controller.getLimit()).isEqualTo(6);
+        for (int i = 0; i < 20; i++) {
+            controller.adjust(375e6, 16e6);
+        }
+        // probed and came back, never below
+        assertThat(controller.getLimit()).isBetween(6, 7);
+        assertThat(controller.getIncreases()).isGreaterThan(1);
+    }
+    
+    @Test
+    public void test_adaptiveCopies() throws Exception {
+        Path testRoot = Paths.get(getClass().getResource("/sample.txt").toURI()).resolve("..").normalize();
+        Path testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Path src = testPath.resolve("src");
+        Files.createDirectories(src);
+        for (int i = 0; i < 20; i++) {
+            Files.write(src.resolve(String.format("file%02d", i)), new byte[1000 * i]);
+        }
+        Path dst = testPath.resolve("dst");
+        Synchronize.synchronize(src, dst, new SyncOptions().setAdaptive(true));
+        DirInfo dstInfo = new DirInfo(dst);
+        assertThat(dstInfo.getNameIndex()).hasSize(20);
+        for (int i = 0; i < 20; i++) {
+            String name = String.format("file%02d", i);
+            assertThat(Files.size(dst.resolve(name))).isEqualTo(1000 * i);
+            assertThat(dstInfo.getFileInfo(name).getHash()).isEqualTo(new DirInfo(src).getFileInfo(name).getHash());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DeltaCopierTest {
+
+    private static final int SIZE = 0x100000; // 1 MB, block size 4 KB
+
+    private Path testRoot;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        Path p = testRoot.resolve("tst1");
+        if (Files.exists(p)) {
+            FileUtils.deleteDirectory(p.toFile());
+        }
+        Files.createDirectory(p);
+    }
+    
+    private byte[] randomBytes(int size) {
+        byte[] result = new byte[size];
+        new Random(42).nextBytes(result);
+        return result;
+    }
+    
+    private boolean update(byte[] oldContent, byte[] newContent, boolean inPlace, DeltaCopier copier)
+        throws IOException, NoSuchAlgorithmException
+    {
+        Path src = testRoot.resolve("tst1/src.bin");
+        Path dst = testRoot.resolve("tst1/dst.bin");
+        Files.write(src, newContent);
+        Files.write(dst, oldContent);
+        String hash = new FileChecker().computeSha256(src);
+        boolean result = copier.setInPlace(inPlace).update(src, dst, hash);
+        assertThat(Files.readAllBytes(dst)).isEqualTo(newContent);
+        return result;
+    }
+
+    @Test
+    public void test_chooseBlockSize() {
+        assertThat(DeltaCopier.chooseBlockSize(0)).isEqualTo(DeltaCopier.MIN_BLOCK);
+        assertThat(DeltaCopier.chooseBlockSize(1L << 30)).isEqualTo(0x8000);
+        assertThat(DeltaCopier.chooseBlockSize(1L << 50)).isEqualTo(DeltaCopier.MAX_BLOCK);
+    }
+    
+    @Test
+    public void test_weakChecksumRolls() {
+        byte[] data = randomBytes(100);
+        assertThat(DeltaCopier.weakChecksum(data, 10, 20)).isNotEqualTo(DeltaCopier.weakChecksum(data, 11, 20));
+    }
+    
+    @Test
+    public void test_inPlaceModification() throws IOException, NoSuchAlgorithmException {
+        byte[] oldContent = randomBytes(SIZE);
+        byte[] newContent = oldContent.clone();
+        newContent[SIZE / 2] ^= 0x55;
+        DeltaCopier copier = new DeltaCopier();
+        assertThat(update(oldContent, newContent, true, copier)).isTrue();
+        assertThat(copier.getBytesWritten()).isEqualTo(DeltaCopier.MIN_BLOCK);
+        assertThat(copier.getBytesReused()).isEqualTo(SIZE - DeltaCopier.MIN_BLOCK);
+    }
+
+    @Test
+    public void test_inPlaceDeletion() throws IOException, NoSuchAlgorithmException {
+        byte[] oldContent = randomBytes(SIZE);
+        byte[] newContent = new byte[SIZE - 100];
+        System.arraycopy(oldContent, 0, newContent, 0, 1000);
+        System.arraycopy(oldContent, 1100, newContent, 1000, SIZE - 1100);
+        DeltaCopier copier = new DeltaCopier();
+        assertThat(update(oldContent, newContent, false, copier)).isTrue();
+        long reused = copier.getBytesReused();
+        assertThat(update(oldContent, newContent, true, copier)).isTrue();
+        assertThat(copier.getBytesWritten()).isLessThan(SIZE);
+        // the blocks moved towards the beginning are reused too
+        assertThat(copier.getBytesReused()).isEqualTo(reused).isGreaterThan(SIZE / 2);
+        assertThat(Files.exists(testRoot.resolve("tst1/dst.bin" + DeltaCopier.TMP_SUFFIX))).isFalse();
+    }
+
+    @Test
+    public void test_insertion() throws IOException, NoSuchAlgorithmException {
+        byte[] oldContent = randomBytes(SIZE);
+        byte[] newContent = new byte[SIZE + 100];
+        System.arraycopy(oldContent, 0, newContent, 0, 1000);
+        System.arraycopy(oldContent, 1000, newContent, 1100, SIZE - 1000);
+        DeltaCopier copier = new DeltaCopier();
+        assertThat(update(oldContent, newContent, false, copier)).isTrue();
+        assertThat(copier.getBytesReused()).isEqualTo(SIZE - DeltaCopier.MIN_BLOCK);
+        assertThat(update(oldContent, newContent, true, copier)).isTrue();
+    }
+
+    @Test
+    public void test_truncation() throws IOException, NoSuchAlgorithmException {
+        byte[] oldContent = randomBytes(SIZE);
+        byte[] newContent = new byte[1234];
+        System.arraycopy(oldContent, 0, newContent, 0, newContent.length);
+        assertThat(update(oldContent, newContent, true, new DeltaCopier())).isTrue();
+    }
+}
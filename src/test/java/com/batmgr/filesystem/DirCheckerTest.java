@@ -107,4 +107,44 @@ public class DirCheckerTest {
         assertThat(dirInfo.isHashPresent("4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA")).isFalse();
     }
     
+    @Test
+    public void test_indexFolder_adaptive() throws IOException, InterruptedException, InvalidIndexException, NoSuchAlgorithmException {
+        Path testPath = testRoot.resolve("tst1");
+        cleanupDir(testPath);
+        for (int i = 0; i < 10; i++) {
+            Files.copy(testRoot.resolve("sample.txt"), testPath.resolve(String.format("smpl%d.txt", i)));
+        }
+        DirChecker dirChecker = new DirChecker();
+        dirChecker.setConcurrencyController(new ConcurrencyController("test"));
+        dirChecker.indexFolder(testPath);
+        dirChecker.indexFolder(testPath); // nothing to hash
+        DirInfo dirInfo = new DirInfo(testPath);
+        assertThat(dirInfo.getFiles()).hasSize(10);
+        assertThat(dirInfo.getFileInfo("smpl7.txt").getHash())
+            .isEqualTo("4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA");
+        assertThat(Files.readAllLines(testPath.resolve(DirInfo.IDXFILE))).hasSize(11);
+    }
+    
+    @Test
+    public void test_indexTree_shadow() throws IOException, InterruptedException, NoSuchAlgorithmException, InvalidIndexException
+    {
+        Path testPath = testRoot.resolve("tst1");
+        cleanupDir(testPath);
+        Path src = testPath.resolve("src");
+        Path srcDeep = src.resolve("tst2");
+        Files.createDirectories(srcDeep);
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("sample1.txt"));
+        Files.copy(testRoot.resolve("sample.txt"), srcDeep.resolve("sample2.txt"));
+        Path shadow = testPath.resolve("shadow");
+        DirChecker dirChecker = new DirChecker(shadow);
+        dirChecker.indexTree(src);
+        assertThat(Files.exists(src.resolve(DirInfo.IDXFILE))).isFalse();
+        assertThat(Files.exists(srcDeep.resolve(DirInfo.IDXFILE))).isFalse();
+        assertThat(dirChecker.getIndexFile(srcDeep)).startsWith(shadow);
+        assertThat(Files.size(dirChecker.getIndexFile(srcDeep))).isEqualTo(166);
+        dirChecker.sweepFolder(srcDeep);
+        assertThat(dirChecker.openIndex(srcDeep)
+            .isHashPresent("4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA")).isTrue();
+    }
+    
 }
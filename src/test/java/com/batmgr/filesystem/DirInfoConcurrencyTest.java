@@ -0,0 +1,264 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Stress test of the index written by several threads and processes at once:
+ * whatever the interleaving, every line must be whole and every location must
+ * point to its entry.
+ */
+public class DirInfoConcurrencyTest {
+
+    private static final int NAMES   = 50;                                 // shared by all writers, to contend on the same entries
+    private static final int OPS     = 400;                                // per writer
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath);
+    }
+
+    /**
+     * Append or remove entries of random names, some with multi-byte characters
+     * @return the number of lines appended
+     */
+    static int write(DirInfo dirInfo, long seed) throws IOException
+    {
+        Random random = new Random(seed);
+        int appended = 0;
+        for (int i = 0; i < OPS; i++) {
+            int n = random.nextInt(NAMES);
+            String name = n % 3 == 0 ? "στην-" + n : "file" + n;
+            if (random.nextInt(10) < 7) {
+                String hash = String.format("%016X%016X%016X%016X", random.nextLong(), random.nextLong(),
+                    random.nextLong(), random.nextLong());
+                dirInfo.appendToIndex(new FileInfo(name, random.nextInt(100000), FileTime.fromMillis(random.nextLong() >>> 24), hash, 0));
+                appended++;
+            } else {
+                FileInfo fileInfo = dirInfo.getFileInfo(name);
+                if (fileInfo != null) {
+                    dirInfo.removeFromIndex(fileInfo);
+                }
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * Writer run in another process
+     */
+    public static class Writer {
+
+        public static void main(String[] args) throws Exception
+        {
+            DirInfo dirInfo = new DirInfo(Paths.get(args[0]));
+            System.out.println(write(dirInfo, Long.parseLong(args[1])));
+        }
+    }
+
+    @Test
+    public void test_threads() throws Exception {
+        DirInfo shared = new DirInfo(testPath);
+        List<DirInfo> instances = new ArrayList<>();
+        instances.add(shared);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> writers = new ArrayList<>();
+        for (int t = 0; t < 6; t++) {
+            // half of the writers share an instance, the others have their own as another process would
+            DirInfo dirInfo = t % 2 == 0 ? shared : new DirInfo(testPath);
+            if (dirInfo != shared) {
+                instances.add(dirInfo);
+            }
+            long seed = t;
+            writers.add(executor.submit(() -> Integer.valueOf(write(dirInfo, seed))));
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        Future<?> reader = executor.submit(() -> {
+            while (!stop.get()) {
+                // readers are never blocked, and see consistent entries
+                shared.stream().forEach(fi -> assertThat(fi.getName()).isNotEmpty());
+                for (int n = 0; n < NAMES; n++) {
+                    assertThat(shared.getLocation("file" + n)).isNotZero();
+                }
+            }
+            return null;
+        });
+        int appended = 0;
+        for (Future<Integer> writer : writers) {
+            appended += writer.get(2, TimeUnit.MINUTES).intValue();
+        }
+        stop.set(true);
+        reader.get(1, TimeUnit.MINUTES);
+        executor.shutdown();
+        assertIndex(appended);
+        for (DirInfo dirInfo : instances) {
+            assertLocations(dirInfo);
+        }
+    }
+
+    @Test
+    public void test_processes() throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        for (int p = 0; p < 3; p++) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Writer.class.getName(),
+                testPath.toString(), String.valueOf(100 + p)).redirectErrorStream(true).start());
+        }
+        // and one writer in this process
+        DirInfo dirInfo = new DirInfo(testPath);
+        int appended = write(dirInfo, 99);
+        for (Process process : processes) {
+            List<String> output = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                reader.lines().forEach(output::add);
+            }
+            assertThat(process.waitFor(2, TimeUnit.MINUTES)).isTrue();
+            assertThat(process.exitValue()).as(String.join("\n", output)).isZero();
+            appended += Integer.parseInt(output.get(output.size() - 1).trim());
+        }
+        assertIndex(appended);
+        assertLocations(dirInfo);
+    }
+
+    @Test
+    public void test_nestedLocks() throws Exception {
+        Path first = testPath.resolve("a");
+        Path second = testPath.resolve("b");
+        Files.createDirectories(first);
+        Files.createDirectories(second);
+        new DirInfo(first);
+        DirInfo other = new DirInfo(second);
+        FileInfo x = new FileInfo("x", 1, FileTime.fromMillis(0), String.format("%064X", 1), 0);
+        try (IndexLock lock = IndexLock.acquire(first.resolve(DirInfo.IDXFILE))) {
+            // another index neither: two threads could lock them in opposite orders
+            assertThatThrownBy(() -> other.appendToIndex(x)).isInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(() -> IndexLock.acquire(first.resolve(DirInfo.IDXFILE)))
+                .isInstanceOf(IllegalStateException.class);
+        }
+        other.appendToIndex(x);
+        assertThat(new DirInfo(second).getFileInfo("x")).isNotNull();
+        IndexLock.acquire(first.resolve(DirInfo.IDXFILE)).close();
+        assertThat(DirInfo.isReservedName(IndexLock.lockFile(first.resolve(DirInfo.IDXFILE)).getFileName().toString()))
+            .isTrue();
+    }
+
+    @Test
+    public void test_replacedAndGrown() throws Exception {
+        DirInfo stale = new DirInfo(testPath);
+        List<FileInfo> obsolete = new ArrayList<>();
+        for (int n = 0; n < 1500; n++) {
+            FileInfo fileInfo = new FileInfo("file" + n, n, FileTime.fromMillis(0), String.format("%064X", n), 0);
+            stale.appendToIndex(fileInfo);
+            if (n < 1400) {
+                obsolete.add(fileInfo);
+            }
+        }
+        stale.removeFromIndex(obsolete);
+        long known = Files.size(testPath.resolve(DirInfo.IDXFILE));
+        assertThat(new DirInfo(testPath).compactIfNeeded()).isTrue();
+        // another writer grows the compacted index past the size known by the stale instance
+        DirInfo other = new DirInfo(testPath);
+        for (int n = 2000; n < 4000; n++) {
+            other.appendToIndex(new FileInfo("file" + n, n, FileTime.fromMillis(0), String.format("%064X", n), 0));
+        }
+        assertThat(Files.size(testPath.resolve(DirInfo.IDXFILE))).isGreaterThan(known);
+        stale.removeFromIndex(stale.getFileInfo("file1450"));
+        DirInfo reloaded = new DirInfo(testPath);
+        assertThat(reloaded.getFiles()).hasSize(99 + 2000);
+        assertThat(reloaded.getFileInfo("file1450")).isNull();
+        assertLocations(reloaded);
+        assertLocations(stale);
+    }
+
+    /**
+     * Every append made one whole line, and the index loads without duplicates
+     */
+    private void assertIndex(int appended) throws IOException, InvalidIndexException {
+        String content = new String(Files.readAllBytes(testPath.resolve(DirInfo.IDXFILE)), DirInfo.IDXCHARSET);
+        assertThat(content).endsWith("\r\n");
+        List<String> lines = new ArrayList<>();
+        Collections.addAll(lines, content.split("\r\n"));
+        assertThat(lines).hasSize(appended + 1);
+        assertThat(lines.get(0)).isEqualTo(DirInfo.IDXSIGNATURE);
+        long live = lines.stream().skip(1).map(FileInfo::new).filter(fi -> !fi.isRemovedFlagSet()).count();
+        DirInfo dirInfo = new DirInfo(testPath);
+        assertThat(dirInfo.getFiles()).hasSize((int) live);
+        assertLocations(dirInfo);
+    }
+
+    /**
+     * Every location known by an instance is the start of the line of its entry
+     */
+    private void assertLocations(DirInfo dirInfo) throws IOException {
+        byte[] bytes = Files.readAllBytes(testPath.resolve(DirInfo.IDXFILE));
+        for (FileInfo fileInfo : dirInfo.getFiles()) {
+            int location = dirInfo.getLocation(fileInfo.getName());
+            assertThat(location).isPositive();
+            int end = location;
+            while (bytes[end] != '\r') {
+                end++;
+            }
+            FileInfo onDisk = new FileInfo(new String(bytes, location, end - location, DirInfo.IDXCHARSET));
+            assertThat(onDisk.getName()).isEqualTo(fileInfo.getName());
+            assertThat(onDisk.getHash()).isEqualTo(fileInfo.getHash());
+            assertThat(bytes[location - 1]).isEqualTo((byte) '\n');
+        }
+    }
+}
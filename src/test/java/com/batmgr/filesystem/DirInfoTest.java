@@ -32,7 +32,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.security.NoSuchAlgorithmException;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -145,4 +147,60 @@ public class DirInfoTest {
         }
     }
 
+    @Test
+    public void test_views() throws IOException, InterruptedException, InvalidIndexException, NoSuchAlgorithmException {
+        String hash = "4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA";
+        Path testPath = testRoot.resolve("tst1");
+        cleanupDir(testPath);
+        Files.copy(testRoot.resolve("index-good.txt"), testPath.resolve(DirInfo.IDXFILE));
+        DirInfo dirInfo = new DirInfo(testPath);
+        Map<String, FileInfo> view = dirInfo.nameView();
+        assertThat(view).hasSize(3).containsKeys("abcd", "efgh");
+        assertThatThrownBy(() -> view.remove("abcd")).isInstanceOf(UnsupportedOperationException.class);
+        Files.copy(testRoot.resolve("sample.txt"), testPath.resolve("dup1.txt"));
+        Files.copy(testRoot.resolve("sample.txt"), testPath.resolve("dup2.txt"));
+        dirInfo.addIfNeeded(testPath.resolve("dup1.txt"));
+        dirInfo.addIfNeeded(testPath.resolve("dup2.txt"));
+        assertThat(view).containsKeys("dup1.txt", "dup2.txt"); // live view
+        assertThat(dirInfo.stream().count()).isEqualTo(5);
+        assertThat(dirInfo.getByHash(hash)).extracting(FileInfo::getName).containsExactlyInAnyOrder("dup1.txt", "dup2.txt");
+        assertThat(dirInfo.getByHash("not present")).isEmpty();
+        // the other file with the same hash is still found
+        dirInfo.removeFromIndex(view.get("dup1.txt"));
+        assertThat(dirInfo.isHashPresent(hash)).isTrue();
+        assertThat(dirInfo.getByHash(hash)).extracting(FileInfo::getName).containsExactly("dup2.txt");
+        assertThat(view).doesNotContainKey("dup1.txt");
+    }
+
+    @Test
+    public void test_compact() throws IOException, InterruptedException, InvalidIndexException {
+        Path testPath = testRoot.resolve("tst1");
+        cleanupDir(testPath);
+        DirInfo dirInfo = new DirInfo(testPath);
+        for (int i = 0; i < 3000; i++) {
+            dirInfo.appendToIndex(new FileInfo(String.format("file%04d", i), i, FileTime.fromMillis(0),
+                String.format("%064X", i), 0));
+        }
+        new LazyDirInfo(testPath); // writes the sorted index and the filter
+        for (int i = 0; i < 1000; i++) {
+            dirInfo.removeFromIndex(dirInfo.getFileInfo(String.format("file%04d", i)));
+        }
+        assertThat(dirInfo.compactIfNeeded()).isFalse();
+        for (int i = 1000; i < 2000; i++) {
+            dirInfo.removeFromIndex(dirInfo.getFileInfo(String.format("file%04d", i)));
+        }
+        long size = Files.size(testPath.resolve(DirInfo.IDXFILE));
+        assertThat(dirInfo.compactIfNeeded()).isTrue();
+        assertThat(Files.size(testPath.resolve(DirInfo.IDXFILE))).isLessThan(size / 2);
+        assertThat(testPath.resolve(LazyDirInfo.SORTED_FILE)).doesNotExist();
+        assertThat(testPath.resolve(LazyDirInfo.FILTER_FILE)).doesNotExist();
+        // the locations follow the new index
+        dirInfo.removeFromIndex(dirInfo.getFileInfo("file2000"));
+        dirInfo.appendToIndex(new FileInfo("new", 1, FileTime.fromMillis(0), String.format("%064X", 1), 0));
+        for (IndexStore index : new IndexStore[] { new DirInfo(testPath), new LazyDirInfo(testPath) }) {
+            assertThat(index.getNameIndex()).hasSize(1000).containsKey("new").doesNotContainKey("file2000");
+            assertThat(index.getFileInfo("file2999").getSize()).isEqualTo(2999);
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DiskOrderTest {
+
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testPath = Paths.get(resource.toURI()).resolve("..").normalize().resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath);
+    }
+    
+    @Test
+    public void test_inodeOrder() throws IOException {
+        assumeTrue(testPath.getFileSystem().supportedFileAttributeViews().contains("unix"));
+        for (int i = 0; i < 20; i++) {
+            Files.write(testPath.resolve(String.format("f%02d", i)), new byte[] { (byte) i });
+        }
+        List<Path> ordered = DiskOrder.list(testPath, true);
+        assertThat(ordered).hasSize(20);
+        List<Long> inodes = new ArrayList<>();
+        for (Path p : ordered) {
+            Object ino = Files.getAttribute(p, "unix:ino");
+            inodes.add(((Number) ino).longValue());
+        }
+        assertThat(inodes).isSorted();
+        assertThat(DiskOrder.list(testPath, false)).containsExactlyInAnyOrderElementsOf(ordered);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class FanOutSynchronizeTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectory(testPath);
+    }
+    
+    @Test
+    public void test_synchronizeTwoTargets() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Path dst1 = testPath.resolve("dst1");
+        Path dst2 = testPath.resolve("dst2");
+        Files.createDirectories(src.resolve("sub"));
+        Files.createDirectories(dst2);
+        byte[] big = new byte[5 * 0x100000 + 123]; // several chunks
+        new Random(1).nextBytes(big);
+        Files.write(src.resolve("sub/big.bin"), big);
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("sample.txt"));
+        Files.copy(testRoot.resolve("sample.txt"), dst2.resolve("sample.txt")); // already there
+        Files.write(dst2.resolve("other.txt"), new byte[10]);
+        FanOutSynchronize.synchronize(src, List.of(dst1, dst2), new SyncOptions().setScrape(true));
+        for (Path dst : List.of(dst1, dst2)) {
+            assertThat(Files.readAllBytes(dst.resolve("sub/big.bin"))).isEqualTo(big);
+            assertThat(new DirInfo(dst).isHashPresent("4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA")).isTrue();
+            assertThat(new DirInfo(dst.resolve("sub")).getNameIndex().get("big.bin").getHash())
+                .isEqualTo(new FileChecker().computeSha256(src.resolve("sub/big.bin")));
+        }
+        assertThat(Files.exists(dst2.resolve("other.txt"))).isFalse();
+    }
+    
+    @Test
+    public void test_progressWithoutVerify() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Files.createDirectories(src.resolve("sub"));
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("sample.txt"));
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("sub/sample.txt"));
+        List<ProgressReport> reports = new CopyOnWriteArrayList<>();
+        SyncOptions options = SyncOptions.parse(new String[] { "no-verify" }, 0).setProgressListener(reports::add);
+        assertThat(options.isVerify()).isFalse();
+        List<Path> dsts = List.of(testPath.resolve("dst1"), testPath.resolve("dst2"));
+        FanOutSynchronize.synchronize(src, dsts, options);
+        ProgressReport last = reports.get(reports.size() - 1);
+        assertThat(last.isFinished()).isTrue();
+        assertThat(last.getFilesDone()).isEqualTo(2);
+        assertThat(last.getDirsDone()).isEqualTo(last.getDirsFound()).isEqualTo(2);
+        for (Path dst : dsts) {
+            assertThat(new DirInfo(dst.resolve("sub")).getFileInfo("sample.txt").getHash())
+                .isEqualTo("4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA");
+        }
+    }
+    
+    @Test
+    public void test_lazyTargets() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Files.createDirectories(src.resolve("sub"));
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("sub/sample.txt"));
+        List<Path> dsts = List.of(testPath.resolve("dst1"), testPath.resolve("dst2"));
+        FanOutSynchronize.synchronize(src, dsts, new SyncOptions().setLazyIndex(true));
+        for (Path dst : dsts) {
+            assertThat(dst.resolve("sub").resolve(LazyDirInfo.SORTED_FILE)).exists();
+            assertThat(new LazyDirInfo(dst.resolve("sub")).getFileInfo("sample.txt").getHash())
+                .isEqualTo("4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA");
+        }
+    }
+    
+    @Test
+    public void test_slowTarget() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Files.createDirectories(src);
+        byte[] big = new byte[24 * 0x100000]; // more than the queue of a target
+        new Random(2).nextBytes(big);
+        Files.write(src.resolve("big.bin"), big);
+        List<RateLimiter> limiters = Arrays.asList(null, new RateLimiter(12 * 0x100000));
+        SyncOptions options = new SyncOptions().setVerify(false);
+        // backpressure only, the lag is shorter than the delay
+        long detached = Metrics.getDefault().getTargetsDetached();
+        List<Path> dsts = List.of(testPath.resolve("fast1"), testPath.resolve("slow1"));
+        FanOutSynchronize.synchronize(src, dsts, options, limiters, 60000);
+        assertThat(Metrics.getDefault().getTargetsDetached()).isEqualTo(detached);
+        for (Path dst : dsts) {
+            assertThat(Files.readAllBytes(dst.resolve("big.bin"))).isEqualTo(big);
+        }
+        // the slow target lags longer than the delay, it reads the end of the file itself
+        dsts = List.of(testPath.resolve("fast2"), testPath.resolve("slow2"));
+        FanOutSynchronize.synchronize(src, dsts, options, limiters, 200);
+        assertThat(Metrics.getDefault().getTargetsDetached()).isEqualTo(detached + 1);
+        for (Path dst : dsts) {
+            assertThat(Files.readAllBytes(dst.resolve("big.bin"))).isEqualTo(big);
+            assertThat(new DirInfo(dst).getFileInfo("big.bin").getHash())
+                .isEqualTo(new FileChecker().computeSha256(src.resolve("big.bin")));
+        }
+    }
+}
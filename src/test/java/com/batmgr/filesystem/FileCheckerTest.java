@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class FileCheckerTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath);
+    }
+    
+    @Test
+    public void test_directSameHash() throws IOException, NoSuchAlgorithmException {
+        assertThat(new FileChecker(null, true).computeSha256(testRoot.resolve("sample.txt")))
+            .isEqualTo("4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA");
+        byte[] data = new byte[5 * 0x100000 + 1234]; // several buffers and a partial block
+        new Random(42).nextBytes(data);
+        Path large = testPath.resolve("large.bin");
+        Files.write(large, data);
+        assertThat(new FileChecker(null, true).computeSha256(large))
+            .isEqualTo(new FileChecker(null, false).computeSha256(large));
+        Path empty = Files.createFile(testPath.resolve("empty.bin"));
+        assertThat(new FileChecker(null, true).computeSha256(empty))
+            .isEqualTo("E3B0C44298FC1C149AFBF4C8996FB92427AE41E4649B934CA495991B7852B855");
+    }
+    
+    @Test
+    public void test_bufferSize() throws IOException, NoSuchAlgorithmException {
+        byte[] data = new byte[100000];
+        new Random(7).nextBytes(data);
+        Path file = testPath.resolve("data.bin");
+        Files.write(file, data);
+        String expected = new FileChecker().computeSha256(file);
+        // 1000 is not a multiple of the block size, direct reads round it up
+        assertThat(new FileChecker(null, false, 1000).computeSha256(file)).isEqualTo(expected);
+        assertThat(new FileChecker(null, true, 1000).computeSha256(file)).isEqualTo(expected);
+    }
+    
+    @Test
+    public void test_throttledHashReleasesDevice() throws Exception {
+        byte[] data = new byte[64 * 1024];
+        new Random(3).nextBytes(data);
+        Path file = testPath.resolve("slow.bin");
+        Files.write(file, data);
+        String expected = new FileChecker().computeSha256(file);
+        // 32 KiB per second and per read: the hash waits about 2 s for the limiter
+        FileChecker checker = new FileChecker(new RateLimiter(32 * 1024), false, 32 * 1024);
+        CompletableFuture<String> hash = CompletableFuture.supplyAsync(() -> {
+            try {
+                return checker.computeSha256(file);
+            } catch (IOException | NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(300);
+        int concurrency = IoScheduler.getDefault().getConcurrency(file);
+        CountDownLatch acquired = new CountDownLatch(concurrency);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService others = Executors.newFixedThreadPool(concurrency);
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                others.submit(() -> {
+                    try (IoScheduler.Permit permit = IoScheduler.getDefault().acquire(file)) {
+                        acquired.countDown();
+                        release.await();
+                    }
+                    return null;
+                });
+            }
+            // every permit of the device is free while the hash is throttled
+            assertThat(acquired.await(500, TimeUnit.MILLISECONDS)).isTrue();
+        } finally {
+            release.countDown();
+            others.shutdown();
+        }
+        assertThat(hash.get(10, TimeUnit.SECONDS)).isEqualTo(expected);
+    }
+}
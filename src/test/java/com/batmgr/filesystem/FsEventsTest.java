@@ -0,0 +1,102 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class FsEventsTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath.resolve("a"));
+    }
+    
+    @Test
+    public void test_recording() throws IOException, ParseException, NoSuchAlgorithmException, InvalidIndexException {
+        Files.copy(testRoot.resolve("sample.txt"), testPath.resolve("a/smpl.txt"));
+        Configuration profile;
+        try (Reader reader = new InputStreamReader(getClass().getResourceAsStream("/batmgr.jfc"),
+            StandardCharsets.UTF_8)) {
+            profile = Configuration.create(reader);
+        }
+        Path dump = testPath.resolve("run.jfr");
+        try (Recording recording = new Recording(profile)) {
+            // record everything, whatever the duration
+            for (String event : new String[] { "Hash", "IndexRead", "IndexWrite", "DirectoryList", "FolderIndex",
+                "Copy" }) {
+                recording.enable("com.batmgr.filesystem." + event).withThreshold(null);
+            }
+            recording.start();
+            new DirChecker().indexFolder(testPath.resolve("a"));
+            Synchronize.synchronize(testPath.resolve("a"), testPath.resolve("b"), false);
+            recording.stop();
+            recording.dump(dump);
+        }
+        List<String> names = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+            String name = event.getEventType().getName();
+            names.add(name);
+            if (name.equals("com.batmgr.filesystem.Hash")) {
+                assertThat(event.getLong("bytes")).isEqualTo(Files.size(testRoot.resolve("sample.txt")));
+                assertThat(event.getString("path")).endsWith("smpl.txt");
+            }
+        }
+        assertThat(names).contains("com.batmgr.filesystem.Hash", "com.batmgr.filesystem.IndexRead",
+            "com.batmgr.filesystem.IndexWrite", "com.batmgr.filesystem.DirectoryList",
+            "com.batmgr.filesystem.FolderIndex", "com.batmgr.filesystem.Copy");
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class HashCacheTest {
+
+    private static final String SAMPLE_HASH = "4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA";
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath.resolve("a"));
+        Files.createDirectories(testPath.resolve("b"));
+    }
+    
+    @Test
+    public void test_moveIsNotHashedAgain() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path original = testPath.resolve("a/smpl.txt");
+        Files.copy(testRoot.resolve("sample.txt"), original);
+        HashCache cache = new HashCache(testPath.resolve("cache"), 10);
+        DirChecker checker = new DirChecker();
+        checker.setHashCache(cache);
+        checker.indexFolder(testPath.resolve("a"));
+        assertThat(cache.getMisses()).isEqualTo(1);
+        Files.move(original, testPath.resolve("b/moved.txt"));
+        checker.indexFolder(testPath.resolve("b"));
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(new DirInfo(testPath.resolve("b")).getFileInfo("moved.txt").getHash()).isEqualTo(SAMPLE_HASH);
+    }
+
+    @Test
+    public void test_saveAndEvict() throws IOException {
+        Path first = testPath.resolve("a/smpl.txt");
+        Path second = testPath.resolve("b/smpl.txt");
+        Files.copy(testRoot.resolve("sample.txt"), first);
+        Files.copy(testRoot.resolve("sample.txt"), second);
+        BasicFileAttributes firstAttrs = Files.readAttributes(first, BasicFileAttributes.class);
+        BasicFileAttributes secondAttrs = Files.readAttributes(second, BasicFileAttributes.class);
+        HashCache cache = new HashCache(testPath.resolve("cache"), 1);
+        cache.put(firstAttrs, SAMPLE_HASH);
+        cache.put(secondAttrs, SAMPLE_HASH); // evicts first
+        cache.save();
+        cache = new HashCache(testPath.resolve("cache"), 1);
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.get(firstAttrs)).isNull();
+        assertThat(cache.get(secondAttrs)).isEqualTo(SAMPLE_HASH);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class HashFilterTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath);
+    }
+    
+    private static String randomHash(Random random)
+    {
+        return String.format("%016X%016X%016X%016X", random.nextLong(), random.nextLong(), random.nextLong(),
+            random.nextLong());
+    }
+    
+    @Test
+    public void test_falsePositives() {
+        Random random = new Random(42);
+        HashFilter filter = new HashFilter(5000);
+        String[] added = new String[5000];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = randomHash(random);
+            filter.add(added[i]);
+        }
+        for (String hash : added) {
+            assertThat(filter.mightContain(hash)).isTrue();
+        }
+        int positives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(randomHash(random))) {
+                positives++;
+            }
+        }
+        assertThat(positives).isLessThan(100);
+        assertThat(filter.isFull()).isFalse();
+    }
+    
+    @Test
+    public void test_saveAndLoad() throws IOException {
+        Path file = testPath.resolve("filter");
+        HashFilter filter = new HashFilter(10);
+        filter.add("AB");
+        filter.setCovered(123);
+        HashFilter mapped = filter.save(file, testPath.resolve("filter.tmp"));
+        mapped.add("CD"); // written through
+        HashFilter loaded = HashFilter.load(file);
+        assertThat(loaded.getCovered()).isEqualTo(123);
+        assertThat(loaded.getCount()).isEqualTo(2);
+        assertThat(loaded.mightContain("AB")).isTrue();
+        assertThat(loaded.mightContain("CD")).isTrue();
+        assertThat(HashFilter.load(testPath.resolve("missing"))).isNull();
+    }
+    
+    @Test
+    public void test_lazyDirInfo() throws IOException, InvalidIndexException {
+        Random random = new Random(1);
+        String first = randomHash(random);
+        String second = randomHash(random);
+        String third = randomHash(random);
+        LazyDirInfo lazy = new LazyDirInfo(testPath);
+        assertThat(testPath.resolve(LazyDirInfo.FILTER_FILE)).exists();
+        lazy.appendToIndex(new FileInfo("first", 1, FileTime.fromMillis(0), first, 0));
+        // another writer appends between two appends of the lazy index
+        new DirInfo(testPath).appendToIndex(new FileInfo("second", 2, FileTime.fromMillis(0), second, 0));
+        lazy.appendToIndex(new FileInfo("third", 3, FileTime.fromMillis(0), third, 0));
+        assertThat(lazy.isHashPresent(first)).isTrue();
+        assertThat(lazy.isHashPresent(second)).isFalse(); // not seen by this instance
+        lazy = new LazyDirInfo(testPath);
+        assertThat(lazy.isHashPresent(first)).isTrue();
+        assertThat(lazy.isHashPresent(second)).isTrue();
+        assertThat(lazy.isHashPresent(third)).isTrue();
+        assertThat(lazy.isHashPresent(randomHash(random))).isFalse();
+    }
+    
+    @Test
+    public void test_shardedStore() throws IOException, InvalidIndexException, NoSuchAlgorithmException {
+        Path store = testPath.resolve("store");
+        String hash = new FileChecker().computeSha256(testRoot.resolve("sample.txt"));
+        ShardedStore sharded = new ShardedStore(store);
+        assertThat(store.resolve(ShardedStore.FILTER)).exists();
+        assertThat(sharded.contains(hash)).isFalse();
+        assertThat(Files.exists(sharded.shardDir(hash))).isFalse(); // answered by the filter
+        sharded.store(testRoot.resolve("sample.txt"), new FileInfo("sample.txt", 0, FileTime.fromMillis(0), hash, 0));
+        assertThat(sharded.contains(hash)).isTrue();
+        assertThat(new ShardedStore(store).contains(hash)).isTrue();
+        // built again from the shards
+        Files.delete(store.resolve(ShardedStore.FILTER));
+        assertThat(new ShardedStore(store).contains(hash)).isTrue();
+    }
+    
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class HotSpotProfilerTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath);
+    }
+    
+    @AfterEach
+    public void tearDown() {
+        HotSpotProfiler.getDefault().setTop(0);
+        HotSpotProfiler.getDefault().reset();
+    }
+    
+    @Test
+    public void test_parseOption() {
+        assertThat(HotSpotProfiler.parseOption("profile")).isEqualTo(HotSpotProfiler.DEFAULT_TOP);
+        assertThat(HotSpotProfiler.parseOption("profile=5")).isEqualTo(5);
+        assertThat(HotSpotProfiler.parseOption("xattr")).isEqualTo(0);
+    }
+    
+    @Test
+    public void test_ranking() {
+        HotSpotProfiler profiler = new HotSpotProfiler(2);
+        long start = System.nanoTime();
+        profiler.recordFile(testPath.resolve("a/fast.txt"), 10, start - 1_000_000);
+        profiler.recordFile(testPath.resolve("b/slow.txt"), 20, start - 3_000_000_000L);
+        profiler.recordFile(testPath.resolve("b/medium.txt"), 30, start - 2_000_000_000L);
+        profiler.record(testPath.resolve("a"), HotSpotProfiler.Phase.LIST, start - 1_000_000);
+        String report = profiler.report();
+        assertThat(report).contains("Slowest 2 of 2 directories", "Slowest 2 files");
+        assertThat(report.indexOf("slow.txt")).isLessThan(report.indexOf("medium.txt"));
+        assertThat(report).doesNotContain("fast.txt");
+        assertThat(report.indexOf(testPath.resolve("b").toString()))
+            .isLessThan(report.indexOf(testPath.resolve("a").toString()));
+    }
+    
+    @Test
+    public void test_disabled() {
+        HotSpotProfiler profiler = new HotSpotProfiler(0);
+        assertThat(profiler.start()).isEqualTo(0);
+        profiler.recordFile(testPath.resolve("smpl.txt"), 10, profiler.start());
+        assertThat(profiler.report()).contains("Slowest 0 of 0 directories", "Slowest 0 files");
+    }
+    
+    @Test
+    public void test_indexTree() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Files.createDirectories(testPath.resolve("a"));
+        Files.copy(testRoot.resolve("sample.txt"), testPath.resolve("a").resolve("smpl.txt"));
+        HotSpotProfiler.getDefault().setTop(HotSpotProfiler.DEFAULT_TOP);
+        new DirChecker().indexTree(testPath);
+        String report = HotSpotProfiler.getDefault().report();
+        assertThat(report).contains("Slowest 2 of 2 directories", "Slowest 1 files", "load_index");
+        assertThat(report).contains(testPath.resolve("a").resolve("smpl.txt").toString());
+    }
+    
+}
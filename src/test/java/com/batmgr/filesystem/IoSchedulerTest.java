@@ -0,0 +1,86 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class IoSchedulerTest {
+
+    private Path   testRoot;
+    
+    private String property;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        property = "batmgr.io.store." + Files.getFileStore(testRoot).name();
+        System.setProperty(property, "1");
+    }
+    
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty(property);
+    }
+    
+    @Test
+    public void test_onePermitPerDevice() throws Exception {
+        IoScheduler scheduler = new IoScheduler(false);
+        Path sample = testRoot.resolve("sample.txt");
+        CompletableFuture<Void> other;
+        try (IoScheduler.Permit permit = scheduler.acquire(sample);
+            IoScheduler.Permit reentrant = scheduler.acquire(sample, testRoot.resolve("missing/copy.txt"))) {
+            other = CompletableFuture.runAsync(() -> {
+                try (IoScheduler.Permit otherPermit = scheduler.acquire(sample)) {
+                    // waits for the first permit
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            try {
+                other.get(200, TimeUnit.MILLISECONDS);
+                fail("second reader not blocked");
+            } catch (TimeoutException e) {
+                // expected
+            }
+        }
+        other.get(5, TimeUnit.SECONDS);
+        assertThat(other.isDone()).isTrue();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class LazyDirInfoTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath);
+    }
+    
+    /**
+     * Append entries file0000 to file(n-1), with n / 2 distinct hashes
+     */
+    private void writeIndex(int n) throws IOException, InvalidIndexException
+    {
+        new DirInfo(testPath); // writes the signature
+        try (Writer writer = Files.newBufferedWriter(testPath.resolve(DirInfo.IDXFILE),
+            Charset.forName(DirInfo.IDXCHARSET), StandardOpenOption.APPEND)) {
+            for (int i = 0; i < n; i++) {
+                FileInfo fileInfo = new FileInfo(String.format("file%04d", i), i, FileTime.fromMillis(0),
+                    String.format("%064X", i / 2), 0);
+                writer.write(String.format("%s\r\n", fileInfo));
+            }
+        }
+    }
+    
+    @Test
+    public void test_sameAsDirInfo() throws IOException, InvalidIndexException {
+        Files.copy(testRoot.resolve("index-good.txt"), testPath.resolve(DirInfo.IDXFILE));
+        DirInfo eager = new DirInfo(testPath);
+        LazyDirInfo lazy = new LazyDirInfo(testPath);
+        assertThat(testPath.resolve(LazyDirInfo.SORTED_FILE)).exists();
+        assertThat(lazy.getNameIndex().keySet()).isEqualTo(eager.getNameIndex().keySet());
+        for (FileInfo fileInfo : eager.getFiles()) {
+            assertThat(lazy.getFileInfo(fileInfo.getName()).toString()).isEqualTo(fileInfo.toString());
+            assertThat(lazy.getByHash(fileInfo.getHash())).hasSize(eager.getByHash(fileInfo.getHash()).size());
+        }
+        assertThat(lazy.getFileInfo("not present")).isNull();
+        assertThat(lazy.isHashPresent("not present")).isFalse();
+    }
+    
+    @Test
+    public void test_lookupsAndChanges() throws IOException, InvalidIndexException, NoSuchAlgorithmException {
+        writeIndex(3000);
+        LazyDirInfo lazy = new LazyDirInfo(testPath);
+        Object sidecar = Files.readAttributes(testPath.resolve(LazyDirInfo.SORTED_FILE), BasicFileAttributes.class).fileKey();
+        assertThat(lazy.stream().count()).isEqualTo(3000);
+        assertThat(lazy.getFileInfo("file1234").getSize()).isEqualTo(1234);
+        assertThat(lazy.getByHash(String.format("%064X", 617))).extracting(FileInfo::getName)
+            .containsExactlyInAnyOrder("file1234", "file1235");
+        // changes are seen at once and after opening again
+        lazy.removeFromIndex(lazy.getFileInfo("file1234"));
+        lazy.removeFromIndex(lazy.getFileInfo("file0001"));
+        Files.copy(testRoot.resolve("sample.txt"), testPath.resolve("new.txt"));
+        lazy.addIfNeeded(testPath.resolve("new.txt"));
+        for (LazyDirInfo index : new LazyDirInfo[] { lazy, new LazyDirInfo(testPath) }) {
+            assertThat(index.getFileInfo("file1234")).isNull();
+            assertThat(index.getByHash(String.format("%064X", 617))).extracting(FileInfo::getName)
+                .containsExactly("file1235");
+            assertThat(index.getFileInfo("new.txt")).isNotNull();
+            assertThat(index.stream().count()).isEqualTo(2999);
+        }
+        // the flags changed in place do not invalidate the sidecar
+        assertThat(Files.readAttributes(testPath.resolve(LazyDirInfo.SORTED_FILE), BasicFileAttributes.class).fileKey())
+            .isEqualTo(sidecar);
+        Map<String, FileInfo> view = lazy.nameView();
+        assertThat(view).hasSize(2999).containsKey("new.txt").doesNotContainKey("file1234");
+        assertThatThrownBy(() -> view.remove("new.txt")).isInstanceOf(UnsupportedOperationException.class);
+        // the index written by DirInfo agrees
+        DirInfo eager = new DirInfo(testPath);
+        assertThat(eager.getNameIndex().keySet()).isEqualTo(lazy.getNameIndex().keySet());
+        eager.removeFromIndex(eager.getFileInfo("new.txt"));
+        assertThat(new LazyDirInfo(testPath).getFileInfo("new.txt")).isNull();
+    }
+    
+    @Test
+    public void test_sidecarRebuilt() throws IOException, InvalidIndexException {
+        writeIndex(10);
+        new LazyDirInfo(testPath);
+        // the index is replaced by a smaller one
+        Files.delete(testPath.resolve(DirInfo.IDXFILE));
+        writeIndex(4);
+        LazyDirInfo lazy = new LazyDirInfo(testPath);
+        assertThat(lazy.getNameIndex()).hasSize(4);
+        assertThat(lazy.getFileInfo("file0005")).isNull();
+        // many entries appended since the sidecar
+        Files.delete(testPath.resolve(DirInfo.IDXFILE));
+        writeIndex(3000);
+        assertThat(new LazyDirInfo(testPath).stream().count()).isEqualTo(3000);
+        assertThat(DirInfo.isReservedName(LazyDirInfo.SORTED_FILE)).isTrue();
+    }
+    
+    @Test
+    public void test_removeAfterCompaction() throws IOException, InvalidIndexException {
+        writeIndex(3000);
+        LazyDirInfo lazy = new LazyDirInfo(testPath);
+        FileInfo kept = lazy.getFileInfo("file2990");
+        // another instance removes most entries and compacts, the offsets change
+        DirInfo eager = new DirInfo(testPath);
+        eager.removeFromIndex(eager.stream().filter(fi -> fi.getSize() < 2980).toList());
+        assertThat(eager.compactIfNeeded()).isTrue();
+        lazy.removeFromIndex(kept);
+        assertThat(lazy.getFileInfo("file2990")).isNull();
+        // the flag was written on the right entry
+        DirInfo reloaded = new DirInfo(testPath);
+        assertThat(reloaded.getFileInfo("file2990")).isNull();
+        assertThat(reloaded.getNameIndex()).hasSize(19);
+        assertThat(new LazyDirInfo(testPath).stream().count()).isEqualTo(19);
+    }
+    
+    @Test
+    public void test_lineBeingAppended() throws IOException, InvalidIndexException {
+        writeIndex(10);
+        Path indexFile = testPath.resolve(DirInfo.IDXFILE);
+        byte[] line = String.format("%s\r\n", new FileInfo("file0010", 10, FileTime.fromMillis(0),
+            String.format("%064X", 4), 0)).getBytes(DirInfo.IDXCHARSET);
+        // another writer has written half of its line
+        Files.write(indexFile, Arrays.copyOf(line, 40), StandardOpenOption.APPEND);
+        LazyDirInfo lazy = new LazyDirInfo(testPath);
+        assertThat(lazy.stream().count()).isEqualTo(10);
+        assertThat(lazy.getFileInfo("file0010")).isNull();
+        Files.write(indexFile, Arrays.copyOfRange(line, 40, line.length), StandardOpenOption.APPEND);
+        lazy = new LazyDirInfo(testPath);
+        assertThat(lazy.getFileInfo("file0010").getSize()).isEqualTo(10);
+        assertThat(lazy.getByHash(String.format("%064X", 4))).hasSize(3);
+        // two live entries with the same name are still refused
+        Files.delete(testPath.resolve(LazyDirInfo.SORTED_FILE));
+        Files.write(indexFile, line, StandardOpenOption.APPEND);
+        assertThatThrownBy(() -> new LazyDirInfo(testPath)).isInstanceOf(InvalidIndexException.class);
+    }
+    
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class LiveMirrorTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath.resolve("src"));
+    }
+    
+    private boolean waitFor(Path p, boolean exists) throws InterruptedException
+    {
+        for (int i = 0; i < 100; i++) {
+            if (Files.exists(p) == exists) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+    
+    @Test
+    public void test_propagateChanges() throws IOException, InterruptedException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Path dst = testPath.resolve("dst");
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("initial.txt"));
+        SyncOptions options = new SyncOptions();
+        LiveMirror mirror = new LiveMirror(src, dst, options);
+        assertThat(options.isScrape()).isFalse(); // the options of the caller are left as they are
+        Thread thread = new Thread(() -> {
+            try {
+                mirror.run(200, 2000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        try {
+            assertThat(waitFor(dst.resolve("initial.txt"), true)).isTrue();
+            Files.createDirectories(src.resolve("new/deep"));
+            Files.copy(testRoot.resolve("sample.txt"), src.resolve("new/deep/created.txt"));
+            assertThat(waitFor(dst.resolve("new/deep/created.txt"), true)).isTrue();
+            Object copy = Files.readAttributes(dst.resolve("initial.txt"), BasicFileAttributes.class).fileKey();
+            Files.move(src.resolve("initial.txt"), src.resolve("renamed.txt"));
+            assertThat(waitFor(dst.resolve("renamed.txt"), true)).isTrue();
+            assertThat(waitFor(dst.resolve("initial.txt"), false)).isTrue();
+            // the copy was moved, not copied again
+            assertThat(Files.readAttributes(dst.resolve("renamed.txt"), BasicFileAttributes.class).fileKey()).isEqualTo(copy);
+            assertThat(new DirInfo(dst).getFileInfo("renamed.txt").getHash())
+                .isEqualTo("4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA");
+            // a renamed directory is moved too
+            copy = Files.readAttributes(dst.resolve("new/deep/created.txt"), BasicFileAttributes.class).fileKey();
+            Files.move(src.resolve("new"), src.resolve("moved"));
+            assertThat(waitFor(dst.resolve("moved/deep/created.txt"), true)).isTrue();
+            assertThat(waitFor(dst.resolve("new"), false)).isTrue();
+            assertThat(Files.readAttributes(dst.resolve("moved/deep/created.txt"), BasicFileAttributes.class).fileKey())
+                .isEqualTo(copy);
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+}
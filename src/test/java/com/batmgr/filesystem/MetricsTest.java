@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath);
+        Metrics.getDefault().reset();
+    }
+    
+    @Test
+    public void test_indexCounters() throws IOException, NoSuchAlgorithmException, InvalidIndexException, JMException {
+        Path sample = testPath.resolve("smpl.txt");
+        Files.copy(testRoot.resolve("sample.txt"), sample);
+        Files.copy(testRoot.resolve("sample.txt"), testPath.resolve("copy.txt"));
+        DirChecker checker = new DirChecker();
+        checker.indexFolder(testPath);
+        checker.indexFolder(testPath); // fast path
+        Files.setLastModifiedTime(sample, FileTime.fromMillis(Files.getLastModifiedTime(sample).toMillis() - 10000));
+        checker.indexFolder(testPath); // rehash
+        Metrics metrics = Metrics.getDefault();
+        assertThat(metrics.getFilesSeen()).isEqualTo(6);
+        assertThat(metrics.getFastPathHits()).isEqualTo(3);
+        assertThat(metrics.getRehashes()).isEqualTo(3);
+        assertThat(metrics.getFilesHashed()).isEqualTo(3);
+        assertThat(metrics.getBytesHashed()).isEqualTo(3 * Files.size(sample));
+        assertThat(metrics.getIndexLinesWritten()).isEqualTo(3);
+        assertThat(metrics.getTombstonesWritten()).isEqualTo(1);
+        assertThat(metrics.getIndexLinesParsed()).isEqualTo(4); // 2 lines read by the 2nd and 3rd passes
+        assertThat(metrics.getSummary()).contains("\"fastPathRatio\": 0.5000");
+        Object seen = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(Metrics.OBJECT_NAME),
+            "FilesSeen");
+        assertThat(seen).isEqualTo(Long.valueOf(6));
+    }
+    
+    @Test
+    public void test_summaryIsJsonInAnyLocale() {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.FRANCE);
+            Metrics.getDefault().fileSeen(true);
+            Metrics.getDefault().fileSeen(false);
+            assertThat(Metrics.getDefault().getSummary()).contains("\"fastPathRatio\": 0.5000");
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+    
+    @Test
+    public void test_histogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000); // 1 us, in the bucket below 2 us
+        }
+        histogram.record(5_000_000); // 5 ms
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getPercentileMicros(0.5)).isEqualTo(2);
+        assertThat(histogram.getPercentileMicros(0.99)).isEqualTo(2);
+        assertThat(histogram.getPercentileMicros(1)).isEqualTo(5000);
+        assertThat(histogram.getMaxMicros()).isEqualTo(5000);
+    }
+}
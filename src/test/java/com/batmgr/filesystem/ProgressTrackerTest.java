@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ProgressTrackerTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath);
+    }
+    
+    @Test
+    public void test_estimate() {
+        ProgressReport report = new ProgressReport("test", 10, 1000, 1, 4, 2000, false);
+        assertThat(report.getEstimatedFiles()).isEqualTo(40);
+        assertThat(report.getEstimatedBytes()).isEqualTo(4000);
+        assertThat(report.getBytesPerSecond()).isEqualTo(500);
+        assertThat(report.getEtaMillis()).isEqualTo(6000);
+        assertThat(report.getFraction()).isEqualTo(0.25);
+        report = new ProgressReport("test", 10, 1000, 0, 4, 2000, false);
+        assertThat(report.getEstimatedBytes()).isEqualTo(-1);
+        assertThat(report.getEtaMillis()).isEqualTo(-1);
+    }
+    
+    @Test
+    public void test_indexTreeAndSynchronize() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        for (String dir : new String[] { "a", "a/b", "c" }) {
+            Files.createDirectories(src.resolve(dir));
+            Files.copy(testRoot.resolve("sample.txt"), src.resolve(dir).resolve("smpl.txt"));
+        }
+        long size = Files.size(testRoot.resolve("sample.txt"));
+        List<ProgressReport> reports = new CopyOnWriteArrayList<>();
+        DirChecker checker = new DirChecker();
+        checker.setProgressListener(reports::add);
+        checker.indexTree(src);
+        ProgressReport last = reports.get(reports.size() - 1);
+        assertThat(last.isFinished()).isTrue();
+        assertThat(last.getOperation()).isEqualTo("index");
+        assertThat(last.getFilesDone()).isEqualTo(3);
+        assertThat(last.getBytesDone()).isEqualTo(3 * size);
+        assertThat(last.getDirsDone()).isEqualTo(4);
+        assertThat(last.getDirsFound()).isEqualTo(4);
+        reports.clear();
+        Synchronize.synchronize(src, testPath.resolve("dst"), new SyncOptions().setProgressListener(reports::add));
+        last = reports.get(reports.size() - 1);
+        assertThat(last.getOperation()).isEqualTo("synchronize");
+        assertThat(last.getFilesDone()).isEqualTo(3);
+        assertThat(last.getDirsDone()).isEqualTo(4);
+    }
+    
+    @Test
+    public void test_periodicReports() {
+        List<ProgressReport> reports = new CopyOnWriteArrayList<>();
+        ProgressTracker tracker = new ProgressTracker("test", reports::add, 0);
+        tracker.directoriesFound(2);
+        tracker.fileDone(100);
+        tracker.directoryDone();
+        tracker.finish();
+        assertThat(reports).isNotEmpty();
+        assertThat(reports.get(reports.size() - 1).isFinished()).isTrue();
+        assertThat(reports.get(reports.size() - 1).getEstimatedBytes()).isEqualTo(100);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class PullUniqueTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectory(testPath);
+    }
+    
+    /**
+     * 20 directories, each with a copy of sample.txt and a file "data.bin" with 5 different contents
+     */
+    private Path createSource() throws IOException
+    {
+        Path src = testPath.resolve("src");
+        for (int i = 0; i < 20; i++) {
+            Path dir = src.resolve(String.format("d%d/e%d", i % 4, i));
+            Files.createDirectories(dir);
+            Files.copy(testRoot.resolve("sample.txt"), dir.resolve("sample.txt"));
+            Files.write(dir.resolve("data.bin"), new byte[] { (byte) (i % 5) });
+        }
+        return src;
+    }
+    
+    private long countFiles(Path dir) throws IOException
+    {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> !DirInfo.isReservedName(p.getFileName().toString())).count();
+        }
+    }
+    
+    @Test
+    public void test_pullUnique() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = createSource();
+        Path dst = testPath.resolve("dst");
+        PullUnique.pullUnique(src, dst);
+        assertThat(countFiles(dst)).isEqualTo(6);
+        assertThat(new DirInfo(dst).getFiles()).hasSize(6);
+    }
+
+    @Test
+    public void test_pullUniqueParallel() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = createSource();
+        Path dst = testPath.resolve("dst");
+        PullUnique.pullUnique(src, dst, 4, 2);
+        assertThat(countFiles(dst)).isEqualTo(6);
+        DirInfo dstInfo = new DirInfo(dst);
+        assertThat(dstInfo.getFiles()).hasSize(6);
+        assertThat(dstInfo.getNameIndex()).containsKeys("sample.txt", "data.bin", "data.bin (4)");
+        PullUnique.pullUnique(src, dst, 4, 2); // nothing new
+        assertThat(countFiles(dst)).isEqualTo(6);
+    }
+
+    @Test
+    public void test_pullUniqueSharded() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = createSource();
+        Path dst = testPath.resolve("dst");
+        PullUnique.pullUnique(src, dst, new PullOptions().setSharded(true));
+        String hash = "4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA";
+        Path shard = dst.resolve("4F/13");
+        assertThat(Files.exists(shard.resolve(hash + ".txt"))).isTrue();
+        assertThat(new DirInfo(shard).isHashPresent(hash)).isTrue();
+        assertThat(Files.readAllLines(dst.resolve(ShardedStore.MANIFEST))).hasSize(6);
+        PullUnique.pullUnique(src, dst, new PullOptions().setScanThreads(4).setCopyThreads(2).setSharded(true)); // nothing new
+        assertThat(Files.readAllLines(dst.resolve(ShardedStore.MANIFEST))).hasSize(6);
+        assertThat(new ShardedStore(dst).contains(hash)).isTrue();
+    }
+
+    @Test
+    public void test_storedName() {
+        assertThat(ShardedStore.storedName("AB", "photo.jpg")).isEqualTo("AB.jpg");
+        assertThat(ShardedStore.storedName("AB", "README")).isEqualTo("AB");
+        assertThat(ShardedStore.storedName("AB", ".hidden")).isEqualTo("AB");
+        assertThat(ShardedStore.storedName("AB", "notes.a very long extension")).isEqualTo("AB");
+    }
+}
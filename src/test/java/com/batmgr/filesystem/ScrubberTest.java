@@ -0,0 +1,102 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ScrubberTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException, NoSuchAlgorithmException, InvalidIndexException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath.resolve("a"));
+        Files.createDirectories(testPath.resolve("b"));
+        Files.copy(testRoot.resolve("sample.txt"), testPath.resolve("smpl0.txt"));
+        Files.copy(testRoot.resolve("sample.txt"), testPath.resolve("a/smpl1.txt"));
+        Files.copy(testRoot.resolve("sample.txt"), testPath.resolve("b/smpl2.txt"));
+        new DirChecker().indexTree(testPath);
+    }
+    
+    /**
+     * Change one byte, keep size and last modification
+     */
+    private void corrupt(Path p) throws IOException
+    {
+        FileTime lastModif = Files.getLastModifiedTime(p);
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.WRITE)) {
+            fc.write(ByteBuffer.wrap(new byte[] { '#' }), 0);
+        }
+        Files.setLastModifiedTime(p, lastModif);
+    }
+    
+    @Test
+    public void test_corruptionReported() throws IOException, InvalidIndexException {
+        corrupt(testPath.resolve("b/smpl2.txt"));
+        Scrubber scrubber = new Scrubber(testPath, 2, new RateLimiter(0x100000));
+        assertThat(scrubber.run(Long.MAX_VALUE)).isTrue();
+        assertThat(scrubber.getCorrupted()).containsExactly(testPath.resolve("b/smpl2.txt"));
+    }
+
+    @Test
+    public void test_cursor() throws IOException, InvalidIndexException {
+        corrupt(testPath.resolve("smpl0.txt"));
+        corrupt(testPath.resolve("b/smpl2.txt"));
+        Scrubber scrubber = new Scrubber(testPath, 2, null);
+        assertThat(scrubber.run(0)).isFalse(); // root only
+        assertThat(scrubber.getCorrupted()).containsExactly(testPath.resolve("smpl0.txt"));
+        assertThat(Files.exists(testPath.resolve(Scrubber.CURSOR_FILE))).isTrue();
+        scrubber = new Scrubber(testPath, 2, null);
+        assertThat(scrubber.run(0)).isFalse(); // a
+        assertThat(scrubber.getCorrupted()).isEmpty();
+        scrubber = new Scrubber(testPath, 2, null);
+        assertThat(scrubber.run(0)).isTrue(); // b
+        assertThat(scrubber.getCorrupted()).containsExactly(testPath.resolve("b/smpl2.txt"));
+        assertThat(Files.exists(testPath.resolve(Scrubber.CURSOR_FILE))).isFalse();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SyncJournalTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath.resolve("src/a/b"));
+        Files.createDirectories(testPath.resolve("dst"));
+    }
+    
+    @Test
+    public void test_markDoneAndReload() throws IOException {
+        Path src = testPath.resolve("src");
+        SyncJournal journal = new SyncJournal(src, testPath.resolve("dst"));
+        journal.markDone(src.resolve("a/b"));
+        assertThat(journal.isDone(src.resolve("a/b"))).isTrue();
+        assertThat(journal.isDone(src.resolve("a"))).isFalse();
+        journal.markDone(src.resolve("a"));
+        journal = new SyncJournal(src, testPath.resolve("dst"));
+        assertThat(journal.isDone(src.resolve("a"))).isTrue();
+        assertThat(journal.isDone(src.resolve("a/b"))).isFalse(); // replaced by its parent
+        assertThat(Files.readAllLines(testPath.resolve("dst").resolve(SyncJournal.JOURNAL_FILE))).hasSize(3);
+    }
+
+    @Test
+    public void test_otherSourceIgnored() throws IOException {
+        Path src = testPath.resolve("src");
+        new SyncJournal(src, testPath.resolve("dst")).markDone(src.resolve("a"));
+        SyncJournal journal = new SyncJournal(src.resolve("a"), testPath.resolve("dst"));
+        assertThat(journal.isDone(src.resolve("a"))).isFalse();
+    }
+    
+    @Test
+    public void test_resumeSkipsDoneDirectories() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Path dst = testPath.resolve("dst");
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("a/sample1.txt"));
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("a/b/sample2.txt"));
+        new SyncJournal(src, dst).markDone(src.resolve("a"));
+        Synchronize.synchronize(src, dst, new SyncOptions().setResume(true));
+        assertThat(Files.exists(dst.resolve("a"))).isFalse();
+        assertThat(Files.exists(dst.resolve(SyncJournal.JOURNAL_FILE))).isFalse();
+        Synchronize.synchronize(src, dst, new SyncOptions().setResume(true));
+        assertThat(Files.exists(dst.resolve("a/b/sample2.txt"))).isTrue();
+        assertThat(new DirInfo(dst.resolve("a")).getNameIndex()).containsKey("sample1.txt");
+    }
+    
+    @Test
+    public void test_resumePartialCopy() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Path dst = testPath.resolve("dst");
+        byte[] big = new byte[(int) SyncJournal.RESUME_THRESHOLD + 1000];
+        new Random(3).nextBytes(big);
+        Path srcFile = src.resolve("a/big.bin");
+        Files.write(srcFile, big);
+        String hash = new FileChecker().computeSha256(srcFile);
+        FileInfo srcFileInfo = new FileInfo("big.bin", big.length, Files.getLastModifiedTime(srcFile), hash, 0);
+        Path part = SyncJournal.partPath(dst.resolve("a/big.bin"));
+        Files.createDirectories(part.getParent());
+        int offset = 10 * 0x100000;
+        // the interrupted run recorded the copy and wrote its beginning
+        assertThat(new SyncJournal(src, dst).startCopy(srcFile, part, srcFileInfo)).isZero();
+        Files.write(part, Arrays.copyOf(big, offset));
+        long copied = Metrics.getDefault().getBytesCopied();
+        long failures = Metrics.getDefault().getVerificationFailures();
+        Synchronize.synchronize(src, dst, new SyncOptions().setResume(true));
+        assertThat(Metrics.getDefault().getBytesCopied() - copied).isEqualTo(big.length - offset);
+        assertThat(Metrics.getDefault().getVerificationFailures()).isEqualTo(failures);
+        assertThat(Files.readAllBytes(dst.resolve("a/big.bin"))).isEqualTo(big);
+        assertThat(new DirInfo(dst.resolve("a")).getFileInfo("big.bin").getHash()).isEqualTo(hash);
+        assertThat(part).doesNotExist();
+        // a damaged beginning is detected by the hash of the copy, which is made again
+        FileUtils.deleteDirectory(dst.toFile());
+        Files.createDirectories(part.getParent());
+        assertThat(new SyncJournal(src, dst).startCopy(srcFile, part, srcFileInfo)).isZero();
+        byte[] damaged = Arrays.copyOf(big, offset);
+        damaged[1000] ^= 1;
+        Files.write(part, damaged);
+        copied = Metrics.getDefault().getBytesCopied();
+        Synchronize.synchronize(src, dst, new SyncOptions().setResume(true));
+        assertThat(Metrics.getDefault().getVerificationFailures()).isEqualTo(failures + 1);
+        assertThat(Metrics.getDefault().getBytesCopied() - copied).isEqualTo(2L * big.length - offset);
+        assertThat(Files.readAllBytes(dst.resolve("a/big.bin"))).isEqualTo(big);
+        assertThat(new DirInfo(dst.resolve("a")).getFileInfo("big.bin").getHash()).isEqualTo(hash);
+    }
+}
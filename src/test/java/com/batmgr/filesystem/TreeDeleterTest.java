@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TreeDeleterTest {
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectory(testPath);
+    }
+    
+    @Test
+    public void test_deleteTrees() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            Path dir = testPath.resolve(String.format("a/b%d/c", i));
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("f.bin"), new byte[100]);
+            Files.write(dir.resolve("../g.bin"), new byte[10]);
+        }
+        Files.write(testPath.resolve("h.bin"), new byte[1]);
+        Files.write(testPath.resolve("kept.bin"), new byte[1]);
+        try (TreeDeleter deleter = new TreeDeleter(3)) {
+            assertThat(deleter.delete(List.of(testPath.resolve("a"), testPath.resolve("h.bin")))).isEqualTo(0);
+            assertThat(deleter.getFiles()).isEqualTo(11);
+            assertThat(deleter.getBytes()).isEqualTo(551);
+        }
+        assertThat(Files.exists(testPath.resolve("a"))).isFalse();
+        assertThat(Files.exists(testPath.resolve("h.bin"))).isFalse();
+        assertThat(Files.exists(testPath.resolve("kept.bin"))).isTrue();
+    }
+
+    @Test
+    public void test_missingPathFails() {
+        try (TreeDeleter deleter = new TreeDeleter(1)) {
+            assertThat(deleter.delete(List.of(testPath.resolve("missing")))).isEqualTo(1);
+        }
+    }
+    
+    @Test
+    public void test_scrape() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Path dst = testPath.resolve("dst");
+        Files.createDirectories(src.resolve("kept"));
+        Files.createDirectories(dst.resolve("extra/deep"));
+        Files.copy(testRoot.resolve("sample.txt"), dst.resolve("extra/deep/sample.txt"));
+        Files.copy(testRoot.resolve("sample.txt"), dst.resolve("extra.txt"));
+        Synchronize.synchronize(src, dst, new SyncOptions().setScrape(true).setDeleteThreads(2));
+        assertThat(Files.exists(dst.resolve("extra"))).isFalse();
+        assertThat(Files.exists(dst.resolve("extra.txt"))).isFalse();
+        assertThat(Files.exists(dst.resolve("kept"))).isTrue();
+        assertThat(new DirInfo(dst).getNameIndex()).isEmpty();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 paqueloz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.batmgr.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class XattrIndexStoreTest {
+
+    private static final String SAMPLE_HASH = "4F13A4F6083341F66D39024D7B3765387EE1A3437414CECCC774238A62C65BBA";
+
+    private Path testRoot;
+    
+    private Path testPath;
+
+    @BeforeEach
+    public void setUp() throws URISyntaxException, IOException {
+        URL resource = getClass().getResource("/sample.txt");
+        testRoot = Paths.get(resource.toURI()).resolve("..").normalize();
+        testPath = testRoot.resolve("tst1");
+        if (Files.exists(testPath)) {
+            FileUtils.deleteDirectory(testPath.toFile());
+        }
+        Files.createDirectories(testPath.resolve("src"));
+        assumeTrue(XattrIndexStore.isSupported(testPath));
+    }
+    
+    @Test
+    public void test_indexInAttributes() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("smpl.txt"));
+        DirChecker checker = new DirChecker();
+        checker.setXattrIndex(true);
+        checker.indexFolder(src);
+        assertThat(Files.exists(src.resolve(DirInfo.IDXFILE))).isFalse();
+        assertThat(new XattrIndexStore(src).getFileInfo("smpl.txt").getHash()).isEqualTo(SAMPLE_HASH);
+        Files.move(src.resolve("smpl.txt"), src.resolve("renamed.txt"));
+        IndexStore index = checker.openIndex(src);
+        assertThat(index.getFileInfo("renamed.txt").getHash()).isEqualTo(SAMPLE_HASH);
+        assertThat(index.isHashPresent(SAMPLE_HASH)).isTrue();
+        index.removeFromIndex(index.getFileInfo("renamed.txt"));
+        assertThat(new XattrIndexStore(src).getNameIndex()).isEmpty();
+    }
+
+    @Test
+    public void test_missingAndLongAttributes() throws IOException {
+        Path file = testPath.resolve("src/other.txt");
+        Files.copy(testRoot.resolve("sample.txt"), file);
+        assertThat(new XattrIndexStore(file.getParent()).getFileInfo("other.txt")).isNull();
+        assertThat(new XattrIndexStore(file.getParent()).getFileInfo("missing.txt")).isNull();
+        // longer than the buffer of the first read
+        FileInfo stored = new FileInfo("x".repeat(3000), 10, FileTime.fromMillis(0), SAMPLE_HASH, 0);
+        Files.getFileAttributeView(file, UserDefinedFileAttributeView.class).write(XattrIndexStore.ATTRIBUTE,
+            ByteBuffer.wrap(stored.toString().getBytes(StandardCharsets.UTF_8)));
+        FileInfo read = new XattrIndexStore(file.getParent()).getFileInfo("other.txt");
+        assertThat(read.getHash()).isEqualTo(SAMPLE_HASH);
+        assertThat(read.getName()).isEqualTo("other.txt");
+    }
+
+    @Test
+    public void test_synchronize() throws IOException, NoSuchAlgorithmException, InvalidIndexException {
+        Path src = testPath.resolve("src");
+        Path dst = testPath.resolve("dst");
+        Files.createDirectories(src.resolve("a"));
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("smpl.txt"));
+        Files.copy(testRoot.resolve("sample.txt"), src.resolve("a/smpl2.txt"));
+        Synchronize.synchronize(src, dst, new SyncOptions().setXattrIndex(true).setScrape(true));
+        assertThat(Files.exists(dst.resolve("a/smpl2.txt"))).isTrue();
+        assertThat(Files.exists(dst.resolve("a").resolve(DirInfo.IDXFILE))).isFalse();
+        assertThat(new XattrIndexStore(dst.resolve("a")).getFileInfo("smpl2.txt").getHash()).isEqualTo(SAMPLE_HASH);
+    }
+}